@@ -3,8 +3,10 @@ package org.example.rag;
 import org.example.rag.config.DotenvInitializer;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class RagApplication {
     public static void main(String[] args) {
         SpringApplication app = new SpringApplication(RagApplication.class);
@@ -0,0 +1,41 @@
+package org.example.rag.config;
+
+import com.aliyun.oss.ClientBuilderConfiguration;
+import com.aliyun.oss.OSS;
+import com.aliyun.oss.OSSClientBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * OSS 客户端配置
+ * 全局共用一个带连接池的客户端，避免每次上传下载都重新建立 TLS 连接
+ * local profile 下使用本地文件存储，不创建 OSS 客户端
+ */
+@Configuration
+@Profile("!local")
+public class OssConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public OSS ossClient(@Value("${aliyun.oss.endpoint}") String endpoint,
+                         @Value("${aliyun.oss.access-key-id}") String accessKeyId,
+                         @Value("${aliyun.oss.access-key-secret}") String accessKeySecret,
+                         @Value("${aliyun.oss.max-connections:128}") int maxConnections,
+                         @Value("${aliyun.oss.connection-timeout-ms:5000}") int connectionTimeout,
+                         @Value("${aliyun.oss.socket-timeout-ms:60000}") int socketTimeout,
+                         @Value("${aliyun.oss.idle-connection-time-ms:60000}") long idleConnectionTime) {
+        ClientBuilderConfiguration configuration = new ClientBuilderConfiguration();
+        //连接池大小
+        configuration.setMaxConnections(maxConnections);
+        //建立连接超时
+        configuration.setConnectionTimeout(connectionTimeout);
+        //从连接池获取连接超时
+        configuration.setConnectionRequestTimeout(connectionTimeout);
+        //读写超时
+        configuration.setSocketTimeout(socketTimeout);
+        //空闲连接超过该时间后关闭
+        configuration.setIdleConnectionTime(idleConnectionTime);
+        return new OSSClientBuilder().build(endpoint, accessKeyId, accessKeySecret, configuration);
+    }
+}
@@ -1,15 +1,24 @@
 package org.example.rag.config;
 
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.Declarable;
 import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.HeadersExchange;
 import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -21,6 +30,20 @@ public class RabbitConfig {
     public static final String RAG_UPLOAD_EXCHANGE = "rag.upload.exchange";
     //路由键
     public static final String RAG_ROUTING_KEY = "rag.upload";
+    //小文件队列，由批量消费者处理
+    public static final String RAG_SMALL_UPLOAD_QUEUE = "rag.upload.small.queue";
+    //小文件路由键
+    public static final String RAG_SMALL_ROUTING_KEY = "rag.upload.small";
+    //批量通道队列和路由键前缀，每个权限组一个队列，由 BulkLaneRegistry 按需声明
+    public static final String RAG_BULK_QUEUE_PREFIX = "rag.upload.bulk.";
+    //延迟重试队列前缀，第 n 级为 rag.upload.delay.n
+    public static final String RAG_RETRY_QUEUE_PREFIX = "rag.upload.delay.";
+    //延迟重试交换机，按重试级别消息头分发到各级延迟队列，路由键保留消息原来的通道
+    public static final String RAG_RETRY_EXCHANGE = "rag.upload.retry.exchange";
+    //重试级别消息头
+    public static final String RAG_RETRY_TIER_HEADER = "x-rag-retry-tier";
+    //批量监听容器工厂
+    public static final String BATCH_LISTENER_FACTORY = "batchListenerContainerFactory";
     //死信流程定义
     public static final String RAG_DL_QUEUE="rag.upload.dlq";
     //死信交换机
@@ -85,6 +108,78 @@ public class RabbitConfig {
                 .to(uploadExchange())
                 .with(RAG_ROUTING_KEY);
     }
+
+    /**
+     * 定义小文件队列，死信配置与业务队列一致
+     * @return
+     */
+    @Bean
+    public Queue smallUploadQueue(){
+        Map<String,Object> args = new HashMap<>();
+        args.put("x-dead-letter-exchange",RAG_DL_EXCHANGE);
+        args.put("x-dead-letter-routing-key",RAG_DL_ROUTING_KEY);
+        return new Queue(RAG_SMALL_UPLOAD_QUEUE,true,false,false,args);
+    }
+    /**
+     * 小文件队列绑定交换机
+     * @return
+     */
+    @Bean
+    public Binding smallUploadBinding(){
+        return BindingBuilder.bind(smallUploadQueue())
+                .to(uploadExchange())
+                .with(RAG_SMALL_ROUTING_KEY);
+    }
+
+    /**
+     * 定义延迟重试队列：每一级设置不同的消息 TTL，没有消费者，消息到期后经死信转回业务交换机
+     * 退避期间消息只在 broker 中等待，不占用消费者线程
+     * 消息以原来的路由键投递到重试交换机，按重试级别消息头进入对应的延迟队列；
+     * 延迟队列不指定死信路由键，到期后沿用原路由键，回到原来的通道（单文档、小文件或所属权限组的批量队列）
+     * @return
+     */
+    @Bean
+    public Declarables retryQueues(@Value("${rag.retry.delays-ms:5000,30000,300000}") long[] delays) {
+        HeadersExchange retryExchange = new HeadersExchange(RAG_RETRY_EXCHANGE,true,false);
+        List<Declarable> declarables = new ArrayList<>();
+        declarables.add(retryExchange);
+        for (int i = 0; i < delays.length; i++) {
+            Map<String,Object> args = new HashMap<>();
+            args.put("x-message-ttl", delays[i]);
+            args.put("x-dead-letter-exchange",RAG_UPLOAD_EXCHANGE);
+            Queue queue = new Queue(RAG_RETRY_QUEUE_PREFIX + (i + 1),true,false,false,args);
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(retryExchange)
+                    .where(RAG_RETRY_TIER_HEADER).matches(String.valueOf(i + 1)));
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 批量监听容器：一次攒够 batchSize 条或等待 receiveTimeout 后交给监听方法
+     * 手动确认：文档级失败由消费者自行记录并确认消息，意外异常只拒绝尚未处理完的消息，拒绝后进入死信队列不再重回队列
+     * @return
+     */
+    @Bean(BATCH_LISTENER_FACTORY)
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            ConnectionFactory connectionFactory, MessageConverter jsonMessageConverter,
+            @Value("${rag.ingest.small-batch.size:50}") int batchSize,
+            @Value("${rag.ingest.small-batch.prefetch:100}") int prefetch,
+            @Value("${rag.ingest.small-batch.receive-timeout-ms:1000}") long receiveTimeout) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(jsonMessageConverter);
+        factory.setBatchListener(true);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        //预取至少要能凑满一批
+        factory.setPrefetchCount(Math.max(prefetch, batchSize));
+        factory.setReceiveTimeout(receiveTimeout);
+        factory.setDefaultRequeueRejected(false);
+        return factory;
+    }
+
     //发送时自动把对象转成 JSON，接收时自动把 JSON 转回对象
     @Bean
     public MessageConverter jsonMessageConverter() {
@@ -0,0 +1,157 @@
+package org.example.rag.controller;
+
+import lombok.RequiredArgsConstructor;
+import org.example.rag.common.Result;
+import org.example.rag.entity.ParkedDocument;
+import org.example.rag.entity.dto.BulkLaneStats;
+import org.example.rag.entity.dto.EmbeddingCacheStats;
+import org.example.rag.entity.dto.GovernorStats;
+import org.example.rag.entity.dto.IngestionStageStats;
+import org.example.rag.entity.dto.ReplayRequest;
+import org.example.rag.entity.dto.SemanticCacheStats;
+import org.example.rag.ingest.IngestionGovernor;
+import org.example.rag.ingest.IngestionPipeline;
+import org.example.rag.ingest.NearDuplicateDetector;
+import org.example.rag.ingest.ParseSandbox;
+import org.example.rag.ingest.ParserRouter;
+import org.example.rag.mq.FairShareDispatcher;
+import org.example.rag.service.CacheManager;
+import org.example.rag.service.DeadLetterService;
+import org.example.rag.service.EmbeddingCacheService;
+import org.example.rag.service.QueryEmbeddingCache;
+import org.example.rag.service.SemanticAnswerCache;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 运维接口，仅 ADMIN 角色可访问
+ */
+@RestController
+@RequestMapping("/api/admin")
+@RequiredArgsConstructor
+public class AdminController {
+
+    private final IngestionPipeline ingestionPipeline;
+    private final EmbeddingCacheService embeddingCacheService;
+    private final IngestionGovernor ingestionGovernor;
+    private final DeadLetterService deadLetterService;
+    private final FairShareDispatcher fairShareDispatcher;
+    private final ParserRouter parserRouter;
+    private final ParseSandbox parseSandbox;
+    private final NearDuplicateDetector nearDuplicateDetector;
+    private final QueryEmbeddingCache queryEmbeddingCache;
+    private final CacheManager cacheManager;
+    private final SemanticAnswerCache semanticAnswerCache;
+
+    /**
+     * 入库流水线各阶段的队列深度和吞吐
+     */
+    @GetMapping("/ingest/stats")
+    public Result<List<IngestionStageStats>> ingestStats() {
+        return Result.success(ingestionPipeline.stats());
+    }
+
+    /**
+     * 向量缓存命中统计
+     */
+    @GetMapping("/embedding-cache/stats")
+    public Result<EmbeddingCacheStats> embeddingCacheStats() {
+        return Result.success(embeddingCacheService.stats());
+    }
+
+    /**
+     * 问题向量缓存命中统计
+     */
+    @GetMapping("/query-embedding-cache/stats")
+    public Result<Map<String, Long>> queryEmbeddingCacheStats() {
+        return Result.success(queryEmbeddingCache.stats());
+    }
+
+    /**
+     * 语义答案缓存统计：命中率、抽样复核次数、误命中率和命中时的平均相似度
+     */
+    @GetMapping("/semantic-cache/stats")
+    public Result<SemanticCacheStats> semanticCacheStats() {
+        return Result.success(semanticAnswerCache.stats());
+    }
+
+    /**
+     * 两级缓存统计：一级缓存条数、命中、淘汰，二级缓存命中，收到的失效通知数
+     */
+    @GetMapping("/cache/stats")
+    public Result<Map<String, Object>> cacheStats() {
+        return Result.success(cacheManager.stats());
+    }
+
+    /**
+     * 调速器当前的并发数、token 限额和观测到的耗时
+     */
+    @GetMapping("/governor/stats")
+    public Result<GovernorStats> governorStats() {
+        return Result.success(ingestionGovernor.stats());
+    }
+
+    /**
+     * 各解析路径处理的文档数
+     */
+    @GetMapping("/parser/stats")
+    public Result<Map<ParserRouter.Format, Long>> parserStats() {
+        return Result.success(parserRouter.stats());
+    }
+
+    /**
+     * 解析沙箱中止的文档数：timeouts 为超时，limitExceeded 为超时或输出超限的总数
+     */
+    @GetMapping("/parser/sandbox/stats")
+    public Result<Map<String, Long>> parseSandboxStats() {
+        return Result.success(Map.of("timeouts", parseSandbox.getTimeouts(),
+                "limitExceeded", parseSandbox.getLimitExceeded()));
+    }
+
+    /**
+     * 近似重复检测：checked 为参与检测的新增块数，linked 为指向原块的块数，dropped 为丢弃的块数
+     */
+    @GetMapping("/dedup/stats")
+    public Result<Map<String, Long>> dedupStats() {
+        return Result.success(nearDuplicateDetector.stats());
+    }
+
+    /**
+     * 各权限组批量通道的积压和处理量
+     */
+    @GetMapping("/bulk-lanes/stats")
+    public Result<List<BulkLaneStats>> bulkLaneStats() {
+        return Result.success(fairShareDispatcher.stats());
+    }
+
+    /**
+     * 查询等待处理的死信文档，可按失败类型、权限组和进入死信的时间筛选
+     */
+    @GetMapping("/dead-letters")
+    public Result<List<ParkedDocument>> deadLetters(
+            @RequestParam(value = "failureType", required = false) String failureType,
+            @RequestParam(value = "permissionGroup", required = false) String permissionGroup,
+            @RequestParam(value = "parkedAfter", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime parkedAfter,
+            @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        return Result.success(deadLetterService.list(failureType, permissionGroup, parkedAfter, limit));
+    }
+
+    /**
+     * 按条件批量重放死信文档，后台按指定速率逐条重新投递
+     */
+    @PostMapping("/dead-letters/replay")
+    public Result<Integer> replayDeadLetters(@RequestBody ReplayRequest request) {
+        int selected = deadLetterService.replay(request);
+        return Result.success(selected, "已开始重放" + selected + "个文档");
+    }
+}
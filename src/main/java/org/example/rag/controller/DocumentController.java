@@ -1,10 +1,20 @@
 package org.example.rag.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.RequiredArgsConstructor;
 import org.example.rag.common.Result;
+import org.example.rag.common.UserContext;
+import org.example.rag.entity.dto.DocStatusEvent;
+import org.example.rag.entity.dto.UploadJobStatus;
+import org.example.rag.service.BulkUploadService;
+import org.example.rag.service.DocStatusService;
 import org.example.rag.service.RagService;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
 
 @RestController
 @RequestMapping("/api/docs")
@@ -12,9 +22,53 @@ import org.springframework.web.multipart.MultipartFile;
 public class DocumentController {
 
     private final RagService ragService;
+    private final DocStatusService docStatusService;
+    private final BulkUploadService bulkUploadService;
     @PostMapping("/upload")
-    public Result<String> uploadDocument(@RequestParam("file") MultipartFile file) {
-        String processResult = ragService.uploadAndProcess(file);
+    public Result<Long> uploadDocument(@RequestParam("file") MultipartFile file) {
+        Long documentId = ragService.uploadAndProcess(file);
+        return Result.success(documentId, "文件上传成功，正在后台处理");
+    }
+
+    /**
+     * 批量上传：请求体直接是 zip、tar 或 tar.gz 压缩包，边接收边解压
+     * @return 上传任务ID，通过 /bulk/{jobId} 查询进度
+     */
+    @PostMapping("/bulk")
+    public Result<Long> bulkUpload(@RequestParam(value = "name", required = false) String archiveName,
+                                   HttpServletRequest request) throws IOException {
+        Long jobId = bulkUploadService.upload(request.getInputStream(), archiveName);
+        return Result.success(jobId, "压缩包已接收，正在后台处理");
+    }
+
+    /**
+     * 查询批量上传任务的进度
+     */
+    @GetMapping("/bulk/{jobId}")
+    public Result<UploadJobStatus> getBulkStatus(@PathVariable("jobId") Long jobId) {
+        return Result.success(bulkUploadService.getStatus(jobId, UserContext.getRoles()));
+    }
+
+    /**
+     * 查询文档处理状态
+     */
+    @GetMapping("/{id}/status")
+    public Result<DocStatusEvent> getStatus(@PathVariable("id") Long documentId) {
+        return Result.success(docStatusService.getStatus(documentId, UserContext.getRoles()));
+    }
+
+    /**
+     * 订阅文档处理状态，状态变化时推送 status 事件，处理结束后服务端关闭连接
+     */
+    @GetMapping(value = "/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeStatus(@PathVariable("id") Long documentId) {
+        return docStatusService.subscribe(documentId, UserContext.getRoles());
+    }
+
+    @PostMapping("/{id}/version")
+    public Result<String> uploadNewVersion(@PathVariable("id") Long documentId,
+                                           @RequestParam("file") MultipartFile file) {
+        String processResult = ragService.uploadNewVersion(documentId, file);
         return Result.success(processResult);
     }
 
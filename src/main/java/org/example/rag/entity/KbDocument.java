@@ -7,7 +7,7 @@ import java.time.LocalDateTime;
 
 @Data
 @Entity
-@Table(name = "kb_documents")
+@Table(name = "kb_documents", indexes = @Index(name = "idx_kb_documents_upload_job", columnList = "uploadJobId"))
 public class KbDocument {
 
     @Id
@@ -19,12 +19,24 @@ public class KbDocument {
     private String filepath;
     private String filetype;
     private Long fileSize;
-    // 状态机：PENDING, PROCESSING, COMPLETED, FAILED
+    // 状态机：PENDING, PROCESSING, COMPLETED, FAILED；RETRYING 表示失败后等待延迟重试
     private String status;
+    // 处理进度百分比 0-100
+    private Integer progress;
+    // 文档版本，每上传一次新版本加一
+    private Integer docVersion;
+    // 断点：当前版本已入库的块数
+    private Integer processedChunks;
+    // 断点：已入库部分在清洗后文本中的结束位置
+    private Long parsedOffset;
+    // 防护令牌：每次被领取加一，写库时校验，租约丢失的旧节点写不进去
+    private Long leaseToken;
 
     private String permissionGroup;
 
     private String fileHash;
+    // 通过压缩包批量上传时所属的上传任务
+    private Long uploadJobId;
     // 错误信息，用于排查问题
     @Column(columnDefinition = "TEXT")
     private String errorMessage;
@@ -32,11 +44,12 @@ public class KbDocument {
     @Column(name = "created_at")
     private LocalDateTime createdAt;
 
-
     // 自动填充创建时间
     @PrePersist
     protected void onCreate() {
         createdAt = LocalDateTime.now();
         if (status == null) status = "PENDING";
+        if (docVersion == null) docVersion = 1;
+        if (progress == null) progress = 0;
     }
 }
@@ -0,0 +1,46 @@
+package org.example.rag.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 发件箱消息
+ * 与业务数据在同一事务中写入，由 OutboxDispatcher 在后台投递到 MQ，收到 broker 确认后删除
+ */
+@Data
+@Entity
+@Table(name = "outbox_messages", indexes = @Index(name = "idx_outbox_next_attempt", columnList = "nextAttemptAt"))
+public class OutboxMessage {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    @Column(nullable = false)
+    private String exchange;
+    @Column(nullable = false)
+    private String routingKey;
+    // 消息体的类型，消费端据此反序列化
+    @Column(nullable = false)
+    private String payloadType;
+    // JSON 格式的消息体
+    @Column(nullable = false, columnDefinition = "TEXT")
+    private String payload;
+    // 已投递失败的次数
+    private Integer attempts;
+    // 下次可投递的时间，失败后按次数退避
+    private LocalDateTime nextAttemptAt;
+    @Column(columnDefinition = "TEXT")
+    private String lastError;
+
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+        if (attempts == null) attempts = 0;
+        if (nextAttemptAt == null) nextAttemptAt = createdAt;
+    }
+}
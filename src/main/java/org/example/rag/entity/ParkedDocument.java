@@ -0,0 +1,45 @@
+package org.example.rag.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 进入死信队列的文档，等待排查后批量重放
+ */
+@Data
+@Entity
+@Table(name = "parked_documents", indexes = {
+        @Index(name = "idx_parked_status_type", columnList = "status, failureType"),
+        @Index(name = "idx_parked_doc_id", columnList = "docId")
+})
+public class ParkedDocument {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    @Column(nullable = false)
+    private Long docId;
+    private String ossKey;
+    private Long userId;
+    private String permissionGroup;
+    // 失败类型，见 FailureType
+    private String failureType;
+    @Column(columnDefinition = "TEXT")
+    private String errorMessage;
+    // 进入死信前已重试的次数
+    private Integer retryCount;
+    // PARKED：等待处理；QUEUED：已选中等待重放；REPLAYED：已重放；DISCARDED：文档已删除、正在处理或已完成，无需重放
+    private String status;
+    private LocalDateTime parkedAt;
+    // 被重放选中的时间，超时仍未重放时恢复为 PARKED
+    private LocalDateTime queuedAt;
+    private LocalDateTime replayedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        parkedAt = LocalDateTime.now();
+        if (status == null) status = "PARKED";
+    }
+}
@@ -0,0 +1,52 @@
+package org.example.rag.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 压缩包批量上传任务
+ * 一个压缩包对应一个任务，包内每个文件登记为一篇 KbDocument（uploadJobId 指向本任务）
+ */
+@Data
+@Entity
+@Table(name = "upload_jobs")
+public class UploadJob {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    private Long userId;
+    private String permissionGroup;
+    private String archiveName;
+    // RECEIVING：正在解压登记；QUEUED：已全部登记并投递；FAILED：压缩包读取失败，已登记的文件仍会处理
+    private String status;
+    // 压缩包中的文件总数
+    private Integer totalFiles;
+    // 登记为新文档的文件数
+    private Integer acceptedFiles;
+    // 与已有文档或包内其他文件内容相同而跳过的文件数
+    private Integer duplicateFiles;
+    // 空文件、超过大小限制或无法读取而跳过的文件数
+    private Integer skippedFiles;
+    // 存储上传失败的文件数
+    private Integer failedFiles;
+    @Column(columnDefinition = "TEXT")
+    private String errorMessage;
+
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+    private LocalDateTime finishedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+        if (status == null) status = "RECEIVING";
+        if (totalFiles == null) totalFiles = 0;
+        if (acceptedFiles == null) acceptedFiles = 0;
+        if (duplicateFiles == null) duplicateFiles = 0;
+        if (skippedFiles == null) skippedFiles = 0;
+        if (failedFiles == null) failedFiles = 0;
+    }
+}
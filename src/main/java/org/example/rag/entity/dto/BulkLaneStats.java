@@ -0,0 +1,21 @@
+package org.example.rag.entity.dto;
+
+import lombok.Data;
+
+/**
+ * 单个权限组批量通道的状态
+ */
+@Data
+public class BulkLaneStats {
+    private String group;
+    private int weight;
+    /**
+     * 队列中待处理的消息数
+     */
+    private long queueDepth;
+    /**
+     * 启动以来本节点处理的消息数和轮次数
+     */
+    private long dispatched;
+    private long turns;
+}
@@ -0,0 +1,30 @@
+package org.example.rag.entity.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 待写入 document_chunks 的一行数据
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChunkRecord {
+    private Long docId;
+    private Integer docVersion;
+    private String content;
+    private String contentHash;
+    private String metadataJson;
+    /**
+     * 近似重复的块为 null
+     */
+    private List<Double> embedding;
+    private Long simhash;
+    /**
+     * 近似重复的块指向的原块 id
+     */
+    private Long duplicateOf;
+}
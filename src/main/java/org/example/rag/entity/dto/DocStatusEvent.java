@@ -0,0 +1,32 @@
+package org.example.rag.entity.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 文档处理状态，既是状态查询的返回值，也是 SSE 推送的事件
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocStatusEvent {
+    private Long docId;
+    // PENDING, PROCESSING, RETRYING, COMPLETED, FAILED
+    private String status;
+    // 处理进度百分比 0-100
+    private Integer progress;
+    private String errorMessage;
+    // 用于状态查询时的权限校验
+    private String permissionGroup;
+    private Long timestamp;
+
+    /**
+     * 是否已结束，结束后不会再有新的事件
+     */
+    @JsonIgnore
+    public boolean isTerminal() {
+        return "COMPLETED".equals(status) || "FAILED".equals(status);
+    }
+}
@@ -14,4 +14,13 @@ public class DocUploadMessage implements Serializable{
     private String LocalFilePath;
     private Long userId;
     private String group;
+    /**
+     * 文件大小，批量通道据此决定小文件合批处理
+     */
+    private Long fileSize;
+    /**
+     * 登记消息时文档的版本，与数据库中的版本不一致说明已上传新版本，消费者直接丢弃该消息
+     * 为空时（升级前登记的消息）不校验
+     */
+    private Integer docVersion;
 }
@@ -0,0 +1,26 @@
+package org.example.rag.entity.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量向量化结果
+ * embeddings 与输入文本一一对应，向量化失败的位置为 null，下标记录在 failedIndexes 中
+ */
+@Data
+public class EmbeddingBatchResult {
+    private List<List<Double>> embeddings;
+    private List<Integer> failedIndexes = new ArrayList<>();
+    private String lastError;
+    /**
+     * 最后一次失败的异常，用于判断失败类型（如是否被限流）
+     */
+    private Exception lastException;
+    private int batchCount;
+
+    public boolean hasFailures() {
+        return !failedIndexes.isEmpty();
+    }
+}
@@ -0,0 +1,14 @@
+package org.example.rag.entity.dto;
+
+import lombok.Data;
+
+/**
+ * 向量缓存命中统计（节点启动以来）
+ */
+@Data
+public class EmbeddingCacheStats {
+    private long hits;
+    private long misses;
+    private double hitRate;
+    private long evicted;
+}
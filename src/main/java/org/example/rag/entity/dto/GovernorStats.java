@@ -0,0 +1,32 @@
+package org.example.rag.entity.dto;
+
+import lombok.Data;
+
+/**
+ * 入库调速器的当前状态
+ */
+@Data
+public class GovernorStats {
+    /**
+     * 当前消费者并发数
+     */
+    private int concurrency;
+    private int minConcurrency;
+    private int maxConcurrency;
+    /**
+     * 当前生效的 token/秒 限额，被限流后低于配置的预算
+     */
+    private double tokensPerSecond;
+    private double tokenBudget;
+    /**
+     * 向量化和写库耗时的指数滑动平均（毫秒）
+     */
+    private double embedLatencyMillis;
+    private double writeLatencyMillis;
+    /**
+     * 启动以来的限流次数、失败次数和因限额等待的总时长
+     */
+    private long throttled;
+    private long errors;
+    private long waitedMillis;
+}
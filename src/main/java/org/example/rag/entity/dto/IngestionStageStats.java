@@ -0,0 +1,28 @@
+package org.example.rag.entity.dto;
+
+import lombok.Data;
+
+/**
+ * 入库流水线单个阶段的运行指标
+ */
+@Data
+public class IngestionStageStats {
+    private String stage;
+    /**
+     * 排队等待该阶段处理的批次数
+     */
+    private int queueDepth;
+    private int activeThreads;
+    private int poolSize;
+    private long batches;
+    private long chunks;
+    private long failures;
+    /**
+     * 平均每批耗时（毫秒）
+     */
+    private double avgBatchMillis;
+    /**
+     * 启动以来的平均吞吐（块/秒）
+     */
+    private double chunksPerSecond;
+}
@@ -0,0 +1,29 @@
+package org.example.rag.entity.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 死信批量重放的筛选条件和速率
+ */
+@Data
+public class ReplayRequest {
+    /**
+     * 失败类型，为空表示不限
+     */
+    private String failureType;
+    private String permissionGroup;
+    /**
+     * 只重放该时间之后进入死信的文档
+     */
+    private LocalDateTime parkedAfter;
+    /**
+     * 本次最多重放条数
+     */
+    private Integer limit;
+    /**
+     * 每秒重放条数
+     */
+    private Double ratePerSecond;
+}
@@ -0,0 +1,22 @@
+package org.example.rag.entity.dto;
+
+import lombok.Data;
+
+/**
+ * 语义答案缓存统计（节点启动以来）
+ * falseHits 为抽样复核中检索结果与缓存答案所用资料不一致的命中，falseHitRate = falseHits / verified
+ */
+@Data
+public class SemanticCacheStats {
+    private long hits;
+    private long misses;
+    private double hitRate;
+    private long verified;
+    private long falseHits;
+    private double falseHitRate;
+    /**
+     * 命中时的平均余弦相似度
+     */
+    private double avgHitSimilarity;
+    private long expired;
+}
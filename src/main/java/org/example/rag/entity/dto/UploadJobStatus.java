@@ -0,0 +1,18 @@
+package org.example.rag.entity.dto;
+
+import lombok.Data;
+import org.example.rag.entity.UploadJob;
+
+import java.util.Map;
+
+/**
+ * 批量上传任务的进度
+ */
+@Data
+public class UploadJobStatus {
+    private UploadJob job;
+    /**
+     * 任务下各状态的文档数，如 PENDING、PROCESSING、COMPLETED、FAILED
+     */
+    private Map<String, Long> documents;
+}
@@ -0,0 +1,91 @@
+package org.example.rag.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * 把逐个产出的文档块攒成批次再交给下游
+ */
+public class ChunkBatcher implements ChunkingContentHandler.ChunkSink {
+
+    /**
+     * 批次回调
+     */
+    @FunctionalInterface
+    public interface BatchHandler {
+        /**
+         * @param startIndex 批次第一块在整篇文档中的序号
+         * @param chunks     批次内的文档块
+         * @param endOffset  批次最后一块在清洗后文本中的结束位置
+         * @param bytesRead  提交批次时已读取的原始文件字节数
+         */
+        void handle(int startIndex, List<String> chunks, long endOffset, long bytesRead);
+    }
+
+    private final int batchSize;
+    private final BatchHandler handler;
+    private final LongSupplier position;
+    private List<String> pending;
+    private int nextIndex;
+    private long lastEndOffset;
+
+    public ChunkBatcher(int batchSize, BatchHandler handler) {
+        this(batchSize, 0, handler);
+    }
+
+    /**
+     * @param startIndex 第一块的序号，断点续传时为已入库的块数
+     */
+    public ChunkBatcher(int batchSize, int startIndex, BatchHandler handler) {
+        this(batchSize, startIndex, () -> 0, handler);
+    }
+
+    /**
+     * @param position 原始文件的读取位置，在提交批次的解析线程上读取
+     */
+    public ChunkBatcher(int batchSize, int startIndex, LongSupplier position, BatchHandler handler) {
+        this.batchSize = batchSize;
+        this.handler = handler;
+        this.position = position;
+        this.nextIndex = startIndex;
+        this.pending = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void accept(String chunk, long endOffset) {
+        pending.add(chunk);
+        lastEndOffset = endOffset;
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * 提交剩余不足一批的文档块
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> batch = pending;
+        int startIndex = nextIndex;
+        nextIndex += batch.size();
+        pending = new ArrayList<>(batchSize);
+        handler.handle(startIndex, batch, lastEndOffset, position.getAsLong());
+    }
+
+    /**
+     * 最后一块在清洗后文本中的结束位置
+     */
+    public long getLastEndOffset() {
+        return lastEndOffset;
+    }
+
+    /**
+     * 已提交的文档块总数（含断点之前的）
+     */
+    public int getSubmittedCount() {
+        return nextIndex;
+    }
+}
@@ -0,0 +1,77 @@
+package org.example.rag.ingest;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文档重新入库时的块级比对
+ * 以库中旧版本文档块的内容哈希为基准：新版本中哈希相同的块直接复用，只有新出现的块需要向量化和写入。
+ * 被复用的块会标记为新版本，处理结束后仍停留在旧版本的块即为已经消失的块。
+ * 多个向量化线程会并发认领，方法均加锁。
+ * 新增块的近似重复检测状态也随比对对象一起传递，检测关闭时为 null。
+ */
+public class ChunkDiff {
+
+    /**
+     * 库中已有的文档块
+     */
+    @Data
+    @AllArgsConstructor
+    public static class ExistingChunk {
+        private Long id;
+        private String contentHash;
+        private Integer chunkIndex;
+    }
+
+    private final Map<String, Deque<ExistingChunk>> byHash = new HashMap<>();
+    private final NearDuplicateDetector.Scope nearDuplicates;
+    private int reused;
+    private int added;
+
+    public ChunkDiff(List<ExistingChunk> existing) {
+        this(existing, null);
+    }
+
+    public ChunkDiff(List<ExistingChunk> existing, NearDuplicateDetector.Scope nearDuplicates) {
+        this.nearDuplicates = nearDuplicates;
+        for (ExistingChunk chunk : existing) {
+            // 旧数据没有哈希，只能全部视为已删除
+            if (chunk.getContentHash() != null) {
+                byHash.computeIfAbsent(chunk.getContentHash(), k -> new ArrayDeque<>()).add(chunk);
+            }
+        }
+    }
+
+    /**
+     * 认领一个内容相同的旧块
+     * @return 可复用的旧块，没有则返回 null，表示这是新增的块
+     */
+    public synchronized ExistingChunk claim(String contentHash) {
+        Deque<ExistingChunk> candidates = byHash.get(contentHash);
+        ExistingChunk chunk = candidates == null ? null : candidates.poll();
+        if (chunk == null) {
+            added++;
+            return null;
+        }
+        reused++;
+        return chunk;
+    }
+
+    public NearDuplicateDetector.Scope getNearDuplicates() {
+        return nearDuplicates;
+    }
+
+    public synchronized int getReused() {
+        return reused;
+    }
+
+    public synchronized int getAdded() {
+        return added;
+    }
+}
@@ -0,0 +1,407 @@
+package org.example.rag.ingest;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/**
+ * 流式分块处理器
+ * 在 Tika 输出正文的同时清洗并按 token 分块，以句子、标题、表格行为单元，需包在 BodyContentHandler 中使用
+ */
+public class ChunkingContentHandler extends DefaultHandler {
+
+    /**
+     * 分块输出
+     */
+    @FunctionalInterface
+    public interface ChunkSink {
+        /**
+         * @param chunk     文档块
+         * @param endOffset 该块在清洗后文本中的结束位置
+         */
+        void accept(String chunk, long endOffset);
+    }
+
+    private static final Set<String> HEADING_TAGS = Set.of("h1", "h2", "h3", "h4", "h5", "h6");
+    private static final String CELL_SEPARATOR = " | ";
+
+    private final int chunkSize;
+    private final int minChunkSizeChars;
+    private final int minChunkLengthToEmbed;
+    private final int maxNumChunks;
+    private final int anchorModulus;
+    private final ToIntFunction<String> tokenCounter;
+    private final ChunkSink sink;
+    /**
+     * 没有句末标点时，单元最多积累这么多字符就强制结束
+     */
+    private final int maxUnitChars;
+
+    private final StringBuilder buffer = new StringBuilder();
+    /**
+     * 缓冲区起点在清洗后文本中的位置
+     */
+    private long consumed;
+    private long skipUntil;
+    /**
+     * 初始为 true，文档开头也算行首
+     */
+    private boolean lastWasNewline = true;
+    private int emittedChunks;
+
+    /**
+     * 当前未结束单元在缓冲区中的起点，之前都是已计数的单元
+     */
+    private int unitStart;
+    private int pendingTokens;
+    /**
+     * 当前单元已有字符的哈希和字符数，用于判断锚点句
+     */
+    private int sentenceHash;
+    private int sentenceChars;
+    /**
+     * 最近一个标题单元在缓冲区中的起止位置，没有为 -1
+     */
+    private int headingStart = -1;
+    private int headingEnd = -1;
+    private int headingTokens;
+    private boolean inHeading;
+    private int tableDepth;
+    private boolean inCell;
+    private boolean rowEnd;
+    private int cellsInRow;
+
+    public ChunkingContentHandler(int chunkSize, int minChunkSizeChars, int minChunkLengthToEmbed, int maxNumChunks,
+                                  int anchorModulus, ToIntFunction<String> tokenCounter, ChunkSink sink) {
+        this.chunkSize = chunkSize;
+        this.minChunkSizeChars = minChunkSizeChars;
+        this.minChunkLengthToEmbed = minChunkLengthToEmbed;
+        this.maxNumChunks = maxNumChunks;
+        this.anchorModulus = anchorModulus;
+        this.tokenCounter = tokenCounter;
+        this.sink = sink;
+        this.maxUnitChars = Math.max(64, chunkSize / 2);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) {
+        if (emittedChunks >= maxNumChunks) {
+            return;
+        }
+        String name = elementName(localName, qName);
+        if (HEADING_TAGS.contains(name)) {
+            sectionBreak();
+            inHeading = true;
+        } else if ("table".equals(name)) {
+            sectionBreak();
+            tableDepth++;
+        } else if (tableDepth > 0 && "tr".equals(name)) {
+            cellsInRow = 0;
+        } else if (tableDepth > 0 && ("td".equals(name) || "th".equals(name))) {
+            // 表格按行为单元，单元格之间用 " | " 分隔
+            if (cellsInRow++ > 0) {
+                for (int i = 0; i < CELL_SEPARATOR.length(); i++) {
+                    append(CELL_SEPARATOR.charAt(i));
+                }
+            }
+            inCell = true;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (emittedChunks >= maxNumChunks) {
+            return;
+        }
+        String name = elementName(localName, qName);
+        if (HEADING_TAGS.contains(name)) {
+            // 标题独占一个单元
+            append('\n');
+            inHeading = false;
+        } else if ("td".equals(name) || "th".equals(name)) {
+            inCell = false;
+        } else if (tableDepth > 0 && "tr".equals(name)) {
+            rowEnd = true;
+            append('\n');
+            rowEnd = false;
+        } else if ("table".equals(name) && tableDepth > 0) {
+            tableDepth--;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (emittedChunks >= maxNumChunks) {
+            return;
+        }
+        for (int i = start; i < start + length && emittedChunks < maxNumChunks; i++) {
+            append(ch[i]);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void endDocument() {
+        if (emittedChunks >= maxNumChunks) {
+            return;
+        }
+        closeUnit(buffer.length(), false, false);
+        if (buffer.length() > 0) {
+            cut(buffer.length());
+        }
+    }
+
+    /**
+     * 从断点继续：跳过清洗后文本的前 offset 个字符，块序号从 chunks 开始
+     * 切分点总在单元边界上，分块结果只取决于切分点之后的文本，所以跳过后切出的块与不中断时完全一致
+     */
+    public void resumeFrom(long offset, int chunks) {
+        this.skipUntil = offset;
+        this.emittedChunks = chunks;
+    }
+
+    /**
+     * 已输出的块数
+     */
+    public int getEmittedChunks() {
+        return emittedChunks;
+    }
+
+    /**
+     * 清洗并追加一个字符，遇到句末标点时结束当前单元
+     */
+    private void append(char c) {
+        // 表格内除行尾外的换行视为空格，一行表格作为一个单元
+        if (tableDepth > 0 && !rowEnd && (c == '\n' || c == '\r')) {
+            c = ' ';
+        }
+        // 文本清洗：连续换行合并为一个
+        boolean lineStart = lastWasNewline;
+        if (c == '\n') {
+            if (lastWasNewline) {
+                return;
+            }
+            lastWasNewline = true;
+        } else {
+            lastWasNewline = false;
+        }
+        // 断点之前的内容已经入库，直接跳过
+        if (consumed < skipUntil) {
+            consumed++;
+            return;
+        }
+        // Markdown 标题：行首的 #，纯文本路径没有元素事件，只能靠它和句末标点切分
+        if (c == '#' && lineStart && tableDepth == 0 && !inHeading) {
+            sectionBreak();
+            inHeading = true;
+        }
+        buffer.append(c);
+        // 单元格内的换行和句号不切分，只在过长时结束单元
+        if (inCell) {
+            if (buffer.length() - unitStart >= maxUnitChars * 4) {
+                closeUnit(buffer.length(), false, false);
+            }
+            return;
+        }
+        // 标题内的句号不切分，整行作为一个单元
+        if (isPunctuation(c) && (!inHeading || c == '\n')) {
+            boolean heading = inHeading;
+            if (c == '\n') {
+                inHeading = false;
+            }
+            closeUnit(buffer.length(), !heading && tableDepth == 0 && sentenceChars > 0, heading);
+        } else {
+            sentenceHash = 31 * sentenceHash + c;
+            sentenceChars++;
+            if (buffer.length() - unitStart >= maxUnitChars) {
+                forceCloseUnit();
+            }
+        }
+    }
+
+    /**
+     * 标题（XHTML h1-h6 或 Markdown 行首 #）和表格之前：结束当前单元，块内已超过 minChunkSizeChars 个字符时截断
+     */
+    private void sectionBreak() {
+        closeUnit(buffer.length(), false, false);
+        if (unitStart >= minChunkSizeChars) {
+            cut(unitStart);
+        }
+    }
+
+    /**
+     * 长段落没有句末标点时，在最后一个空白处结束单元，没有空白则直接在当前位置结束
+     */
+    private void forceCloseUnit() {
+        int end = buffer.length();
+        for (int i = end - 1; i > unitStart + (end - unitStart) / 2; i--) {
+            if (Character.isWhitespace(buffer.charAt(i))) {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end == buffer.length() && Character.isHighSurrogate(buffer.charAt(end - 1))) {
+            end--;
+        }
+        closeUnit(end, false, inHeading);
+    }
+
+    /**
+     * 结束 [unitStart, end) 这个单元：分词一次，放不下时先截断再放入，锚点句结束时截断
+     * 块的 token 数按单元累加，不对整个缓冲区反复分词
+     * @param sentenceEnd 是否以句末标点结束的正文句子，只有这种单元可能是锚点句
+     * @param heading     是否为标题
+     */
+    private void closeUnit(int end, boolean sentenceEnd, boolean heading) {
+        if (end <= unitStart) {
+            return;
+        }
+        int tokens = isBlank(unitStart, end) ? 0 : tokenCounter.applyAsInt(buffer.substring(unitStart, end));
+        while (tokens > chunkSize) {
+            // 单个单元超过上限：先把之前的内容切出去，再在单元内部截断
+            if (unitStart > 0) {
+                end -= unitStart;
+                cut(unitStart);
+            }
+            int prefix = prefixWithinTokens(end);
+            cut(prefix);
+            end -= prefix;
+            tokens = end == 0 ? 0 : tokenCounter.applyAsInt(buffer.substring(0, end));
+        }
+        if (pendingTokens + tokens > chunkSize && unitStart > 0) {
+            // 放不下的单元整体移到下一块；块尾的标题也一起移过去，跟随后面的正文
+            boolean keepHeading = headingEnd == unitStart && headingStart > 0
+                    && headingTokens + tokens <= chunkSize;
+            int at = keepHeading ? headingStart : unitStart;
+            cut(at);
+            end -= at;
+            pendingTokens = keepHeading ? headingTokens : 0;
+        }
+        if (heading) {
+            // 连续的多级标题合在一起
+            if (headingEnd != unitStart) {
+                headingStart = unitStart;
+                headingTokens = 0;
+            }
+            headingEnd = end;
+            headingTokens += tokens;
+        }
+        pendingTokens += tokens;
+        unitStart = end;
+        // 锚点句：minChunkSizeChars 之后哈希命中 anchorModulus 的句子，在其结束处截断。
+        // 是否为锚点只取决于句子本身，文档中间改动一段后后面的切分点会重新对齐，未改动部分的块与旧版本相同，可按哈希复用
+        boolean anchor = sentenceEnd && anchorModulus > 0 && end >= minChunkSizeChars
+                && Math.floorMod(mix(sentenceHash), anchorModulus) == 0;
+        rehashOpenUnit();
+        if (anchor) {
+            cut(end);
+        }
+    }
+
+    /**
+     * 句子哈希只覆盖当前未结束的单元，保证从任一切分点续传时锚点判断与不中断时一致
+     */
+    private void rehashOpenUnit() {
+        sentenceHash = 0;
+        sentenceChars = 0;
+        for (int i = unitStart; i < buffer.length(); i++) {
+            sentenceHash = 31 * sentenceHash + buffer.charAt(i);
+            sentenceChars++;
+        }
+    }
+
+    /**
+     * 从缓冲区头部切出一块，切分点之前的单元计数一并清空
+     */
+    private void cut(int length) {
+        if (length <= 0) {
+            return;
+        }
+        emit(length, consumed + length);
+        buffer.delete(0, length);
+        consumed += length;
+        unitStart = Math.max(0, unitStart - length);
+        headingStart = headingStart >= length ? headingStart - length : -1;
+        headingEnd = headingStart >= 0 ? headingEnd - length : -1;
+        pendingTokens = 0;
+    }
+
+    /**
+     * 打散句子哈希，避免 String 风格哈希低位分布不均
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * 二分查找缓冲区 [0, end) 中不超过 chunkSize 个 token 的最长前缀
+     */
+    private int prefixWithinTokens(int end) {
+        int low = 1;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (tokenCounter.applyAsInt(buffer.substring(0, mid)) <= chunkSize) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // 不要把代理对拆开
+        if (low < end && low > 1 && Character.isHighSurrogate(buffer.charAt(low - 1))) {
+            low--;
+        }
+        return low;
+    }
+
+    private boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(buffer.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPunctuation(char c) {
+        return switch (c) {
+            case '.', '?', '!', '\n', '。', '？', '！' -> true;
+            default -> false;
+        };
+    }
+
+    private static String elementName(String localName, String qName) {
+        String name = localName == null || localName.isEmpty() ? qName : localName;
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 输出缓冲区 [0, length) 去掉首尾空白后的内容，只复制一次；长度不超过 minChunkLengthToEmbed 的块丢弃
+     */
+    private void emit(int length, long endOffset) {
+        int from = 0;
+        int to = length;
+        while (from < to && Character.isWhitespace(buffer.charAt(from))) {
+            from++;
+        }
+        while (to > from && Character.isWhitespace(buffer.charAt(to - 1))) {
+            to--;
+        }
+        if (to - from > minChunkLengthToEmbed) {
+            sink.accept(buffer.substring(from, to), endOffset);
+            emittedChunks++;
+        }
+    }
+}
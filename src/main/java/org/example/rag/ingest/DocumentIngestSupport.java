@@ -0,0 +1,278 @@
+package org.example.rag.ingest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.KbDocument;
+import org.example.rag.entity.dto.ChunkRecord;
+import org.example.rag.repository.KbDocumentRepository;
+import org.example.rag.service.ChunkWriter;
+import org.example.rag.service.DocStatusService;
+import org.example.rag.service.EmbeddingBatchService;
+import org.example.rag.utils.ContentHashUtil;
+import org.example.rag.utils.SimHashUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.stereotype.Component;
+import org.xml.sax.ContentHandler;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单文档消费者和批量消费者共用的入库步骤：解析分块、与旧版本比对、组装和写入文档块、失败处理
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class DocumentIngestSupport {
+
+    /**
+     * 本文档内重复块的 metadata 键，值为原块序号
+     */
+    private static final String DUPLICATE_OF_CHUNK = "duplicate_of_chunk";
+    private final KbDocumentRepository documentRepository;
+    private final EmbeddingBatchService embeddingBatchService;
+    private final JdbcClient jdbcClient;
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final ChunkWriter chunkWriter;
+    private final DocStatusService docStatusService;
+    private final IngestionGovernor ingestionGovernor;
+    private final ParseSandbox parseSandbox;
+    private final NearDuplicateDetector nearDuplicateDetector;
+
+    /**
+     * 分块参数，默认值与原 TokenTextSplitter(800, 350, 5, 10000, true) 一致
+     */
+    @Value("${rag.chunk.size:800}")
+    private int chunkSize;
+    @Value("${rag.chunk.min-size-chars:350}")
+    private int minChunkSizeChars;
+    @Value("${rag.chunk.min-length-to-embed:5}")
+    private int minChunkLengthToEmbed;
+    @Value("${rag.chunk.max-num-chunks:10000}")
+    private int maxNumChunks;
+    /**
+     * 锚点句的取模基数，越大块越长，0 表示关闭内容定义的切分
+     */
+    @Value("${rag.chunk.anchor-modulus:8}")
+    private int anchorModulus;
+
+    /**
+     * 按配置创建流式分块处理器
+     */
+    public ChunkingContentHandler newChunkingHandler(ChunkingContentHandler.ChunkSink sink) {
+        return new ChunkingContentHandler(chunkSize, minChunkSizeChars, minChunkLengthToEmbed, maxNumChunks,
+                anchorModulus, embeddingBatchService::countTokens, sink);
+    }
+
+    /**
+     * 流式解析文件，正文交给 handler 处理
+     * 按文件类型由 ParserRouter 选择解析器，在 ParseSandbox 的耗时和输出限额内运行
+     */
+    public void parse(InputStream stream, KbDocument kbDoc, ContentHandler handler) throws Exception {
+        parseSandbox.parse(stream, kbDoc.getFilename(), kbDoc.getFiletype(), handler);
+    }
+
+    /**
+     * 加载旧版本的块并开始近似重复检测，得到本次入库的比对对象
+     */
+    public ChunkDiff newChunkDiff(KbDocument kbDoc) {
+        return new ChunkDiff(loadPreviousVersionChunks(kbDoc.getId(), kbDoc.getDocVersion()),
+                nearDuplicateDetector.open(kbDoc));
+    }
+
+    /**
+     * 查询文档在库中旧版本的块
+     */
+    public List<ChunkDiff.ExistingChunk> loadPreviousVersionChunks(Long docId, int docVersion) {
+        return jdbcClient.sql("""
+                      SELECT id, content_hash, (metadata->>'chunk_index')::int AS chunk_index
+                      FROM document_chunks
+                      WHERE doc_id = ? AND doc_version <> ?
+                  """)
+                .param(docId)
+                .param(docVersion)
+                .query((rs, rowNum) -> new ChunkDiff.ExistingChunk(rs.getLong("id"),
+                        rs.getString("content_hash"), (Integer) rs.getObject("chunk_index")))
+                .list();
+    }
+
+    /**
+     * 计算一批文档块的内容哈希并认领可复用的旧块，再对新增块做近似重复检测
+     * 向量暂为空，由调用方对需要向量化的块向量化后填入
+     * @param startIndex 该批第一块在文档中的序号
+     */
+    public EmbeddedBatch diff(ChunkDiff diff, int startIndex, List<String> chunks) {
+        List<String> hashes = new ArrayList<>(chunks.size());
+        List<ChunkDiff.ExistingChunk> reused = new ArrayList<>(chunks.size());
+        List<List<Double>> embeddings = new ArrayList<>(chunks.size());
+        List<Long> simhashes = new ArrayList<>(chunks.size());
+        NearDuplicateDetector.Scope nearDuplicates = diff.getNearDuplicates();
+        for (String chunk : chunks) {
+            String hash = ContentHashUtil.hash(chunk);
+            ChunkDiff.ExistingChunk existing = diff.claim(hash);
+            hashes.add(hash);
+            reused.add(existing);
+            embeddings.add(null);
+            simhashes.add(existing == null && nearDuplicates != null ? SimHashUtil.simhash(chunk) : null);
+        }
+        List<NearDuplicateDetector.Match> duplicates = nearDuplicates == null
+                ? new ArrayList<>(Collections.nCopies(chunks.size(), null))
+                : nearDuplicates.check(startIndex, chunks, simhashes);
+        return new EmbeddedBatch(hashes, reused, embeddings, simhashes, duplicates);
+    }
+
+    /**
+     * 把一批已比对、向量化的文档块转换为待写入的记录和复用块的更新参数
+     * @param startIndex 该批第一块在文档中的序号
+     */
+    public void collect(KbDocument kbDoc, int startIndex, List<String> chunks, EmbeddedBatch batch,
+                        List<ChunkRecord> records, List<Object[]> reusedArgs) {
+        Long docId = kbDoc.getId();
+        Integer docVersion = kbDoc.getDocVersion();
+        for (int i = 0; i < chunks.size(); i++) {
+            int chunkIndex = startIndex + i;
+            ChunkDiff.ExistingChunk existing = batch.getReused().get(i);
+            if (existing != null) {
+                reusedArgs.add(new Object[]{docVersion, chunkIndex, existing.getId()});
+                continue;
+            }
+            NearDuplicateDetector.Match duplicate = batch.getDuplicates().get(i);
+            if (duplicate != null && duplicate.isDrop()) {
+                continue;
+            }
+            Map<String, Object> metadataMap = new HashMap<>();
+            metadataMap.put("source", "rabbitmq");
+            metadataMap.put("filename", kbDoc.getFilename());
+            metadataMap.put("file_id", docId);
+            metadataMap.put("chunk_index", chunkIndex);
+            if (duplicate != null && duplicate.getCanonicalIndex() != null) {
+                // 本文档内的重复，原块可能还没有写库，完成时按序号补上 duplicate_of
+                metadataMap.put(DUPLICATE_OF_CHUNK, duplicate.getCanonicalIndex());
+            }
+
+            String metadataJson;
+            try {
+                metadataJson = objectMapper.writeValueAsString(metadataMap);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("元数据序列化失败: " + e.getMessage(), e);
+            }
+            records.add(new ChunkRecord(docId, docVersion, chunks.get(i), batch.getContentHashes().get(i),
+                    metadataJson, batch.getEmbeddings().get(i), batch.getSimhashes().get(i),
+                    duplicate == null ? null : duplicate.getCanonicalId()));
+        }
+    }
+
+    /**
+     * 写入新增块并把复用块标记为当前版本，需在调用方的事务中执行
+     */
+    public void write(List<ChunkRecord> records, List<Object[]> reusedArgs) {
+        long begin = System.nanoTime();
+        if (!records.isEmpty()) {
+            chunkWriter.write(records);
+        }
+        if (!reusedArgs.isEmpty()) {
+            jdbcTemplate.batchUpdate("""
+                      UPDATE document_chunks
+                      SET doc_version = ?, metadata = jsonb_set(metadata, '{chunk_index}', to_jsonb(?::int))
+                      WHERE id = ?
+                  """, reusedArgs);
+        }
+        ingestionGovernor.recordWrite((System.nanoTime() - begin) / 1_000_000);
+    }
+
+    /**
+     * 把本文档内的重复块指向同一版本中的原块，原块本身与库中的块重复时指向库中的块
+     */
+    public int linkInDocumentDuplicates(Long docId, int docVersion) {
+        return jdbcClient.sql("""
+                      UPDATE document_chunks d
+                      SET duplicate_of = COALESCE(c.duplicate_of, c.id)
+                      FROM document_chunks c
+                      WHERE d.doc_id = :docId AND d.doc_version = :version AND d.duplicate_of IS NULL
+                        AND d.metadata->>'duplicate_of_chunk' IS NOT NULL
+                        AND c.doc_id = d.doc_id AND c.doc_version = d.doc_version
+                        AND (c.metadata->>'chunk_index')::int = (d.metadata->>'duplicate_of_chunk')::int
+                  """)
+                .param("docId", docId)
+                .param("version", docVersion)
+                .update();
+    }
+
+    /**
+     * 删除新版本中已经不存在的旧块
+     * 其他块作为近似重复指向这些旧块时，先把旧块的向量复制过去，转为独立的块
+     */
+    public int deleteStaleChunks(Long docId, int docVersion) {
+        jdbcClient.sql("""
+                      UPDATE document_chunks d
+                      SET embedding = c.embedding, duplicate_of = NULL
+                      FROM document_chunks c
+                      WHERE d.duplicate_of = c.id AND c.doc_id = ? AND c.doc_version <> ?
+                        AND NOT (d.doc_id = c.doc_id AND d.doc_version <> ?)
+                  """)
+                .param(docId)
+                .param(docVersion)
+                .param(docVersion)
+                .update();
+        return jdbcClient.sql("DELETE FROM document_chunks WHERE doc_id = ? AND doc_version <> ?")
+                .param(docId)
+                .param(docVersion)
+                .update();
+    }
+
+    /**
+     * 处理失败情况
+     * @return 本节点仍持有该文档（防护令牌一致）时返回 true
+     */
+    public boolean markFailed(Long docId, long fencingToken, Exception e) {
+        return markStatus(docId, fencingToken, "FAILED", e);
+    }
+
+    /**
+     * 失败后已安排延迟重试
+     * @return 本节点仍持有该文档（防护令牌一致）时返回 true
+     */
+    public boolean markRetrying(Long docId, long fencingToken, Exception e) {
+        return markStatus(docId, fencingToken, "RETRYING", e);
+    }
+
+    /**
+     * 只更新状态和错误信息，并校验防护令牌：租约已被其他节点接管时不改动，也不覆盖断点、版本等其他列
+     * 更新失败（如数据库不可用）时按仍持有处理，由调用方照常安排重试
+     */
+    private boolean markStatus(Long docId, long fencingToken, String status, Exception e) {
+        try {
+            String errorMsg = e.getMessage();
+            if (errorMsg != null && errorMsg.length() > 1000) {
+                errorMsg = errorMsg.substring(0, 1000) + "...";
+            }
+            int updated = jdbcClient.sql("""
+                          UPDATE kb_documents SET status = :status, error_message = :error
+                          WHERE id = :id AND lease_token = :token
+                      """)
+                    .param("status", status)
+                    .param("error", errorMsg)
+                    .param("id", docId)
+                    .param("token", fencingToken)
+                    .update();
+            if (updated == 0) {
+                log.warn("文档已被删除或由其他节点接管，不更新状态，docId={}", docId);
+                return false;
+            }
+            documentRepository.findById(docId).ifPresent(docStatusService::publish);
+            log.info("已更新文档状态为{}，docId={}", status, docId);
+        } catch (Exception ex) {
+            log.error("更新失败状态时出错", ex);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,217 @@
+package org.example.rag.ingest;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文档处理租约
+ * 1. Redis 租约保证同一时间只有一个存活节点处理同一文档，持有期间定时续期，节点宕机后租约到期自动释放
+ * 2. 释放和续期都先比对持有者，不会删掉或延长其他节点的租约
+ * 3. 领取时在数据库中对 kb_documents 做条件更新：已完成的文档不再领取，同时把 lease_token 加一作为防护令牌；
+ *    之后所有写库都带上 lease_token 条件，租约丢失后仍在运行的旧节点写不进去
+ * 4. 上传新版本时同样把 lease_token 加一，仍在处理旧版本的节点下一次写库即失败并放弃；
+ *    新版本的消息在旧节点释放租约前到达时抛出 LeaseBusyException，由调用方延迟重新投递
+ * 续期在专用线程上执行，不与其他 @Scheduled 任务共用调度线程，发件箱投递等慢任务不会拖到租约过期。
+ */
+@Slf4j
+@Component
+public class DocumentLeaseManager implements DisposableBean {
+
+    private static final String LEASE_KEY_PREFIX = "rag:lease:";
+
+    /**
+     * 持有者一致时续期
+     */
+    private static final RedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('get', KEYS[1]) == ARGV[1] then
+                return redis.call('pexpire', KEYS[1], ARGV[2])
+            end
+            return 0
+            """, Long.class);
+    /**
+     * 持有者一致时删除
+     */
+    private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('get', KEYS[1]) == ARGV[1] then
+                return redis.call('del', KEYS[1])
+            end
+            return 0
+            """, Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final JdbcClient jdbcClient;
+    private final Duration leaseTtl;
+    private final long renewIntervalMillis;
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lease-renewer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * 本节点标识，写入租约值便于排查
+     */
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    private final Map<Long, Lease> activeLeases = new ConcurrentHashMap<>();
+
+    public DocumentLeaseManager(StringRedisTemplate stringRedisTemplate, JdbcClient jdbcClient,
+                                @Value("${rag.lease.ttl-ms:30000}") long leaseTtlMillis,
+                                @Value("${rag.lease.renew-interval-ms:10000}") long renewIntervalMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.jdbcClient = jdbcClient;
+        this.leaseTtl = Duration.ofMillis(leaseTtlMillis);
+        this.renewIntervalMillis = renewIntervalMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        renewer.scheduleWithFixedDelay(this::renew, renewIntervalMillis, renewIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        renewer.shutdownNow();
+    }
+
+    /**
+     * 文档处理租约
+     */
+    public static class Lease {
+        private final Long docId;
+        private final String owner;
+        private volatile long fencingToken;
+        private volatile boolean lost;
+
+        private Lease(Long docId, String owner) {
+            this.docId = docId;
+            this.owner = owner;
+        }
+
+        public Long getDocId() {
+            return docId;
+        }
+
+        /**
+         * 防护令牌，写库时作为 lease_token 条件
+         */
+        public long getFencingToken() {
+            return fencingToken;
+        }
+
+        public boolean isLost() {
+            return lost;
+        }
+
+        /**
+         * 租约已丢失时抛出 LeaseLostException，长任务应在每一步之前检查
+         */
+        public void checkValid() {
+            if (lost) {
+                throw new LeaseLostException("文档租约已失效，停止处理，docId=" + docId);
+            }
+        }
+    }
+
+    /**
+     * 尝试领取文档
+     * @param docVersion 消息对应的文档版本，为空时不校验
+     * @return 领取成功返回租约；文档已完成、不存在或已有更新的版本时返回 null
+     * @throws LeaseBusyException 其他节点正在处理该文档，调用方需延迟重新投递消息
+     */
+    public Lease tryAcquire(Long docId, Integer docVersion) {
+        String key = LEASE_KEY_PREFIX + docId;
+        Lease lease = new Lease(docId, nodeId + ":" + UUID.randomUUID());
+        Boolean acquired = stringRedisTemplate.opsForValue().setIfAbsent(key, lease.owner, leaseTtl);
+        if (!Boolean.TRUE.equals(acquired)) {
+            throw new LeaseBusyException("文档正由其他消费者处理，docId=" + docId
+                    + ", 持有者=" + stringRedisTemplate.opsForValue().get(key));
+        }
+
+        // 数据库条件更新：未完成且版本与消息一致的文档才能领取，同时递增防护令牌
+        // 旧版本的消息（如重试中的消息）不会把新版本标记为处理中
+        Optional<Long> token;
+        try {
+            token = jdbcClient.sql("""
+                          UPDATE kb_documents
+                          SET status = 'PROCESSING', lease_token = COALESCE(lease_token, 0) + 1
+                          WHERE id = ? AND status <> 'COMPLETED'
+                            AND COALESCE(doc_version, 1) = COALESCE(CAST(? AS INTEGER), doc_version, 1)
+                          RETURNING lease_token
+                      """)
+                    .param(docId)
+                    .param(docVersion)
+                    .query(Long.class)
+                    .optional();
+        } catch (RuntimeException e) {
+            releaseKey(key, lease.owner);
+            throw e;
+        }
+        if (token.isEmpty()) {
+            releaseKey(key, lease.owner);
+            log.warn("文档不存在、当前版本已处理完成或消息版本已过期，跳过，docId={}, 消息版本={}", docId, docVersion);
+            return null;
+        }
+        lease.fencingToken = token.get();
+        activeLeases.put(docId, lease);
+        log.info("领取文档成功，docId={}, 防护令牌={}", docId, lease.fencingToken);
+        return lease;
+    }
+
+    /**
+     * 释放租约，只删除自己持有的租约
+     */
+    public void release(Lease lease) {
+        if (lease == null) {
+            return;
+        }
+        activeLeases.remove(lease.docId, lease);
+        try {
+            releaseKey(LEASE_KEY_PREFIX + lease.docId, lease.owner);
+        } catch (Exception e) {
+            // 释放失败时等待租约自然到期
+            log.warn("释放文档租约失败，docId={}", lease.docId, e);
+        }
+    }
+
+    /**
+     * 定时为本节点持有的租约续期，续期失败的租约标记为丢失
+     * 每个租约单独捕获异常，异常不会逃出任务而终止后续的定时续期
+     */
+    public void renew() {
+        for (Lease lease : activeLeases.values()) {
+            try {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, List.of(LEASE_KEY_PREFIX + lease.docId),
+                        lease.owner, String.valueOf(leaseTtl.toMillis()));
+                if (renewed == null || renewed == 0) {
+                    lease.lost = true;
+                    activeLeases.remove(lease.docId, lease);
+                    log.error("文档租约续期失败，已被其他节点接管或已过期，docId={}", lease.docId);
+                }
+            } catch (Exception e) {
+                // Redis 暂时不可用时保留租约，下次继续续期；真正过期后由防护令牌兜底
+                log.warn("文档租约续期出错，docId={}", lease.docId, e);
+            }
+        }
+    }
+
+    private void releaseKey(String key, String owner) {
+        stringRedisTemplate.execute(RELEASE_SCRIPT, List.of(key), owner);
+    }
+}
@@ -0,0 +1,10 @@
+package org.example.rag.ingest;
+
+/**
+ * 待处理的文档记录已不存在（如已被删除），重试也不会成功
+ */
+public class DocumentMissingException extends IllegalArgumentException {
+    public DocumentMissingException(Long docId) {
+        super("文档不存在，docId=" + docId);
+    }
+}
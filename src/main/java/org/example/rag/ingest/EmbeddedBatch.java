@@ -0,0 +1,38 @@
+package org.example.rag.ingest;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 经过比对和向量化的一批文档块，各列表与批内文档块一一对应
+ */
+@Data
+@AllArgsConstructor
+public class EmbeddedBatch {
+    private List<String> contentHashes;
+    /**
+     * 可复用的旧块，新增的块为 null
+     */
+    private List<ChunkDiff.ExistingChunk> reused;
+    /**
+     * 新增块的向量，复用的块和近似重复的块为 null
+     */
+    private List<List<Double>> embeddings;
+    /**
+     * 新增块的 SimHash 指纹，复用的块或检测关闭时为 null
+     */
+    private List<Long> simhashes;
+    /**
+     * 近似重复检测结果，不是近似重复的为 null
+     */
+    private List<NearDuplicateDetector.Match> duplicates;
+
+    /**
+     * 第 i 块是否需要向量化：既不是复用的旧块，也不是近似重复
+     */
+    public boolean needsEmbedding(int i) {
+        return reused.get(i) == null && duplicates.get(i) == null;
+    }
+}
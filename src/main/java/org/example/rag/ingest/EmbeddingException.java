@@ -0,0 +1,14 @@
+package org.example.rag.ingest;
+
+/**
+ * 文档块向量化失败，入库时按可重试处理
+ */
+public class EmbeddingException extends IllegalStateException {
+    public EmbeddingException(String message) {
+        super(message);
+    }
+
+    public EmbeddingException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
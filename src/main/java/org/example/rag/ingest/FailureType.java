@@ -0,0 +1,85 @@
+package org.example.rag.ingest;
+
+import org.apache.tika.exception.TikaException;
+import org.example.rag.service.StorageReadException;
+import org.springframework.dao.DataAccessException;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * 文档处理失败的类型，决定是否进入延迟重试
+ */
+public enum FailureType {
+    /**
+     * 文件无法解析，重试也不会成功
+     */
+    PARSE(false),
+    /**
+     * 解析超时或输出超过上限，多为畸形文件，不重试
+     */
+    PARSE_LIMIT(false),
+    /**
+     * 向量化服务限流
+     */
+    EMBEDDING_THROTTLED(true),
+    /**
+     * 向量化服务其他错误
+     */
+    EMBEDDING(true),
+    /**
+     * 对象存储读取失败
+     */
+    STORAGE(true),
+    /**
+     * 数据库写入失败
+     */
+    DATABASE(true),
+    /**
+     * 文档记录已不存在
+     */
+    NOT_FOUND(false),
+    UNKNOWN(true);
+
+    private final boolean retryable;
+
+    FailureType(boolean retryable) {
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    /**
+     * 按异常链中的异常类型判断失败类型，优先识别最具体的原因，不依赖异常信息的措辞
+     * 限流只在向量化失败中识别，按服务商返回的 HTTP 状态码判断
+     */
+    public static FailureType classify(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ParseLimitException) {
+                return PARSE_LIMIT;
+            }
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof TikaException || t instanceof SAXException) {
+                return PARSE;
+            }
+            if (t instanceof DataAccessException || t instanceof SQLException) {
+                return DATABASE;
+            }
+            if (t instanceof EmbeddingException) {
+                return IngestionGovernor.isRateLimited(t) ? EMBEDDING_THROTTLED : EMBEDDING;
+            }
+            if (t instanceof DocumentMissingException) {
+                return NOT_FOUND;
+            }
+            if (t instanceof StorageReadException || t instanceof IOException
+                    || t.getClass().getName().startsWith("com.aliyun.oss")) {
+                return STORAGE;
+            }
+        }
+        return UNKNOWN;
+    }
+}
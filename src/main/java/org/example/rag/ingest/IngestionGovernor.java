@@ -0,0 +1,280 @@
+package org.example.rag.ingest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.dto.GovernorStats;
+import org.springframework.ai.retry.NonTransientAiException;
+import org.springframework.ai.retry.TransientAiException;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientResponseException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 入库调速器
+ * 1. 全节点共用一个令牌桶，向量化前按文本 token 数申请，所有消费者合计不超过服务商的 token/秒 限额
+ * 2. 收集向量化耗时、限流（429）和失败次数、写库耗时，按 AIMD 周期性调整消费者并发：
+ *    出现限流、失败率过高或耗时超过目标时并发减半，否则每个周期加一
+ * 3. 被限流时同时按比例降低令牌桶速率，之后每个正常周期逐步恢复到配置的预算
+ * 4. 周期内没有向量化调用时不做调整，并清空耗时滑动平均，避免空闲节点一直沿用空闲前的拥塞耗时
+ */
+@Slf4j
+@Component
+public class IngestionGovernor {
+
+    /**
+     * 单文档消费者的监听器ID
+     */
+    public static final String UPLOAD_LISTENER_ID = "ragUploadListener";
+
+    /**
+     * 耗时滑动平均的权重
+     */
+    private static final double EWMA_ALPHA = 0.2;
+    /**
+     * 服务商限流的 HTTP 状态码
+     */
+    private static final int TOO_MANY_REQUESTS = 429;
+    /**
+     * 限流退避的最长等待
+     */
+    private static final long MAX_THROTTLE_BACKOFF_MS = 60 * 1000;
+
+    private final RabbitListenerEndpointRegistry listenerRegistry;
+    private final double tokenBudget;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long targetEmbedLatency;
+    private final long targetWriteLatency;
+    private final double maxErrorRate;
+    private final long throttleBackoff;
+    /**
+     * 当前设定的消费者并发数
+     */
+    private volatile int concurrency;
+
+    // 令牌桶
+    private double tokensPerSecond;
+    private double availableTokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    // 指标，按周期清零的计数与启动以来的累计值
+    private double embedLatency;
+    private double writeLatency;
+    private long windowCalls;
+    private long windowThrottled;
+    private long windowErrors;
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    public IngestionGovernor(RabbitListenerEndpointRegistry listenerRegistry,
+                             @Value("${rag.governor.tokens-per-second:20000}") double tokenBudget,
+                             @Value("${rag.governor.min-concurrency:1}") int minConcurrency,
+                             @Value("${rag.governor.max-concurrency:10}") int maxConcurrency,
+                             @Value("${rag.governor.target-embed-latency-ms:3000}") long targetEmbedLatency,
+                             @Value("${rag.governor.target-write-latency-ms:1000}") long targetWriteLatency,
+                             @Value("${rag.governor.max-error-rate:0.1}") double maxErrorRate,
+                             @Value("${rag.governor.initial-concurrency:5}") int initialConcurrency,
+                             @Value("${rag.governor.throttle-backoff-ms:1000}") long throttleBackoff) {
+        this.listenerRegistry = listenerRegistry;
+        this.tokenBudget = tokenBudget;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.targetEmbedLatency = targetEmbedLatency;
+        this.targetWriteLatency = targetWriteLatency;
+        this.maxErrorRate = maxErrorRate;
+        this.concurrency = initialConcurrency;
+        this.throttleBackoff = throttleBackoff;
+        this.tokensPerSecond = tokenBudget;
+        this.availableTokens = tokenBudget;
+    }
+
+    /**
+     * 申请向量化额度，超出限额时阻塞到额度足够为止
+     * 允许单次申请超过桶容量，欠下的额度由之后的请求等待偿还
+     */
+    public void acquire(int tokens) {
+        if (tokenBudget <= 0 || tokens <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            availableTokens -= tokens;
+            waitNanos = availableTokens >= 0 ? 0 : (long) (-availableTokens / tokensPerSecond * 1_000_000_000L);
+        }
+        if (waitNanos > 0) {
+            waitedNanos.addAndGet(waitNanos);
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待向量化额度时被中断", e);
+            }
+        }
+    }
+
+    /**
+     * 记录一次向量化调用的结果
+     */
+    public synchronized void recordEmbedding(long latencyMillis, boolean success, boolean rateLimited) {
+        embedLatency = ewma(embedLatency, latencyMillis);
+        windowCalls++;
+        if (rateLimited) {
+            windowThrottled++;
+            throttled.incrementAndGet();
+            // 立即降速并清空已积累的额度，不等下一个调整周期，其他线程的下一批也随之等待
+            tokensPerSecond = Math.max(tokenBudget * 0.1, tokensPerSecond * 0.7);
+            availableTokens = Math.min(availableTokens, 0);
+        } else if (!success) {
+            windowErrors++;
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * 被限流后退避，第 n 次等待 throttleBackoff * 2^n，最长一分钟
+     * @param attempt 本批已因限流重试的次数，从 0 开始
+     */
+    public void backOff(int attempt) {
+        long backoffMillis = Math.min(MAX_THROTTLE_BACKOFF_MS, throttleBackoff << Math.min(attempt, 20));
+        if (backoffMillis <= 0) {
+            return;
+        }
+        waitedNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(backoffMillis));
+        try {
+            TimeUnit.MILLISECONDS.sleep(backoffMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("限流退避时被中断", e);
+        }
+    }
+
+    /**
+     * 记录一次写库耗时
+     */
+    public synchronized void recordWrite(long latencyMillis) {
+        writeLatency = ewma(writeLatency, latencyMillis);
+    }
+
+    /**
+     * 判断异常是否为服务商限流（HTTP 429）
+     * Spring AI 的错误处理器把响应转成 AiException，消息固定以状态码开头（"429 - ..."），只认这个前缀，
+     * 不在任意异常信息中查找关键字，文件名、正文里出现的 "429" 不会被误判
+     */
+    public static boolean isRateLimited(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof RestClientResponseException response) {
+                if (response.getStatusCode().value() == TOO_MANY_REQUESTS) {
+                    return true;
+                }
+            } else if (t instanceof NonTransientAiException || t instanceof TransientAiException) {
+                String message = t.getMessage();
+                if (message != null && message.startsWith(TOO_MANY_REQUESTS + " ")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 周期性调整并发和令牌速率
+     */
+    @Scheduled(fixedDelayString = "${rag.governor.adjust-interval-ms:5000}")
+    public void adjust() {
+        SimpleMessageListenerContainer container = uploadContainer();
+        boolean congested;
+        String reason;
+        synchronized (this) {
+            if (windowCalls == 0) {
+                // 空闲周期：旧耗时不再代表当前状况，下次调用重新开始统计
+                embedLatency = 0;
+                writeLatency = 0;
+                return;
+            }
+            double errorRate = (double) windowErrors / windowCalls;
+            if (windowThrottled > 0) {
+                congested = true;
+                reason = "限流" + windowThrottled + "次";
+            } else if (errorRate > maxErrorRate) {
+                congested = true;
+                reason = String.format("失败率%.0f%%", errorRate * 100);
+            } else if (embedLatency > targetEmbedLatency) {
+                congested = true;
+                reason = String.format("向量化耗时%.0fms", embedLatency);
+            } else if (writeLatency > targetWriteLatency) {
+                congested = true;
+                reason = String.format("写库耗时%.0fms", writeLatency);
+            } else {
+                congested = false;
+                reason = null;
+                // 正常周期逐步恢复令牌速率
+                tokensPerSecond = Math.min(tokenBudget, tokensPerSecond + tokenBudget * 0.05);
+            }
+            windowCalls = 0;
+            windowThrottled = 0;
+            windowErrors = 0;
+        }
+        if (container == null) {
+            return;
+        }
+
+        int current = concurrency;
+        int next = congested ? Math.max(minConcurrency, current / 2) : Math.min(maxConcurrency, current + 1);
+        if (next != current) {
+            // 先调整上限再调整当前值，避免出现当前值大于上限
+            if (next > current) {
+                container.setMaxConcurrentConsumers(next);
+                container.setConcurrentConsumers(next);
+            } else {
+                container.setConcurrentConsumers(next);
+                container.setMaxConcurrentConsumers(next);
+            }
+            concurrency = next;
+            if (congested) {
+                log.warn("入库拥塞（{}），消费者并发 {} -> {}", reason, current, next);
+            } else {
+                log.info("入库通畅，消费者并发 {} -> {}", current, next);
+            }
+        }
+    }
+
+    public synchronized GovernorStats stats() {
+        GovernorStats stats = new GovernorStats();
+        stats.setConcurrency(uploadContainer() == null ? 0 : concurrency);
+        stats.setMinConcurrency(minConcurrency);
+        stats.setMaxConcurrency(maxConcurrency);
+        stats.setTokensPerSecond(tokensPerSecond);
+        stats.setTokenBudget(tokenBudget);
+        stats.setEmbedLatencyMillis(embedLatency);
+        stats.setWriteLatencyMillis(writeLatency);
+        stats.setThrottled(throttled.get());
+        stats.setErrors(errors.get());
+        stats.setWaitedMillis(waitedNanos.get() / 1_000_000);
+        return stats;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsedSeconds = (now - lastRefillNanos) / 1_000_000_000.0;
+        lastRefillNanos = now;
+        // 桶容量为一秒的额度
+        availableTokens = Math.min(tokensPerSecond, availableTokens + elapsedSeconds * tokensPerSecond);
+    }
+
+    private SimpleMessageListenerContainer uploadContainer() {
+        MessageListenerContainer container = listenerRegistry.getListenerContainer(UPLOAD_LISTENER_ID);
+        return container instanceof SimpleMessageListenerContainer simple ? simple : null;
+    }
+
+    private static double ewma(double current, long sample) {
+        return current == 0 ? sample : current + EWMA_ALPHA * (sample - current);
+    }
+}
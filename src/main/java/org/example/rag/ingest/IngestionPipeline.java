@@ -0,0 +1,280 @@
+package org.example.rag.ingest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.dto.IngestionStageStats;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 分阶段并行的入库流水线
+ * 阶段划分：解析分块（消费者线程）→ 向量化（embed 线程池）→ 写库（write 线程池）
+ * 1. 各阶段线程池独立配置，阶段之间通过有界队列衔接
+ * 2. 每篇文档最多 maxInFlightPerDoc 个批次在途，全节点最多 maxInFlight 个，超出时解析线程阻塞（背压）
+ * 3. 同一文档的批次按顺序写库，第 N 批写库的同时第 N+1 批可以在向量化
+ */
+@Slf4j
+@Component
+public class IngestionPipeline implements DisposableBean {
+
+    /**
+     * 向量化阶段
+     */
+    @FunctionalInterface
+    public interface EmbedStage<E> {
+        E embed(int startIndex, List<String> chunks);
+    }
+
+    /**
+     * 写库阶段
+     */
+    @FunctionalInterface
+    public interface WriteStage<E> {
+        void write(int startIndex, List<String> chunks, long endOffset, long bytesRead, E embedded);
+    }
+
+    private final ThreadPoolExecutor embedExecutor;
+    private final ThreadPoolExecutor writeExecutor;
+    private final Semaphore globalInFlight;
+    private final int maxInFlightPerDoc;
+
+    private final StageCounter parseCounter = new StageCounter();
+    private final StageCounter embedCounter = new StageCounter();
+    private final StageCounter writeCounter = new StageCounter();
+    private final AtomicInteger activeRuns = new AtomicInteger();
+    private final long startedAt = System.nanoTime();
+
+    public IngestionPipeline(@Value("${rag.pipeline.embed-threads:8}") int embedThreads,
+                             @Value("${rag.pipeline.write-threads:4}") int writeThreads,
+                             @Value("${rag.pipeline.max-in-flight:64}") int maxInFlight,
+                             @Value("${rag.pipeline.max-in-flight-per-doc:4}") int maxInFlightPerDoc) {
+        // 队列容量与全局在途上限一致，配合 globalInFlight 信号量保证不会被拒绝
+        this.embedExecutor = newStageExecutor("ingest-embed-", embedThreads, maxInFlight);
+        this.writeExecutor = newStageExecutor("ingest-write-", writeThreads, maxInFlight);
+        this.globalInFlight = new Semaphore(maxInFlight);
+        this.maxInFlightPerDoc = maxInFlightPerDoc;
+    }
+
+    /**
+     * 为一篇文档开启一次流水线运行
+     */
+    public <E> Run<E> start(Long docId, EmbedStage<E> embedStage, WriteStage<E> writeStage) {
+        activeRuns.incrementAndGet();
+        return new Run<>(docId, embedStage, writeStage);
+    }
+
+    /**
+     * 各阶段的队列深度和吞吐
+     */
+    public List<IngestionStageStats> stats() {
+        IngestionStageStats parse = parseCounter.snapshot("parse");
+        parse.setActiveThreads(activeRuns.get());
+        // 解析阶段的"排队"是因背压而阻塞在提交处的批次数
+        parse.setQueueDepth(parseCounter.waiting.get());
+        return List.of(parse,
+                executorStats(embedCounter.snapshot("embed"), embedExecutor),
+                executorStats(writeCounter.snapshot("write"), writeExecutor));
+    }
+
+    @Override
+    public void destroy() {
+        embedExecutor.shutdown();
+        writeExecutor.shutdown();
+    }
+
+    /**
+     * 单篇文档的一次运行，submit 由解析线程调用
+     */
+    public class Run<E> {
+        private final Long docId;
+        private final EmbedStage<E> embedStage;
+        private final WriteStage<E> writeStage;
+        private final Semaphore inFlight = new Semaphore(maxInFlightPerDoc);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private boolean finished;
+
+        private Run(Long docId, EmbedStage<E> embedStage, WriteStage<E> writeStage) {
+            this.docId = docId;
+            this.embedStage = embedStage;
+            this.writeStage = writeStage;
+        }
+
+        /**
+         * 提交一批文档块，在途批次已满时阻塞
+         * @param bytesRead 提交时已读取的原始文件字节数，原样交给写库阶段
+         */
+        public void submit(int startIndex, List<String> chunks, long endOffset, long bytesRead) {
+            throwIfFailed();
+            acquire();
+            parseCounter.record(chunks.size(), 0, false);
+
+            CompletableFuture<E> embedded = CompletableFuture.supplyAsync(() -> {
+                long begin = System.nanoTime();
+                try {
+                    E result = embedStage.embed(startIndex, chunks);
+                    embedCounter.record(chunks.size(), System.nanoTime() - begin, false);
+                    return result;
+                } catch (RuntimeException e) {
+                    embedCounter.record(0, System.nanoTime() - begin, true);
+                    throw e;
+                }
+            }, embedExecutor);
+
+            tail = tail.thenCombineAsync(embedded, (previous, result) -> {
+                if (failure.get() != null) {
+                    throw new IllegalStateException("流水线已失败，跳过写库，docId=" + docId);
+                }
+                long begin = System.nanoTime();
+                try {
+                    writeStage.write(startIndex, chunks, endOffset, bytesRead, result);
+                    writeCounter.record(chunks.size(), System.nanoTime() - begin, false);
+                    return null;
+                } catch (RuntimeException e) {
+                    writeCounter.record(0, System.nanoTime() - begin, true);
+                    throw e;
+                }
+            }, writeExecutor);
+
+            tail.whenComplete((v, e) -> {
+                if (e != null) {
+                    failure.compareAndSet(null, unwrap(e));
+                }
+                inFlight.release();
+                globalInFlight.release();
+            });
+        }
+
+        /**
+         * 等待所有批次写库完成，任一批次失败则抛出其异常
+         */
+        public void await() {
+            try {
+                tail.join();
+            } catch (CompletionException e) {
+                Throwable cause = failure.get() != null ? failure.get() : unwrap(e);
+                if (cause instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw new IllegalStateException(cause);
+            } finally {
+                finish();
+            }
+        }
+
+        /**
+         * 上游失败时中止：后续批次不再写库，等待在途批次结束
+         */
+        public void abort(Throwable cause) {
+            failure.compareAndSet(null, cause);
+            try {
+                tail.exceptionally(e -> null).join();
+            } finally {
+                finish();
+            }
+        }
+
+        private void acquire() {
+            parseCounter.waiting.incrementAndGet();
+            try {
+                inFlight.acquire();
+                try {
+                    globalInFlight.acquire();
+                } catch (InterruptedException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待流水线空位时被中断，docId=" + docId, e);
+            } finally {
+                parseCounter.waiting.decrementAndGet();
+            }
+        }
+
+        private void throwIfFailed() {
+            Throwable cause = failure.get();
+            if (cause != null) {
+                throw new IllegalStateException("流水线已失败: " + cause.getMessage(), cause);
+            }
+        }
+
+        private void finish() {
+            if (!finished) {
+                finished = true;
+                activeRuns.decrementAndGet();
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private static ThreadPoolExecutor newStageExecutor(String prefix, int threads, int queueCapacity) {
+        AtomicInteger index = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, prefix + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), factory);
+    }
+
+    private IngestionStageStats executorStats(IngestionStageStats stats, ThreadPoolExecutor executor) {
+        stats.setQueueDepth(executor.getQueue().size());
+        stats.setActiveThreads(executor.getActiveCount());
+        stats.setPoolSize(executor.getPoolSize());
+        return stats;
+    }
+
+    /**
+     * 阶段计数器
+     */
+    private class StageCounter {
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong chunks = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        void record(int chunkCount, long nanos, boolean failed) {
+            if (failed) {
+                failures.incrementAndGet();
+            } else {
+                batches.incrementAndGet();
+                chunks.addAndGet(chunkCount);
+            }
+            busyNanos.addAndGet(nanos);
+        }
+
+        IngestionStageStats snapshot(String stage) {
+            IngestionStageStats stats = new IngestionStageStats();
+            stats.setStage(stage);
+            long batchCount = batches.get();
+            stats.setBatches(batchCount);
+            stats.setChunks(chunks.get());
+            stats.setFailures(failures.get());
+            stats.setAvgBatchMillis(batchCount == 0 ? 0 : busyNanos.get() / 1_000_000.0 / batchCount);
+            double uptimeSeconds = (System.nanoTime() - startedAt) / 1_000_000_000.0;
+            stats.setChunksPerSecond(uptimeSeconds <= 0 ? 0 : chunks.get() / uptimeSeconds);
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.example.rag.ingest;
+
+/**
+ * 文档正由其他消费者处理（Redis 租约被占用），消息需要稍后重新投递，不能直接确认丢弃
+ */
+public class LeaseBusyException extends IllegalStateException {
+    public LeaseBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,22 @@
+package org.example.rag.ingest;
+
+/**
+ * 租约已失效（续期失败或已被其他节点接管），当前节点必须停止处理该文档
+ */
+public class LeaseLostException extends IllegalStateException {
+    public LeaseLostException(String message) {
+        super(message);
+    }
+
+    /**
+     * 异常链中是否包含租约失效
+     */
+    public static boolean isCause(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof LeaseLostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,122 @@
+package org.example.rag.ingest;
+
+import org.apache.tika.sax.ContentHandlerDecorator;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * 带解析限额的处理器
+ * 1. 输出字符数超过 maxChars 时中止解析
+ * 2. 解析耗时超过 timeoutNanos 时中止解析，耗时只计解析器自身，不含下游（分块、流水线背压）阻塞的时间，
+ *    向量化变慢不会让正常文档超时
+ * 3. abort 后任何回调都会抛出异常，用于看门狗从外部中止
+ * 超限时抛出包装了 ParseLimitException 的 SAXException，失败类型为 PARSE_LIMIT。
+ */
+public class LimitedContentHandler extends ContentHandlerDecorator {
+
+    private final long maxChars;
+    private final long timeoutNanos;
+    private final String filename;
+    private final long startedAt = System.nanoTime();
+
+    private long chars;
+    /**
+     * 下游处理累计耗时，以及当前下游调用的开始时间（不在下游调用中为 0）
+     * 下游调用结束时先累加耗时再清零开始时间，读取时先读开始时间再读累计耗时，
+     * 看门狗线程在两步之间读取最多把这次调用多算一遍，不会漏算而把下游耗时记到解析器头上。
+     */
+    private volatile long downstreamNanos;
+    private volatile long downstreamSince;
+    private volatile String abortReason;
+
+    public LimitedContentHandler(ContentHandler handler, long maxChars, long timeoutMillis, String filename) {
+        super(handler);
+        this.maxChars = maxChars;
+        this.timeoutNanos = timeoutMillis * 1_000_000;
+        this.filename = filename;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        check();
+        chars += length;
+        if (maxChars > 0 && chars > maxChars) {
+            throw limitExceeded("解析输出超过上限" + maxChars + "字符");
+        }
+        long begin = System.nanoTime();
+        downstreamSince = begin;
+        try {
+            super.characters(ch, start, length);
+        } finally {
+            downstreamNanos += System.nanoTime() - begin;
+            downstreamSince = 0;
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String name, Attributes atts) throws SAXException {
+        check();
+        // 分块处理器在标题和表格处可能切出文档块，同样计入下游耗时
+        long begin = System.nanoTime();
+        downstreamSince = begin;
+        try {
+            super.startElement(uri, localName, name, atts);
+        } finally {
+            downstreamNanos += System.nanoTime() - begin;
+            downstreamSince = 0;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String name) throws SAXException {
+        long begin = System.nanoTime();
+        downstreamSince = begin;
+        try {
+            super.endElement(uri, localName, name);
+        } finally {
+            downstreamNanos += System.nanoTime() - begin;
+            downstreamSince = 0;
+        }
+    }
+
+    /**
+     * 解析器自身已用的时间（毫秒）
+     */
+    public long parserMillis() {
+        long since = downstreamSince;
+        long nanos = downstreamNanos;
+        long now = System.nanoTime();
+        long blocked = nanos + (since > 0 ? now - since : 0);
+        return (now - startedAt - blocked) / 1_000_000;
+    }
+
+    public boolean isTimedOut() {
+        return timeoutNanos > 0 && parserMillis() * 1_000_000 > timeoutNanos;
+    }
+
+    /**
+     * 从外部中止，之后的回调都会抛出异常
+     */
+    public void abort(String reason) {
+        abortReason = reason;
+    }
+
+    private void check() throws SAXException {
+        if (abortReason != null) {
+            throw limitExceeded(abortReason);
+        }
+        if (isTimedOut()) {
+            throw limitExceeded("解析超时，超过" + timeoutNanos / 1_000_000 + "ms");
+        }
+    }
+
+    private SAXException limitExceeded(String reason) {
+        return new SAXException(new ParseLimitException(reason + "，filename=" + filename));
+    }
+}
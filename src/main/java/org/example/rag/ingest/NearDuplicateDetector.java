@@ -0,0 +1,267 @@
+package org.example.rag.ingest;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.KbDocument;
+import org.example.rag.utils.SimHashUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 入库时的近似重复块检测
+ * 新增块向量化之前计算 SimHash，与同一权限组已入库的块及本文档前面的块比较，汉明距离不超过 max-distance 的为候选，
+ * 候选再按片段相似度确认，不低于 min-similarity 的才视为重复：
+ * 1. link（默认）：照常保存正文，不向量化，embedding 为空，duplicate_of 指向原块，检索时跳过
+ * 2. drop：直接丢弃，不保存
+ * 3. off：关闭检测
+ * 本文档内的重复块（如每页重复的页眉）写库时原块还没有 id，先在 metadata 中记下原块序号，
+ * 文档入库完成时由 DocumentIngestSupport.linkInDocumentDuplicates 补上 duplicate_of。
+ * 文档内总是以序号最小的一块为原块：序号更小的块因向量化线程并发而后到时不标记为重复，两块都保留向量。
+ * 库中候选块通过 simhash 四段的表达式索引查找，每批一次查询，只比较同一权限组、未被标记为重复的块。
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class NearDuplicateDetector {
+
+    private final JdbcClient jdbcClient;
+
+    @Value("${rag.dedup.mode:link}")
+    private String mode = "link";
+    /**
+     * 作为候选的最大汉明距离，不超过 3 时分段索引不会漏掉候选
+     */
+    @Value("${rag.dedup.max-distance:2}")
+    private int maxDistance = 2;
+    /**
+     * 确认重复所需的最低片段相似度，默认 1 即归一化后片段完全相同，只改了一个数字的条款不会被当作重复
+     */
+    @Value("${rag.dedup.min-similarity:1.0}")
+    private double minSimilarity = 1.0;
+    /**
+     * 短于该长度（只计字母和数字）的块不参与检测，短文本的指纹不稳定
+     */
+    @Value("${rag.dedup.min-chars:50}")
+    private int minChars = 50;
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * 一个新增块的检测结果
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Match {
+        /**
+         * 库中的原块 id，本文档内的重复为 null
+         */
+        private final Long canonicalId;
+        /**
+         * 本文档内的原块序号，与库中的块重复时为 null
+         */
+        private final Integer canonicalIndex;
+        private final boolean drop;
+    }
+
+    /**
+     * 已出现过的块：指纹、序号和归一化文本
+     */
+    private record Seen(long simhash, int index, String text) {
+    }
+
+    /**
+     * 库中的候选块
+     */
+    private record Candidate(long id, long simhash, String content) {
+    }
+
+    /**
+     * 一篇文档一次入库过程中的检测状态，记录已出现过的块的指纹，多个向量化线程并发调用，方法加锁
+     */
+    public class Scope {
+        private final Long docId;
+        private final String permissionGroup;
+        private final List<Map<Integer, List<Seen>>> seen = new ArrayList<>(SimHashUtil.BANDS);
+
+        private Scope(KbDocument kbDoc) {
+            this.docId = kbDoc.getId();
+            this.permissionGroup = kbDoc.getPermissionGroup();
+            for (int i = 0; i < SimHashUtil.BANDS; i++) {
+                seen.add(new HashMap<>());
+            }
+        }
+
+        /**
+         * 检测一批块，已复用旧块的位置传入 null 跳过
+         * @param startIndex 该批第一块在文档中的序号
+         * @return 与 chunks 一一对应，不是近似重复或未参与检测的为 null
+         */
+        public synchronized List<Match> check(int startIndex, List<String> chunks, List<Long> simhashes) {
+            boolean drop = "drop".equals(mode);
+            List<Match> matches = new ArrayList<>(chunks.size());
+            Map<Integer, Long> pending = new LinkedHashMap<>();
+            Map<Integer, String> texts = new HashMap<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                matches.add(null);
+                Long simhash = simhashes.get(i);
+                if (simhash == null || !eligible(chunks.get(i))) {
+                    continue;
+                }
+                checked.incrementAndGet();
+                String text = SimHashUtil.normalize(chunks.get(i));
+                Seen first = firstOccurrence(simhash, startIndex + i, text);
+                if (first != null) {
+                    (drop ? dropped : linked).incrementAndGet();
+                    matches.set(i, new Match(null, first.index(), drop));
+                    continue;
+                }
+                remember(new Seen(simhash, startIndex + i, text));
+                pending.put(i, simhash);
+                texts.put(i, text);
+            }
+            if (pending.isEmpty()) {
+                return matches;
+            }
+
+            List<Candidate> candidates = loadCandidates(docId, permissionGroup, pending.values());
+            pending.forEach((index, simhash) -> {
+                Long canonicalId = nearest(simhash, texts.get(index), candidates);
+                if (canonicalId == null) {
+                    return;
+                }
+                (drop ? dropped : linked).incrementAndGet();
+                matches.set(index, new Match(canonicalId, null, drop));
+            });
+            return matches;
+        }
+
+        /**
+         * 本文档中序号小于 index 且确认重复的块里序号最小的一块
+         */
+        private Seen firstOccurrence(long simhash, int index, String text) {
+            Seen first = null;
+            for (int band = 0; band < SimHashUtil.BANDS; band++) {
+                List<Seen> bucket = seen.get(band).get(SimHashUtil.band(simhash, band));
+                if (bucket == null) {
+                    continue;
+                }
+                for (Seen other : bucket) {
+                    if (other.index() < index && (first == null || other.index() < first.index())
+                            && SimHashUtil.distance(simhash, other.simhash()) <= maxDistance
+                            && SimHashUtil.similarity(text, other.text()) >= minSimilarity) {
+                        first = other;
+                    }
+                }
+            }
+            return first;
+        }
+
+        private void remember(Seen chunk) {
+            for (int band = 0; band < SimHashUtil.BANDS; band++) {
+                seen.get(band).computeIfAbsent(SimHashUtil.band(chunk.simhash(), band), k -> new ArrayList<>())
+                        .add(chunk);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return !"off".equals(mode);
+    }
+
+    /**
+     * 为一篇文档开始检测，关闭时返回 null
+     */
+    public Scope open(KbDocument kbDoc) {
+        return isEnabled() ? new Scope(kbDoc) : null;
+    }
+
+    /**
+     * 启动以来参与检测、标记为重复和丢弃的块数
+     */
+    public Map<String, Long> stats() {
+        return Map.of("checked", checked.get(), "linked", linked.get(), "dropped", dropped.get());
+    }
+
+    private boolean eligible(String chunk) {
+        int letters = 0;
+        for (int i = 0; i < chunk.length() && letters < minChars; i++) {
+            if (Character.isLetterOrDigit(chunk.charAt(i))) {
+                letters++;
+            }
+        }
+        return letters >= minChars;
+    }
+
+    /**
+     * 查出同一权限组中任一段与这批指纹相同的块，排除本文档自己的块（旧版本的块会在本次入库结束时删除）
+     */
+    private List<Candidate> loadCandidates(Long docId, String permissionGroup, Iterable<Long> simhashes) {
+        List<Set<Integer>> bands = new ArrayList<>(SimHashUtil.BANDS);
+        for (int band = 0; band < SimHashUtil.BANDS; band++) {
+            bands.add(new HashSet<>());
+        }
+        for (Long simhash : simhashes) {
+            for (int band = 0; band < SimHashUtil.BANDS; band++) {
+                bands.get(band).add(SimHashUtil.band(simhash, band));
+            }
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        jdbcClient.sql("""
+                      SELECT dc.id, dc.simhash, dc.content
+                      FROM document_chunks dc
+                      JOIN kb_documents kd ON dc.doc_id = kd.id
+                      WHERE kd.permission_group = :group
+                        AND dc.doc_id <> :docId
+                        AND dc.duplicate_of IS NULL
+                        AND dc.simhash IS NOT NULL
+                        AND (((dc.simhash >> 48) & 65535) IN (:b0)
+                          OR ((dc.simhash >> 32) & 65535) IN (:b1)
+                          OR ((dc.simhash >> 16) & 65535) IN (:b2)
+                          OR (dc.simhash & 65535) IN (:b3))
+                  """)
+                .param("group", permissionGroup)
+                .param("docId", docId)
+                .param("b0", bands.get(0))
+                .param("b1", bands.get(1))
+                .param("b2", bands.get(2))
+                .param("b3", bands.get(3))
+                .query(rs -> {
+                    candidates.add(new Candidate(rs.getLong("id"), rs.getLong("simhash"), rs.getString("content")));
+                });
+        return candidates;
+    }
+
+    private Long nearest(long simhash, String text, List<Candidate> candidates) {
+        Long best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (Candidate candidate : candidates) {
+            int distance = SimHashUtil.distance(simhash, candidate.simhash());
+            if (distance > maxDistance || (best != null
+                    && (distance > bestDistance || (distance == bestDistance && candidate.id() > best)))) {
+                continue;
+            }
+            if (candidate.content() == null
+                    || SimHashUtil.similarity(text, SimHashUtil.normalize(candidate.content())) < minSimilarity) {
+                continue;
+            }
+            // 距离相同时取 id 最小的，即最早入库的块
+            best = candidate.id();
+            bestDistance = distance;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,16 @@
+package org.example.rag.ingest;
+
+import org.apache.tika.exception.TikaException;
+
+/**
+ * 解析超过时间或输出上限，文档被中止解析
+ */
+public class ParseLimitException extends TikaException {
+    public ParseLimitException(String message) {
+        super(message);
+    }
+
+    public ParseLimitException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
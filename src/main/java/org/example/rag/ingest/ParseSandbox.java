@@ -0,0 +1,192 @@
+package org.example.rag.ingest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.AutoDetectParserFactory;
+import org.apache.tika.parser.ParserFactoryFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.xml.sax.ContentHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 解析沙箱
+ * 每篇文档的解析都带输出字符上限和解析耗时上限（见 LimitedContentHandler），超限的文档失败类型为 PARSE_LIMIT，
+ * 不重试，直接进入死信队列。Tika 解析按 isolation 配置运行：
+ * 1. thread（默认）：在独立的解析线程中运行，消费者线程作为看门狗，超时后中断解析线程并关闭输入流；
+ *    不响应中断的解析线程最多占用 max-threads 个名额，名额用完时新文档稍后重试，不会拖住消费者线程
+ * 2. fork：交给 Tika ForkParser 在子 JVM 中解析，子进程有独立的堆上限，超时或内存溢出时子进程被杀掉，
+ *    不影响本节点
+ * 3. inline：在消费者线程中直接解析，只有输出和回调时的耗时检查
+ * 纯文本类路径不经过 Tika，始终在当前线程运行，同样受输出和耗时限制。
+ */
+@Slf4j
+@Component
+public class ParseSandbox implements DisposableBean {
+
+    private final ParserRouter parserRouter;
+    private final String isolation;
+    private final long timeoutMillis;
+    private final long maxOutputChars;
+    private final ThreadPoolExecutor parseExecutor;
+    private final ForkParser forkParser;
+
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong limitExceeded = new AtomicLong();
+
+    public ParseSandbox(ParserRouter parserRouter,
+                        @Value("${rag.parse.isolation:thread}") String isolation,
+                        @Value("${rag.parse.timeout-ms:300000}") long timeoutMillis,
+                        @Value("${rag.parse.max-output-chars:50000000}") long maxOutputChars,
+                        @Value("${rag.parse.max-threads:16}") int maxThreads,
+                        @Value("${rag.parse.fork.pool-size:4}") int forkPoolSize,
+                        @Value("${rag.parse.fork.heap:512m}") String forkHeap,
+                        @Value("${rag.parse.fork.tika-bin:}") String tikaBin) {
+        this.parserRouter = parserRouter;
+        this.isolation = isolation;
+        this.timeoutMillis = timeoutMillis;
+        this.maxOutputChars = maxOutputChars;
+
+        AtomicInteger index = new AtomicInteger();
+        // 不排队：解析线程都被占用时立即拒绝，由调用方按可重试失败处理
+        this.parseExecutor = new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "parse-sandbox-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if ("fork".equals(isolation)) {
+            // 配置了 tika-bin 目录时从该目录加载 Tika，否则把当前类路径上的 Tika 传给子进程
+            this.forkParser = tikaBin.isBlank()
+                    ? new ForkParser(ParseSandbox.class.getClassLoader(), new AutoDetectParser())
+                    : new ForkParser(Path.of(tikaBin),
+                    new ParserFactoryFactory(AutoDetectParserFactory.class.getName(), Map.of()));
+            forkParser.setPoolSize(forkPoolSize);
+            forkParser.setJavaCommand(List.of("java", "-Xmx" + forkHeap, "-Djava.awt.headless=true"));
+            forkParser.setServerParseTimeoutMillis(timeoutMillis);
+        } else {
+            this.forkParser = null;
+        }
+        log.info("解析沙箱模式={}, 超时={}ms, 输出上限={}字符", isolation, timeoutMillis, maxOutputChars);
+    }
+
+    /**
+     * 在限额内解析文件，正文交给 handler 处理
+     */
+    public void parse(InputStream stream, String filename, String filetype, ContentHandler handler) throws Exception {
+        ParserRouter.Format format = ParserRouter.resolve(filetype, filename);
+        LimitedContentHandler limited = new LimitedContentHandler(handler, maxOutputChars, timeoutMillis, filename);
+        try {
+            if (format.isPlain() || "inline".equals(isolation)) {
+                parserRouter.parse(stream, format, filename, limited);
+            } else {
+                parseOnWorker(stream, format, filename, limited);
+            }
+        } catch (Exception e) {
+            if (FailureType.classify(e) == FailureType.PARSE_LIMIT) {
+                limitExceeded.incrementAndGet();
+                log.error("文档解析超限，已中止，filename={}, 原因={}", filename, e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 超时和超限中止的文档数
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getLimitExceeded() {
+        return limitExceeded.get();
+    }
+
+    @Override
+    public void destroy() {
+        parseExecutor.shutdownNow();
+        if (forkParser != null) {
+            forkParser.close();
+        }
+    }
+
+    /**
+     * 在解析线程中运行，当前线程按解析器自身耗时监视，超时则中断并关闭输入流
+     */
+    private void parseOnWorker(InputStream stream, ParserRouter.Format format, String filename,
+                               LimitedContentHandler limited) throws Exception {
+        Future<?> future;
+        try {
+            future = parseExecutor.submit(() -> {
+                if (forkParser != null) {
+                    parserRouter.parseWithTika(forkParser, stream, filename, limited);
+                } else {
+                    parserRouter.parse(stream, format, filename, limited);
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            // 解析线程被卡住的文档占满，稍后重试
+            throw new IllegalStateException("解析线程已满，active=" + parseExecutor.getActiveCount(), e);
+        }
+
+        long pollMillis = Math.max(100, Math.min(1000, timeoutMillis / 10));
+        while (true) {
+            try {
+                future.get(pollMillis, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                if (limited.isTimedOut()) {
+                    timeouts.incrementAndGet();
+                    String reason = "解析超时，超过" + timeoutMillis + "ms";
+                    limited.abort(reason);
+                    future.cancel(true);
+                    closeQuietly(stream, filename);
+                    throw new ParseLimitException(reason + "，filename=" + filename);
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (forkParser != null && cause instanceof TikaException && !(cause instanceof ParseLimitException)
+                        && limited.isTimedOut()) {
+                    // 子进程因超时被杀掉
+                    timeouts.incrementAndGet();
+                    throw new ParseLimitException("独立进程解析超时，filename=" + filename, cause);
+                }
+                if (cause instanceof Exception exception) {
+                    throw exception;
+                }
+                throw new IllegalStateException(cause);
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待解析时被中断，filename=" + filename, e);
+            }
+        }
+    }
+
+    private static void closeQuietly(InputStream stream, String filename) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.warn("关闭解析输入流失败，filename={}", filename, e);
+        }
+    }
+}
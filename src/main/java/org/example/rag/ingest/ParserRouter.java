@@ -0,0 +1,151 @@
+package org.example.rag.ingest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.parser.microsoft.OfficeParser;
+import org.apache.tika.parser.microsoft.ooxml.OOXMLParser;
+import org.apache.tika.parser.pdf.PDFParser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.springframework.stereotype.Component;
+import org.xml.sax.ContentHandler;
+
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按文件类型选择解析器
+ * 1. 纯文本、Markdown、CSV、HTML 走 PlainFormatExtractor，不经过 Tika，也不做类型探测
+ * 2. PDF、OOXML（docx/xlsx/pptx）、OLE2（doc/xls/ppt）直接交给对应的 Tika 解析器，跳过 AutoDetectParser 的类型探测
+ * 3. 其他类型交给 AutoDetectParser
+ * 类型以上传时记录的 KbDocument.filetype 为准，缺失或为 application/octet-stream 时按扩展名判断。
+ * Tika 解析器实例无状态、线程安全，全节点共用一份，不再为每篇文档创建 AutoDetectParser。
+ */
+@Slf4j
+@Component
+public class ParserRouter {
+
+    /**
+     * 解析路径
+     */
+    public enum Format {
+        TEXT, CSV, HTML, PDF, OOXML, OLE2, AUTO;
+
+        /**
+         * 是否为不经过 Tika 的纯文本类路径
+         */
+        public boolean isPlain() {
+            return this == TEXT || this == CSV || this == HTML;
+        }
+    }
+
+    private final Parser autoDetectParser = new AutoDetectParser();
+    private final Parser pdfParser = new PDFParser();
+    private final Parser ooxmlParser = new OOXMLParser();
+    private final Parser officeParser = new OfficeParser();
+
+    private final Map<Format, LongAdder> counts = new EnumMap<>(Format.class);
+
+    public ParserRouter() {
+        for (Format format : Format.values()) {
+            counts.put(format, new LongAdder());
+        }
+    }
+
+    /**
+     * 流式解析文件，正文交给 handler 处理
+     */
+    public void parse(InputStream stream, String filename, String filetype, ContentHandler handler) throws Exception {
+        parse(stream, resolve(filetype, filename), filename, handler);
+    }
+
+    /**
+     * 按已确定的解析路径解析
+     */
+    public void parse(InputStream stream, Format format, String filename, ContentHandler handler) throws Exception {
+        counts.get(format).increment();
+        log.debug("解析文件，filename={}, 解析路径={}", filename, format);
+        switch (format) {
+            case TEXT -> PlainFormatExtractor.extractText(stream, handler);
+            case CSV -> PlainFormatExtractor.extractCsv(stream, handler);
+            case HTML -> PlainFormatExtractor.extractHtml(stream, handler);
+            case PDF -> parseWithTika(pdfParser, stream, filename, handler);
+            case OOXML -> parseWithTika(ooxmlParser, stream, filename, handler);
+            case OLE2 -> parseWithTika(officeParser, stream, filename, handler);
+            default -> parseWithTika(autoDetectParser, stream, filename, handler);
+        }
+    }
+
+    /**
+     * 启动以来各解析路径处理的文档数
+     */
+    public Map<Format, Long> stats() {
+        Map<Format, Long> result = new EnumMap<>(Format.class);
+        counts.forEach((format, count) -> result.put(format, count.sum()));
+        return result;
+    }
+
+    /**
+     * 根据 MIME 类型选择解析路径，无法判断时按扩展名
+     */
+    public static Format resolve(String filetype, String filename) {
+        if (filetype != null) {
+            String mime = filetype.toLowerCase(Locale.ROOT);
+            int semicolon = mime.indexOf(';');
+            if (semicolon >= 0) {
+                mime = mime.substring(0, semicolon);
+            }
+            mime = mime.trim();
+            switch (mime) {
+                case "text/plain", "text/markdown", "text/x-markdown", "text/x-web-markdown":
+                    return Format.TEXT;
+                case "text/csv", "application/csv":
+                    return Format.CSV;
+                case "text/html", "application/xhtml+xml":
+                    return Format.HTML;
+                case "application/pdf":
+                    return Format.PDF;
+                case "application/msword", "application/vnd.ms-excel", "application/vnd.ms-powerpoint":
+                    return Format.OLE2;
+                default:
+                    if (mime.startsWith("application/vnd.openxmlformats-officedocument.")) {
+                        return Format.OOXML;
+                    }
+            }
+        }
+        return resolveByExtension(filename);
+    }
+
+    private static Format resolveByExtension(String filename) {
+        if (filename == null) {
+            return Format.AUTO;
+        }
+        int dot = filename.lastIndexOf('.');
+        String extension = dot < 0 ? "" : filename.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return switch (extension) {
+            case "txt", "md", "markdown", "log" -> Format.TEXT;
+            case "csv" -> Format.CSV;
+            case "html", "htm" -> Format.HTML;
+            case "pdf" -> Format.PDF;
+            case "docx", "xlsx", "pptx" -> Format.OOXML;
+            case "doc", "xls", "ppt" -> Format.OLE2;
+            default -> Format.AUTO;
+        };
+    }
+
+    /**
+     * 用指定的 Tika 解析器解析，独立进程模式下传入 ForkParser
+     */
+    void parseWithTika(Parser parser, InputStream stream, String filename, ContentHandler handler)
+            throws Exception {
+        Metadata metadata = new Metadata();
+        metadata.set(TikaCoreProperties.RESOURCE_NAME_KEY, filename);
+        parser.parse(stream, new BodyContentHandler(handler), metadata, new ParseContext());
+    }
+}
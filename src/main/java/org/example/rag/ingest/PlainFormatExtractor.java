@@ -0,0 +1,426 @@
+package org.example.rag.ingest;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * 纯文本、CSV、HTML 的流式文本提取，不经过 Tika
+ * 按块读取字符，直接调用 handler.characters，内存中只保留一个缓冲区。
+ * HTML 的标题（h1-h6）和表格（table、tr、td、th）与 Tika HtmlParser 一样输出 XHTML 元素事件，
+ * ChunkingContentHandler 据此按标题和表格行切分；缺少结束标签的单元格、行和标题自动补齐。
+ * 编码识别：先看 BOM，再检查开头 8KB 是否为合法 UTF-8，否则按 GB18030 解码。
+ */
+public final class PlainFormatExtractor {
+
+    private static final int SNIFF_BYTES = 8192;
+    private static final int BUFFER_CHARS = 8192;
+    private static final Charset GB18030 = Charset.forName("GB18030");
+    private static final String XHTML = "http://www.w3.org/1999/xhtml";
+    private static final Attributes NO_ATTRIBUTES = new AttributesImpl();
+
+    /**
+     * 按行分隔的块级标签，前后输出换行
+     */
+    private static final Set<String> BLOCK_TAGS = Set.of("p", "div", "br", "li", "ul", "ol",
+            "pre", "blockquote", "section", "article", "header", "footer", "hr", "title", "dt", "dd");
+    private static final Set<String> HEADING_TAGS = Set.of("h1", "h2", "h3", "h4", "h5", "h6");
+    private static final Set<String> CELL_TAGS = Set.of("td", "th");
+
+    private PlainFormatExtractor() {
+    }
+
+    /**
+     * 纯文本和 Markdown：原样输出
+     */
+    public static void extractText(InputStream stream, ContentHandler handler) throws IOException, SAXException {
+        Reader reader = openReader(stream);
+        char[] buffer = new char[BUFFER_CHARS];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            handler.characters(buffer, 0, read);
+        }
+    }
+
+    /**
+     * CSV：每行一条记录，单元格之间用 " | " 分隔；引号内的逗号和换行属于单元格内容
+     */
+    public static void extractCsv(InputStream stream, ContentHandler handler) throws IOException, SAXException {
+        Reader reader = openReader(stream);
+        CharSink out = new CharSink(handler);
+        boolean quoted = false;
+        boolean pendingQuote = false;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (pendingQuote) {
+                pendingQuote = false;
+                if (c == '"') {
+                    // 引号内的 "" 表示一个引号
+                    out.append('"');
+                    continue;
+                }
+                quoted = false;
+            }
+            if (quoted) {
+                if (c == '"') {
+                    pendingQuote = true;
+                } else {
+                    out.append(c == '\r' || c == '\n' ? ' ' : (char) c);
+                }
+                continue;
+            }
+            switch (c) {
+                case '"' -> quoted = true;
+                case ',' -> out.append(" | ");
+                case '\r' -> {
+                }
+                default -> out.append((char) c);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * HTML：去掉标签、注释、script 和 style，块级标签转为换行，标题和表格输出元素事件，解码常见实体
+     */
+    public static void extractHtml(InputStream stream, ContentHandler handler) throws IOException, SAXException {
+        Reader reader = openReader(stream);
+        CharSink out = new CharSink(handler);
+        HtmlStructure structure = new HtmlStructure(handler, out);
+        StringBuilder tag = new StringBuilder();
+        StringBuilder entity = new StringBuilder();
+        boolean inTag = false;
+        boolean inEntity = false;
+        String skipUntil = null;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (inTag) {
+                tag.append((char) c);
+                boolean comment = tag.length() >= 3 && tag.charAt(0) == '!' && tag.charAt(1) == '-'
+                        && tag.charAt(2) == '-';
+                if (c != '>' || (comment && !endsWith(tag, "-->"))) {
+                    // 属性可能很长，只保留标签名判断需要的前缀和注释结尾判断需要的后缀
+                    if (!comment && tag.length() > 64) {
+                        tag.setLength(64);
+                    } else if (comment && tag.length() > 64) {
+                        tag.delete(3, tag.length() - 3);
+                    }
+                    continue;
+                }
+                inTag = false;
+                if (comment) {
+                    continue;
+                }
+                String name = tagName(tag);
+                boolean closing = tag.length() > 0 && tag.charAt(0) == '/';
+                if (skipUntil != null) {
+                    if (closing && skipUntil.equals(name)) {
+                        skipUntil = null;
+                    }
+                    continue;
+                }
+                if (!closing && ("script".equals(name) || "style".equals(name))) {
+                    skipUntil = name;
+                } else if (structure.handles(name)) {
+                    structure.tag(name, closing);
+                } else if (BLOCK_TAGS.contains(name)) {
+                    out.append('\n');
+                }
+                continue;
+            }
+            if (c == '<') {
+                if (inEntity) {
+                    out.append('&').append(entity);
+                    inEntity = false;
+                }
+                inTag = true;
+                tag.setLength(0);
+                continue;
+            }
+            if (skipUntil != null || structure.ignorable(c)) {
+                continue;
+            }
+            if (inEntity) {
+                if (c == ';') {
+                    out.append(decodeEntity(entity));
+                    inEntity = false;
+                } else if (entity.length() < 10 && c != '&' && !Character.isWhitespace(c)) {
+                    entity.append((char) c);
+                } else {
+                    // 不是实体，原样输出
+                    out.append('&').append(entity);
+                    inEntity = c == '&';
+                    entity.setLength(0);
+                    if (!inEntity) {
+                        out.append((char) c);
+                    }
+                }
+                continue;
+            }
+            if (c == '&') {
+                inEntity = true;
+                entity.setLength(0);
+                continue;
+            }
+            out.append((char) c);
+        }
+        if (inEntity) {
+            out.append('&').append(entity);
+        }
+        structure.closeAll();
+        out.flush();
+    }
+
+    /**
+     * 识别编码并跳过 BOM
+     */
+    static Reader openReader(InputStream stream) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(stream, SNIFF_BYTES * 2);
+        in.mark(SNIFF_BYTES);
+        byte[] head = in.readNBytes(SNIFF_BYTES);
+        in.reset();
+
+        Charset charset;
+        int bom = 0;
+        if (head.length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            charset = StandardCharsets.UTF_8;
+            bom = 3;
+        } else if (head.length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+            charset = StandardCharsets.UTF_16BE;
+            bom = 2;
+        } else if (head.length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+            charset = StandardCharsets.UTF_16LE;
+            bom = 2;
+        } else {
+            charset = isUtf8(head) ? StandardCharsets.UTF_8 : GB18030;
+        }
+        in.skipNBytes(bom);
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return new InputStreamReader(in, decoder);
+    }
+
+    /**
+     * 样本是否为合法 UTF-8，末尾被截断的多字节字符不算错误
+     */
+    private static boolean isUtf8(byte[] sample) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer out = CharBuffer.allocate(sample.length);
+        return !decoder.decode(ByteBuffer.wrap(sample), out, false).isError();
+    }
+
+    private static String tagName(CharSequence tag) {
+        int i = 0;
+        if (i < tag.length() && tag.charAt(i) == '/') {
+            i++;
+        }
+        int start = i;
+        while (i < tag.length() && Character.isLetterOrDigit(tag.charAt(i))) {
+            i++;
+        }
+        return tag.subSequence(start, i).toString().toLowerCase();
+    }
+
+    private static boolean endsWith(CharSequence text, String suffix) {
+        int offset = text.length() - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (text.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decodeEntity(CharSequence entity) {
+        String name = entity.toString();
+        switch (name) {
+            case "amp":
+                return "&";
+            case "lt":
+                return "<";
+            case "gt":
+                return ">";
+            case "quot":
+                return "\"";
+            case "apos":
+                return "'";
+            case "nbsp":
+                return " ";
+            default:
+                break;
+        }
+        try {
+            if (name.startsWith("#x") || name.startsWith("#X")) {
+                return new String(Character.toChars(Integer.parseInt(name.substring(2), 16)));
+            }
+            if (name.startsWith("#")) {
+                return new String(Character.toChars(Integer.parseInt(name.substring(1))));
+            }
+        } catch (IllegalArgumentException e) {
+            // 非法的数字实体，原样输出
+        }
+        return "&" + name + ";";
+    }
+
+    /**
+     * HTML 标题和表格的元素事件，输出前先把缓冲的文本交给 handler，保证事件与文本的顺序
+     * HTML 允许省略 td、tr 的结束标签，开始新的单元格、行或表格结束时补齐未关闭的元素
+     */
+    private static class HtmlStructure {
+        private final ContentHandler handler;
+        private final CharSink out;
+        private String heading;
+        private int tableDepth;
+        private boolean rowOpen;
+        private String cell;
+
+        private HtmlStructure(ContentHandler handler, CharSink out) {
+            this.handler = handler;
+            this.out = out;
+        }
+
+        boolean handles(String name) {
+            return HEADING_TAGS.contains(name) || CELL_TAGS.contains(name) || "tr".equals(name)
+                    || "table".equals(name);
+        }
+
+        /**
+         * 表格内、单元格外的空白（标签之间的缩进和换行）不属于正文
+         */
+        boolean ignorable(int c) {
+            return tableDepth > 0 && cell == null && Character.isWhitespace(c);
+        }
+
+        void tag(String name, boolean closing) throws SAXException {
+            if (HEADING_TAGS.contains(name)) {
+                if (heading != null) {
+                    end(heading);
+                    heading = null;
+                }
+                if (!closing) {
+                    start(name);
+                    heading = name;
+                }
+            } else if ("table".equals(name)) {
+                if (!closing) {
+                    closeRow();
+                    start(name);
+                    tableDepth++;
+                } else if (tableDepth > 0) {
+                    closeRow();
+                    end(name);
+                    tableDepth--;
+                }
+            } else if (tableDepth == 0) {
+                // 表格外的 tr、td 不成结构，按普通文本处理
+                out.append(closing ? '\n' : ' ');
+            } else if ("tr".equals(name)) {
+                closeRow();
+                if (!closing) {
+                    start(name);
+                    rowOpen = true;
+                }
+            } else {
+                closeCell();
+                if (!closing) {
+                    if (!rowOpen) {
+                        start("tr");
+                        rowOpen = true;
+                    }
+                    start(name);
+                    cell = name;
+                }
+            }
+        }
+
+        void closeAll() throws SAXException {
+            if (heading != null) {
+                end(heading);
+                heading = null;
+            }
+            while (tableDepth > 0) {
+                tag("table", true);
+            }
+        }
+
+        private void closeCell() throws SAXException {
+            if (cell != null) {
+                end(cell);
+                cell = null;
+            }
+        }
+
+        private void closeRow() throws SAXException {
+            closeCell();
+            if (rowOpen) {
+                end("tr");
+                rowOpen = false;
+            }
+        }
+
+        private void start(String name) throws SAXException {
+            out.flush();
+            handler.startElement(XHTML, name, name, NO_ATTRIBUTES);
+        }
+
+        private void end(String name) throws SAXException {
+            out.flush();
+            handler.endElement(XHTML, name, name);
+        }
+    }
+
+    /**
+     * 攒满缓冲区再交给 handler，减少回调次数
+     */
+    private static class CharSink {
+        private final ContentHandler handler;
+        private final char[] buffer = new char[BUFFER_CHARS];
+        private int length;
+
+        private CharSink(ContentHandler handler) {
+            this.handler = handler;
+        }
+
+        CharSink append(char c) throws SAXException {
+            if (length == buffer.length) {
+                flush();
+            }
+            buffer[length++] = c;
+            return this;
+        }
+
+        CharSink append(CharSequence text) throws SAXException {
+            for (int i = 0; i < text.length(); i++) {
+                append(text.charAt(i));
+            }
+            return this;
+        }
+
+        void flush() throws SAXException {
+            if (length > 0) {
+                handler.characters(buffer, 0, length);
+                length = 0;
+            }
+        }
+    }
+}
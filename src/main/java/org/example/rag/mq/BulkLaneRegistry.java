@@ -0,0 +1,140 @@
+package org.example.rag.mq;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.config.RabbitConfig;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 批量通道登记
+ * 每个权限组一个批量队列（rag.upload.bulk.{group}），第一次有该组的批量消息时声明并绑定到业务交换机。
+ * 组名只含 [A-Za-z0-9_.-] 时直接作为队列名后缀；含其他字符（中文、空格等）时后缀为替换后的组名加原组名的哈希，
+ * 如 "研发" 和 "人事" 都替换成 "__"，靠哈希区分，不会合用一个队列。
+ * 已有批量队列的权限组记录在 Redis 中，各节点定时同步，保证所有节点的 FairShareDispatcher 都会轮询到新队列。
+ */
+@Slf4j
+@Component
+public class BulkLaneRegistry {
+
+    private static final String GROUPS_KEY = "rag:fair:groups";
+    private static final String DEFAULT_GROUP = "default";
+    private static final int MAX_PLAIN_LENGTH = 64;
+
+    private final AmqpAdmin amqpAdmin;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本节点已声明过队列的权限组
+     */
+    private final Set<String> declared = ConcurrentHashMap.newKeySet();
+    private volatile List<String> groups = List.of();
+
+    public BulkLaneRegistry(AmqpAdmin amqpAdmin, StringRedisTemplate stringRedisTemplate) {
+        this.amqpAdmin = amqpAdmin;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 确保该权限组的批量队列存在，返回投递用的路由键
+     */
+    public String ensureLane(String permissionGroup) {
+        String group = normalize(permissionGroup);
+        if (!declared.contains(group)) {
+            declare(group);
+            stringRedisTemplate.opsForSet().add(GROUPS_KEY, group);
+            refresh();
+        }
+        return queueName(group);
+    }
+
+    /**
+     * 当前所有有批量通道的权限组
+     */
+    public List<String> groups() {
+        return groups;
+    }
+
+    public String queueName(String group) {
+        String plain = group.replaceAll("[^A-Za-z0-9_.-]", "_");
+        if (plain.equals(group) && plain.length() <= MAX_PLAIN_LENGTH) {
+            return RabbitConfig.RAG_BULK_QUEUE_PREFIX + plain;
+        }
+        String hash = DigestUtils.md5DigestAsHex(group.getBytes(StandardCharsets.UTF_8)).substring(0, 12);
+        return RabbitConfig.RAG_BULK_QUEUE_PREFIX
+                + plain.substring(0, Math.min(plain.length(), MAX_PLAIN_LENGTH)) + "." + hash;
+    }
+
+    /**
+     * 批量队列中待处理的消息数，队列不存在时返回 0
+     */
+    public long queueDepth(String queue) {
+        QueueInformation info = amqpAdmin.getQueueInfo(queue);
+        return info == null ? 0 : info.getMessageCount();
+    }
+
+    /**
+     * 从 Redis 同步其他节点登记的权限组，并在本节点补齐队列声明（broker 重建后也能恢复）
+     */
+    @Scheduled(fixedDelayString = "${rag.fair.refresh-interval-ms:5000}")
+    public void refresh() {
+        Set<String> members;
+        try {
+            members = stringRedisTemplate.opsForSet().members(GROUPS_KEY);
+        } catch (Exception e) {
+            log.warn("同步批量通道列表失败", e);
+            return;
+        }
+        if (members == null) {
+            return;
+        }
+        for (String group : members) {
+            if (!declared.contains(group)) {
+                try {
+                    declare(group);
+                } catch (Exception e) {
+                    log.warn("声明批量队列失败，group={}", group, e);
+                }
+            }
+        }
+        List<String> sorted = new ArrayList<>(declared);
+        sorted.sort(null);
+        groups = List.copyOf(sorted);
+    }
+
+    private void declare(String group) {
+        String name = queueName(group);
+        // 死信配置与业务队列一致
+        Map<String, Object> args = new HashMap<>();
+        args.put("x-dead-letter-exchange", RabbitConfig.RAG_DL_EXCHANGE);
+        args.put("x-dead-letter-routing-key", RabbitConfig.RAG_DL_ROUTING_KEY);
+        amqpAdmin.declareQueue(new Queue(name, true, false, false, args));
+        amqpAdmin.declareBinding(new Binding(name, Binding.DestinationType.QUEUE,
+                RabbitConfig.RAG_UPLOAD_EXCHANGE, name, null));
+        declared.add(group);
+        log.info("已声明批量通道，group={}, queue={}", group, name);
+    }
+
+    /**
+     * 权限组名去掉首尾空白，空组归入默认组；Redis 中保存原组名，队列名由 queueName 计算
+     */
+    private static String normalize(String permissionGroup) {
+        if (permissionGroup == null || permissionGroup.isBlank()) {
+            return DEFAULT_GROUP;
+        }
+        return permissionGroup.trim();
+    }
+}
@@ -0,0 +1,123 @@
+package org.example.rag.mq;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.config.RabbitConfig;
+import org.example.rag.entity.dto.DocUploadMessage;
+import org.example.rag.ingest.DocumentIngestSupport;
+import org.example.rag.ingest.DocumentLeaseManager;
+import org.example.rag.ingest.FailureType;
+import org.example.rag.ingest.LeaseBusyException;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 文档处理失败后的去向
+ * 可重试的失败按次数投递到对应级别的延迟队列（TTL 到期后按原路由键回到消息原来的通道），退避期间不占用消费者线程；
+ * 不可重试或重试次数用完的失败连同失败类型一起投递到死信队列，由 RagDeadLetterConsumer 登记，等待人工批量重放。
+ * 文档正由其他消费者处理时消息同样经延迟队列稍后重新投递，不计入重试次数。
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class FailureRouter {
+    /**
+     * 已重试次数
+     */
+    public static final String RETRY_COUNT_HEADER = "x-rag-retry-count";
+    /**
+     * 失败类型
+     */
+    public static final String FAILURE_TYPE_HEADER = "x-rag-failure-type";
+    /**
+     * 最后一次失败的原因
+     */
+    public static final String ERROR_HEADER = "x-rag-error";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final DocumentIngestSupport ingestSupport;
+
+    /**
+     * 各级重试的延迟，与 RabbitConfig 中声明的延迟队列一一对应
+     */
+    @Value("${rag.retry.delays-ms:5000,30000,300000}")
+    private long[] delays;
+
+    /**
+     * 处理一次失败，投递失败时抛出异常，由 broker 直接转入死信队列
+     * 文档状态按防护令牌条件更新：租约已被其他节点接管时说明文档已有新的处理者，本次失败直接丢弃，不再重试；
+     * 领取租约之前就失败（lease 为 null）时文档不属于本节点，不修改状态，只安排重试或转入死信
+     * @param retryCount 该消息已重试的次数
+     * @param routingKey 消息收到时的路由键，重试回到该通道
+     * @param lease      失败时本节点持有的租约，未领取到时为 null
+     */
+    public void route(DocUploadMessage msg, Integer retryCount, String routingKey, Exception e,
+                      DocumentLeaseManager.Lease lease) {
+        FailureType type = FailureType.classify(e);
+        int attempts = retryCount == null ? 0 : retryCount;
+        String error = truncate(e.getMessage());
+
+        if (type.isRetryable() && attempts < delays.length) {
+            int next = attempts + 1;
+            if (lease != null && !ingestSupport.markRetrying(msg.getDocId(), lease.getFencingToken(), e)) {
+                log.warn("文档已由其他节点处理，放弃本次重试，docId={}", msg.getDocId());
+                return;
+            }
+            MessagePostProcessor headers = headers(next, type, error);
+            rabbitTemplate.convertAndSend(RabbitConfig.RAG_RETRY_EXCHANGE, laneOf(routingKey), msg, message -> {
+                message.getMessageProperties().setHeader(RabbitConfig.RAG_RETRY_TIER_HEADER, String.valueOf(next));
+                return headers.postProcessMessage(message);
+            });
+            log.warn("文档处理失败，{}ms 后第{}次重试，docId={}, 失败类型={}",
+                    delays[attempts], next, msg.getDocId(), type);
+            return;
+        }
+
+        if (lease != null && !ingestSupport.markFailed(msg.getDocId(), lease.getFencingToken(), e)) {
+            log.warn("文档已由其他节点处理，不转入死信队列，docId={}", msg.getDocId());
+            return;
+        }
+        rabbitTemplate.convertAndSend(RabbitConfig.RAG_DL_EXCHANGE, RabbitConfig.RAG_DL_ROUTING_KEY, msg,
+                headers(attempts, type, error));
+        log.error("文档处理失败，转入死信队列，docId={}, 失败类型={}, 已重试{}次", msg.getDocId(), type, attempts);
+    }
+
+    /**
+     * 文档正由其他消费者处理，消息投递到第一级延迟队列稍后再试
+     * 不计入重试次数，也不修改文档状态（状态属于当前持有者）；持有者宕机时租约到期后即可领取
+     */
+    public void defer(DocUploadMessage msg, Integer retryCount, String routingKey, LeaseBusyException e) {
+        int attempts = retryCount == null ? 0 : retryCount;
+        rabbitTemplate.convertAndSend(RabbitConfig.RAG_RETRY_EXCHANGE, laneOf(routingKey), msg, message -> {
+            message.getMessageProperties().setHeader(RabbitConfig.RAG_RETRY_TIER_HEADER, "1");
+            message.getMessageProperties().setHeader(RETRY_COUNT_HEADER, attempts);
+            return message;
+        });
+        log.info("文档正由其他消费者处理，{}ms 后再试，docId={}, 原因={}", delays[0], msg.getDocId(), e.getMessage());
+    }
+
+    /**
+     * 重试回到的通道，取不到收到时的路由键时回到单文档队列
+     */
+    private static String laneOf(String routingKey) {
+        return routingKey == null || routingKey.isEmpty() ? RabbitConfig.RAG_ROUTING_KEY : routingKey;
+    }
+
+    private MessagePostProcessor headers(int retryCount, FailureType type, String error) {
+        return message -> {
+            message.getMessageProperties().setHeader(RETRY_COUNT_HEADER, retryCount);
+            message.getMessageProperties().setHeader(FAILURE_TYPE_HEADER, type.name());
+            message.getMessageProperties().setHeader(ERROR_HEADER, error);
+            return message;
+        };
+    }
+
+    private static String truncate(String message) {
+        if (message != null && message.length() > 1000) {
+            return message.substring(0, 1000) + "...";
+        }
+        return message;
+    }
+}
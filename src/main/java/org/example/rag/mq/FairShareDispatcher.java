@@ -0,0 +1,355 @@
+package org.example.rag.mq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.config.RabbitConfig;
+import org.example.rag.entity.dto.BulkLaneStats;
+import org.example.rag.entity.dto.DocUploadMessage;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量通道的公平调度
+ * 1. 固定数量的工作线程按平滑加权轮询在各权限组的批量队列之间轮转，每轮从选中的队列取一份：
+ *    连续的小文件最多 turnSize 篇合为一批交给 RagBatchConsumer，遇到大文件则只取这一篇交给 RagConsumer
+ * 2. 一个权限组积压一万篇也只占自己的轮次，其他组的批量导入照样推进
+ * 3. 交互通道积压超过阈值时批量通道暂停领取，把向量化额度让给单次上传
+ * 消息用 basicGet 手动确认领取，处理完成后逐条确认，节点宕机时未确认的消息会重新投递；
+ * 意外异常只拒绝未处理完的那几条，同一轮中已完成的文档不会被转入死信队列。
+ * 每个工作线程持有一个专用的长连接 channel 领取和确认消息（delivery tag 只在领取它的 channel 上有效），
+ * 不占用 RabbitTemplate 的 channel 缓存：处理一篇文档可能要几分钟，期间持有未确认消息的缓存 channel 无法归还，
+ * 会耗尽缓存，拖慢上传投递和其他使用 RabbitTemplate 的地方。
+ */
+@Slf4j
+@Component
+public class FairShareDispatcher implements DisposableBean {
+
+    private final RabbitTemplate rabbitTemplate;
+    private final MessageConverter messageConverter;
+    private final BulkLaneRegistry bulkLaneRegistry;
+    private final UploadRouter uploadRouter;
+    private final RagConsumer ragConsumer;
+    private final RagBatchConsumer ragBatchConsumer;
+    private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+
+    private final int workerCount;
+    private final int turnSize;
+    private final long idleSleepMillis;
+    private final long interactiveBacklogThreshold;
+    private final Map<String, Integer> weights;
+
+    private final Map<String, GroupState> states = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    private volatile boolean running;
+    private volatile long interactiveBacklog;
+    private volatile long backlogCheckedAt;
+
+    public FairShareDispatcher(RabbitTemplate rabbitTemplate, MessageConverter messageConverter,
+                               BulkLaneRegistry bulkLaneRegistry, UploadRouter uploadRouter,
+                               RagConsumer ragConsumer, RagBatchConsumer ragBatchConsumer,
+                               @Value("${rag.fair.workers:2}") int workerCount,
+                               @Value("${rag.fair.turn-size:20}") int turnSize,
+                               @Value("${rag.fair.idle-sleep-ms:1000}") long idleSleepMillis,
+                               @Value("${rag.fair.interactive-backlog-threshold:20}") long interactiveBacklogThreshold,
+                               @Value("${rag.fair.weights:}") String weights) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.messageConverter = messageConverter;
+        this.bulkLaneRegistry = bulkLaneRegistry;
+        this.uploadRouter = uploadRouter;
+        this.ragConsumer = ragConsumer;
+        this.ragBatchConsumer = ragBatchConsumer;
+        this.workerCount = workerCount;
+        this.turnSize = Math.max(1, turnSize);
+        this.idleSleepMillis = idleSleepMillis;
+        this.interactiveBacklogThreshold = interactiveBacklogThreshold;
+        this.weights = parseWeights(weights);
+        AtomicInteger index = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerCount), r -> {
+            Thread thread = new Thread(r, "fair-share-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 单个权限组的轮询状态
+     */
+    private static class GroupState {
+        private final String group;
+        private final int weight;
+        private int current;
+        private final AtomicLong dispatched = new AtomicLong();
+        private final AtomicLong turns = new AtomicLong();
+
+        private GroupState(String group, int weight) {
+            this.group = group;
+            this.weight = weight;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (workerCount <= 0) {
+            log.info("批量通道调度已关闭");
+            return;
+        }
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            workers.submit(this::runWorker);
+        }
+        log.info("批量通道调度已启动，工作线程={}, 每轮最多={}, 权重={}", workerCount, turnSize, weights);
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        workers.shutdown();
+    }
+
+    /**
+     * 各权限组批量通道的积压和处理量
+     */
+    public List<BulkLaneStats> stats() {
+        List<BulkLaneStats> result = new ArrayList<>();
+        for (String group : bulkLaneRegistry.groups()) {
+            GroupState state = state(group);
+            BulkLaneStats stats = new BulkLaneStats();
+            stats.setGroup(group);
+            stats.setWeight(state.weight);
+            stats.setQueueDepth(bulkLaneRegistry.queueDepth(bulkLaneRegistry.queueName(group)));
+            stats.setDispatched(state.dispatched.get());
+            stats.setTurns(state.turns.get());
+            result.add(stats);
+        }
+        return result;
+    }
+
+    private void runWorker() {
+        int emptyTurns = 0;
+        Channel channel = null;
+        while (running) {
+            try {
+                if (shouldYield()) {
+                    sleep();
+                    continue;
+                }
+                String group = nextGroup();
+                if (group != null) {
+                    channel = openChannel(channel);
+                }
+                if (group != null && dispatchTurn(group, channel)) {
+                    emptyTurns = 0;
+                    continue;
+                }
+                // 所有队列都轮空一遍后再休眠
+                if (group == null || ++emptyTurns >= bulkLaneRegistry.groups().size()) {
+                    emptyTurns = 0;
+                    sleep();
+                }
+            } catch (Exception e) {
+                log.error("批量通道调度异常", e);
+                // 关闭 channel 后其上未确认的消息会重新投递，下一轮重新打开
+                closeChannel(channel);
+                channel = null;
+                sleep();
+            }
+        }
+        closeChannel(channel);
+    }
+
+    /**
+     * 工作线程专用的 channel，断开后重新打开
+     */
+    private Channel openChannel(Channel channel) {
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        closeChannel(channel);
+        return rabbitTemplate.getConnectionFactory().createConnection().createChannel(false);
+    }
+
+    private void closeChannel(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (Exception e) {
+            log.debug("关闭批量通道 channel 失败", e);
+        }
+    }
+
+    /**
+     * 平滑加权轮询：每轮各组加上自身权重，取当前值最大的组，再减去总权重
+     */
+    private synchronized String nextGroup() {
+        List<String> groups = bulkLaneRegistry.groups();
+        if (groups.isEmpty()) {
+            return null;
+        }
+        GroupState best = null;
+        int total = 0;
+        for (String group : groups) {
+            GroupState state = state(group);
+            state.current += state.weight;
+            total += state.weight;
+            if (best == null || state.current > best.current) {
+                best = state;
+            }
+        }
+        best.current -= total;
+        return best.group;
+    }
+
+    /**
+     * 从选中的队列取一份消息并处理
+     * @return 是否取到消息
+     */
+    private boolean dispatchTurn(String group, Channel channel) throws Exception {
+        String queue = bulkLaneRegistry.queueName(group);
+        List<org.springframework.messaging.Message<DocUploadMessage>> smallFiles = new ArrayList<>();
+        List<Long> smallTags = new ArrayList<>();
+        DocUploadMessage largeFile = null;
+        Integer largeRetryCount = null;
+        String largeRoutingKey = null;
+        long largeTag = -1;
+        while (smallFiles.size() < turnSize) {
+            GetResponse response = channel.basicGet(queue, false);
+            if (response == null) {
+                break;
+            }
+            long tag = response.getEnvelope().getDeliveryTag();
+            MessageProperties properties = propertiesConverter.toMessageProperties(
+                    response.getProps(), response.getEnvelope(), "UTF-8");
+            DocUploadMessage msg;
+            try {
+                msg = (DocUploadMessage) messageConverter.fromMessage(new Message(response.getBody(), properties));
+            } catch (Exception e) {
+                log.error("批量通道消息无法解析，转入死信队列，queue={}", queue, e);
+                channel.basicNack(tag, false, false);
+                continue;
+            }
+            Integer retryCount = properties.getHeaders().get(FailureRouter.RETRY_COUNT_HEADER)
+                    instanceof Number number ? number.intValue() : null;
+            if (uploadRouter.isSmallFile(msg.getFileSize())) {
+                smallFiles.add(MessageBuilder.withPayload(msg)
+                        .setHeader(FailureRouter.RETRY_COUNT_HEADER, retryCount)
+                        .setHeader(AmqpHeaders.RECEIVED_ROUTING_KEY, response.getEnvelope().getRoutingKey())
+                        .build());
+                smallTags.add(tag);
+                continue;
+            }
+            largeFile = msg;
+            largeTag = tag;
+            largeRetryCount = retryCount;
+            largeRoutingKey = response.getEnvelope().getRoutingKey();
+            break;
+        }
+        if (smallFiles.isEmpty() && largeFile == null) {
+            return false;
+        }
+
+        // 文档级失败已由消费者转入重试或死信，消息照常确认；意外异常只拒绝出错的消息，不重回队列
+        if (!smallFiles.isEmpty()) {
+            Set<Integer> rejected = ragBatchConsumer.processMessages(smallFiles);
+            for (int i = 0; i < smallTags.size(); i++) {
+                if (rejected.contains(i)) {
+                    channel.basicNack(smallTags.get(i), false, false);
+                } else {
+                    channel.basicAck(smallTags.get(i), false);
+                }
+            }
+            if (!rejected.isEmpty()) {
+                log.error("批量通道部分消息处理失败，转入死信队列，queue={}, 条数={}", queue, rejected.size());
+            }
+        }
+        if (largeFile != null) {
+            try {
+                ragConsumer.process(largeFile, largeRetryCount, largeRoutingKey);
+                channel.basicAck(largeTag, false);
+            } catch (Exception e) {
+                log.error("批量通道处理失败，转入死信队列，queue={}, docId={}", queue, largeFile.getDocId(), e);
+                channel.basicNack(largeTag, false, false);
+            }
+        }
+        GroupState state = state(group);
+        state.turns.incrementAndGet();
+        state.dispatched.addAndGet(smallFiles.size() + (largeFile == null ? 0 : 1));
+        return true;
+    }
+
+    /**
+     * 交互通道积压过多时让出资源，队列深度每 idleSleepMillis 最多查询一次
+     */
+    private boolean shouldYield() {
+        if (interactiveBacklogThreshold <= 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - backlogCheckedAt >= idleSleepMillis) {
+            backlogCheckedAt = now;
+            try {
+                interactiveBacklog = bulkLaneRegistry.queueDepth(RabbitConfig.RAG_UPLOAD_QUEUE)
+                        + bulkLaneRegistry.queueDepth(RabbitConfig.RAG_SMALL_UPLOAD_QUEUE);
+            } catch (Exception e) {
+                log.warn("查询交互通道积压失败", e);
+                interactiveBacklog = 0;
+            }
+        }
+        return interactiveBacklog > interactiveBacklogThreshold;
+    }
+
+    private GroupState state(String group) {
+        return states.computeIfAbsent(group, g -> new GroupState(g, weights.getOrDefault(g, 1)));
+    }
+
+    private void sleep() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(idleSleepMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    /**
+     * 解析 "group:weight,group:weight" 形式的权重配置，未配置的组权重为 1
+     */
+    private static Map<String, Integer> parseWeights(String config) {
+        Map<String, Integer> result = new HashMap<>();
+        if (config == null || config.isBlank()) {
+            return result;
+        }
+        for (String entry : config.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("批量通道权重配置格式错误: " + entry);
+            }
+            result.put(parts[0].trim(), Math.max(1, Integer.parseInt(parts[1].trim())));
+        }
+        return result;
+    }
+}
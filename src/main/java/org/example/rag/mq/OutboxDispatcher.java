@@ -0,0 +1,261 @@
+package org.example.rag.mq;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.AbstractJavaTypeMapper;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 发件箱投递器
+ * 1. 每批用一条语句认领待投递消息：FOR UPDATE SKIP LOCKED 选出后把下次投递时间推后，语句结束即释放行锁，
+ *    其他节点在认领到期前不会再取到这些消息；本节点宕机时认领到期后由其他节点补发
+ * 2. 在事务之外整批发送并统一等待 publisher confirm，发送和等待确认期间不占用数据库连接和行锁
+ *    （被退回依赖 spring.rabbitmq.template.mandatory，无法路由的消息才会回调给 confirm 流程）
+ * 3. 再用一个短事务删除确认成功的消息，失败或被退回的按次数退避后重投
+ * 4. 业务事务提交后被唤醒立即投递，定时轮询兜底处理漏掉的唤醒和退避到期的消息；
+ *    每次最多投递 maxBatches 批，积压未清空时交给投递线程继续，不长时间占用共用的调度线程
+ * broker 宕机期间消息留在表中，恢复后自动补发；投递是至少一次，消费端已有幂等处理
+ */
+@Slf4j
+@Component
+public class OutboxDispatcher implements DisposableBean {
+    private final RabbitTemplate rabbitTemplate;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    /**
+     * 每批最多投递条数
+     */
+    @Value("${rag.outbox.batch-size:100}")
+    private int batchSize;
+    /**
+     * 等待整批确认的超时时间
+     */
+    @Value("${rag.outbox.confirm-timeout-ms:5000}")
+    private long confirmTimeout;
+    /**
+     * 首次重投的退避时间，之后每次翻倍，最长 5 分钟
+     */
+    @Value("${rag.outbox.retry-backoff-ms:1000}")
+    private long retryBackoff;
+    /**
+     * 每次投递最多处理的批数
+     */
+    @Value("${rag.outbox.max-batches:5}")
+    private int maxBatches;
+
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    /**
+     * 认领时长在等待确认的超时之外再留出的余量，覆盖发送和写回结果的耗时
+     */
+    private static final long CLAIM_SLACK_MS = 60 * 1000;
+
+    private final ExecutorService wakeUpExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "outbox-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+
+    public OutboxDispatcher(RabbitTemplate rabbitTemplate, JdbcTemplate jdbcTemplate,
+                            TransactionTemplate transactionTemplate) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * 唤醒投递，多次唤醒在下一次投递前合并为一次
+     */
+    public void wakeUp() {
+        if (wakeUpPending.compareAndSet(false, true)) {
+            wakeUpExecutor.execute(() -> {
+                wakeUpPending.set(false);
+                dispatch();
+            });
+        }
+    }
+
+    /**
+     * 定时兜底投递
+     */
+    @Scheduled(fixedDelayString = "${rag.outbox.poll-interval-ms:2000}")
+    public void poll() {
+        dispatch();
+    }
+
+    /**
+     * 投递最多 maxBatches 批，仍有积压时唤醒投递线程继续
+     */
+    private void dispatch() {
+        // 本节点内同一时间只有一个线程在投递
+        if (!dispatchLock.tryLock()) {
+            return;
+        }
+        boolean more = false;
+        try {
+            for (int i = 0; i < maxBatches; i++) {
+                more = dispatchBatch() >= batchSize;
+                if (!more) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            more = false;
+            log.error("发件箱投递失败", e);
+        } finally {
+            dispatchLock.unlock();
+        }
+        if (more) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * 投递一批消息，返回本批认领的条数
+     */
+    private int dispatchBatch() {
+        List<PendingMessage> batch = claim();
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        // 1. 整批发送，不逐条等待
+        List<CorrelationData> confirms = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            CorrelationData correlation = new CorrelationData(String.valueOf(pending.id()));
+            confirms.add(correlation);
+            try {
+                rabbitTemplate.send(pending.exchange(), pending.routingKey(), toMessage(pending), correlation);
+            } catch (Exception e) {
+                correlation.getFuture().completeExceptionally(e);
+            }
+        }
+
+        // 2. 统一等待确认
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(confirmTimeout);
+        List<Object[]> confirmed = new ArrayList<>();
+        List<Object[]> failed = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage pending = batch.get(i);
+            String error = awaitConfirm(confirms.get(i), deadline);
+            if (error == null) {
+                confirmed.add(new Object[]{pending.id()});
+            } else {
+                int attempts = pending.attempts() + 1;
+                long backoff = Math.min(MAX_BACKOFF_MS, retryBackoff << Math.min(attempts - 1, 20));
+                failed.add(new Object[]{attempts, Timestamp.valueOf(LocalDateTime.now().plusNanos(
+                        TimeUnit.MILLISECONDS.toNanos(backoff))), error, pending.id()});
+            }
+        }
+
+        // 3. 确认成功的删除，失败的退避后重投
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!confirmed.isEmpty()) {
+                jdbcTemplate.batchUpdate("DELETE FROM outbox_messages WHERE id = ?", confirmed);
+            }
+            if (!failed.isEmpty()) {
+                jdbcTemplate.batchUpdate("""
+                          UPDATE outbox_messages SET attempts = ?, next_attempt_at = ?, last_error = ?
+                          WHERE id = ?
+                      """, failed);
+            }
+        });
+        if (!failed.isEmpty()) {
+            log.warn("发件箱消息投递失败{}条，将退避后重投", failed.size());
+        }
+        log.debug("发件箱投递完成，成功={}, 失败={}", confirmed.size(), failed.size());
+        return batch.size();
+    }
+
+    /**
+     * 认领一批到期的消息：锁定、读取并把下次投递时间推后到认领到期，单条语句自成一个短事务
+     */
+    private List<PendingMessage> claim() {
+        List<PendingMessage> batch = new ArrayList<>(jdbcTemplate.query("""
+                      UPDATE outbox_messages
+                      SET next_attempt_at = now() + ? * INTERVAL '1 millisecond'
+                      WHERE id IN (
+                          SELECT id FROM outbox_messages
+                          WHERE next_attempt_at <= now()
+                          ORDER BY id
+                          LIMIT ?
+                          FOR UPDATE SKIP LOCKED
+                      )
+                      RETURNING id, exchange, routing_key, payload_type, payload, attempts
+                  """,
+                (rs, rowNum) -> new PendingMessage(rs.getLong("id"), rs.getString("exchange"),
+                        rs.getString("routing_key"), rs.getString("payload_type"), rs.getString("payload"),
+                        rs.getInt("attempts")),
+                confirmTimeout + CLAIM_SLACK_MS, batchSize));
+        // RETURNING 不保证顺序，按登记顺序投递
+        batch.sort(Comparator.comparingLong(PendingMessage::id));
+        return batch;
+    }
+
+    /**
+     * 等待单条消息的确认，成功返回 null，否则返回失败原因
+     */
+    private String awaitConfirm(CorrelationData correlation, long deadline) {
+        try {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            CorrelationData.Confirm confirm = correlation.getFuture().get(remaining, TimeUnit.NANOSECONDS);
+            if (!confirm.isAck()) {
+                return "broker 拒绝: " + confirm.getReason();
+            }
+            if (correlation.getReturned() != null) {
+                return "消息无法路由: " + correlation.getReturned().getReplyText();
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "等待确认被中断";
+        } catch (Exception e) {
+            return "等待确认失败: " + e.getMessage();
+        }
+    }
+
+    /**
+     * 按 Jackson2JsonMessageConverter 的格式组装消息，消费端无需改动
+     */
+    private Message toMessage(PendingMessage pending) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        properties.setContentEncoding(StandardCharsets.UTF_8.name());
+        properties.setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+        properties.setMessageId("outbox-" + pending.id());
+        properties.setHeader(AbstractJavaTypeMapper.DEFAULT_CLASSID_FIELD_NAME, pending.payloadType());
+        return new Message(pending.payload().getBytes(StandardCharsets.UTF_8), properties);
+    }
+
+    @Override
+    public void destroy() {
+        wakeUpExecutor.shutdown();
+    }
+
+    private record PendingMessage(long id, String exchange, String routingKey, String payloadType,
+                                  String payload, int attempts) {
+    }
+}
@@ -0,0 +1,381 @@
+package org.example.rag.mq;
+
+import com.rabbitmq.client.Channel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tika.io.TikaInputStream;
+import org.example.rag.config.RabbitConfig;
+import org.example.rag.entity.KbDocument;
+import org.example.rag.entity.dto.ChunkRecord;
+import org.example.rag.entity.dto.DocUploadMessage;
+import org.example.rag.entity.dto.EmbeddingBatchResult;
+import org.example.rag.ingest.ChunkDiff;
+import org.example.rag.ingest.ChunkingContentHandler;
+import org.example.rag.ingest.DocumentIngestSupport;
+import org.example.rag.ingest.DocumentLeaseManager;
+import org.example.rag.ingest.DocumentMissingException;
+import org.example.rag.ingest.EmbeddingException;
+import org.example.rag.ingest.EmbeddedBatch;
+import org.example.rag.ingest.LeaseBusyException;
+import org.example.rag.ingest.LeaseLostException;
+import org.example.rag.repository.KbDocumentRepository;
+import org.example.rag.service.DocStatusService;
+import org.example.rag.service.SemanticAnswerCache;
+import org.example.rag.service.EmbeddingBatchService;
+import org.example.rag.service.StorageService;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 小文件批量消费者
+ * 一次拉取多条 DocUploadMessage：逐篇解析分块后，所有文档的新增块合在一起向量化（共用向量化批次），
+ * 再在一个事务中批量写入并把这些文档标记为完成。
+ * 失败按文档记录：解析或向量化失败的文档单独标记为 FAILED，不影响同批其他文档；
+ * 整批写库失败时退回逐篇写入，定位出写不进去的文档。
+ * 失败的文档交给 FailureRouter，按消息头中的已重试次数进入下一级延迟队列，重试时回到消息原来的通道。
+ * 已有断点的文档（如死信重放经批量通道进入）与单文档消费者一样从断点继续，不重复写入已入库的块。
+ * 每篇文档先领取租约，标记完成时校验防护令牌，租约被其他节点接管的文档不会被覆盖。
+ * 消息逐条确认：出现意外异常时只拒绝尚未完成的消息，已写入或已转交 FailureRouter 的消息照常确认。
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class RagBatchConsumer {
+
+    private final KbDocumentRepository documentRepository;
+    private final EmbeddingBatchService embeddingBatchService;
+    private final JdbcClient jdbcClient;
+    private final DocumentLeaseManager leaseManager;
+    private final TransactionTemplate transactionTemplate;
+    private final StorageService storageService;
+    private final DocStatusService docStatusService;
+    private final DocumentIngestSupport ingestSupport;
+    private final FailureRouter failureRouter;
+    private final SemanticAnswerCache semanticAnswerCache;
+
+    /**
+     * 批内一篇文档的处理状态
+     */
+    private static class DocWork {
+        /**
+         * 消息在本批中的下标
+         */
+        private final int index;
+        private final DocUploadMessage msg;
+        private final KbDocument kbDoc;
+        private final DocumentLeaseManager.Lease lease;
+        private final int retryCount;
+        private final String routingKey;
+        /**
+         * 断点：本次第一块在文档中的序号，之前的块已入库
+         */
+        private int startIndex;
+        private List<String> chunks = new ArrayList<>();
+        private long endOffset;
+        private ChunkDiff diff;
+        private EmbeddedBatch batch;
+        private boolean failed;
+        /**
+         * 已写入完成或已转交 FailureRouter，消息可以确认
+         */
+        private boolean settled;
+
+        private DocWork(int index, DocUploadMessage msg, KbDocument kbDoc, DocumentLeaseManager.Lease lease,
+                        int retryCount, String routingKey) {
+            this.index = index;
+            this.msg = msg;
+            this.kbDoc = kbDoc;
+            this.lease = lease;
+            this.retryCount = retryCount;
+            this.routingKey = routingKey;
+        }
+    }
+
+    /**
+     * 批量监听，监听容器为手动确认，按 processMessages 的结果逐条确认或拒绝
+     */
+    @RabbitListener(queues = RabbitConfig.RAG_SMALL_UPLOAD_QUEUE,
+            containerFactory = RabbitConfig.BATCH_LISTENER_FACTORY,
+            concurrency = "${rag.ingest.small-batch.concurrency:2}")
+    public void processBatch(List<Message<DocUploadMessage>> messages, Channel channel) throws IOException {
+        Set<Integer> rejected = processMessages(messages);
+        for (int i = 0; i < messages.size(); i++) {
+            long tag = messages.get(i).getHeaders().get(AmqpHeaders.DELIVERY_TAG, Long.class);
+            if (rejected.contains(i)) {
+                channel.basicNack(tag, false, false);
+            } else {
+                channel.basicAck(tag, false);
+            }
+        }
+    }
+
+    /**
+     * 处理一批消息，返回需要拒绝（转入死信队列）的消息下标
+     * 文档级失败已由 FailureRouter 转入重试或死信，这些消息与处理完成的一样可以确认；
+     * 只有中途出现意外异常时，尚未写入也未转交 FailureRouter 的消息需要拒绝
+     */
+    public Set<Integer> processMessages(List<Message<DocUploadMessage>> messages) {
+        long begin = System.nanoTime();
+        List<DocWork> works = new ArrayList<>();
+        Set<Integer> settled = new HashSet<>();
+        try {
+            // 1. 领取租约并标记为处理中，不需要处理或已安排重试的消息直接确认
+            for (int i = 0; i < messages.size(); i++) {
+                Message<DocUploadMessage> message = messages.get(i);
+                DocWork work = claim(i, message.getPayload(), retryCountOf(message),
+                        message.getHeaders().get(AmqpHeaders.RECEIVED_ROUTING_KEY, String.class));
+                if (work == null) {
+                    settled.add(i);
+                } else {
+                    works.add(work);
+                }
+            }
+
+            // 2. 逐篇解析分块
+            for (DocWork work : works) {
+                parse(work);
+            }
+
+            // 3. 所有文档的新增块合并向量化
+            embedAll(works);
+
+            // 4. 一个事务批量写入
+            writeAll(works);
+
+            long succeeded = works.stream().filter(work -> !work.failed).count();
+            log.info("小文件批量处理完成，消息数={}, 处理文档数={}, 成功={}, 耗时={}ms",
+                    messages.size(), works.size(), succeeded, (System.nanoTime() - begin) / 1_000_000);
+        } catch (Exception e) {
+            log.error("小文件批量处理出现意外异常，消息数={}", messages.size(), e);
+        } finally {
+            for (DocWork work : works) {
+                leaseManager.release(work.lease);
+            }
+        }
+        for (DocWork work : works) {
+            if (work.settled) {
+                settled.add(work.index);
+            }
+        }
+        Set<Integer> rejected = new HashSet<>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (!settled.contains(i)) {
+                rejected.add(i);
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * 领取租约、加载文档并标记为处理中，不需要处理时返回 null
+     */
+    private DocWork claim(int index, DocUploadMessage msg, int retryCount, String routingKey) {
+        DocumentLeaseManager.Lease lease = null;
+        try {
+            lease = leaseManager.tryAcquire(msg.getDocId(), msg.getDocVersion());
+            if (lease == null) {
+                return null;
+            }
+            KbDocument kbDoc = documentRepository.findById(msg.getDocId())
+                    .orElseThrow(() -> new DocumentMissingException(msg.getDocId()));
+            if (kbDoc.getDocVersion() == null) {
+                kbDoc.setDocVersion(1);
+            }
+            docStatusService.publish(kbDoc);
+            DocWork work = new DocWork(index, msg, kbDoc, lease, retryCount, routingKey);
+            work.startIndex = kbDoc.getProcessedChunks() == null ? 0 : kbDoc.getProcessedChunks();
+            work.endOffset = kbDoc.getParsedOffset() == null ? 0 : kbDoc.getParsedOffset();
+            return work;
+        } catch (LeaseBusyException e) {
+            // 其他节点正在处理，稍后重新投递
+            failureRouter.defer(msg, retryCount, routingKey, e);
+            return null;
+        } catch (Exception e) {
+            log.error("加载文档失败，docId={}", msg.getDocId(), e);
+            failureRouter.route(msg, retryCount, routingKey, e, lease);
+            leaseManager.release(lease);
+            return null;
+        }
+    }
+
+    /**
+     * 解析分块并与旧版本比对，小文件直接整篇放在内存中；有断点时跳过已入库的部分
+     */
+    private void parse(DocWork work) {
+        try (TikaInputStream stream = TikaInputStream.get(storageService.getFileStream(work.kbDoc.getFilepath()))) {
+            ChunkingContentHandler handler = ingestSupport.newChunkingHandler((chunk, endOffset) -> {
+                work.chunks.add(chunk);
+                work.endOffset = endOffset;
+            });
+            if (work.startIndex > 0) {
+                log.info("从断点继续处理，docId={}, 已入库块数={}, 文本位置={}",
+                        work.kbDoc.getId(), work.startIndex, work.endOffset);
+            }
+            handler.resumeFrom(work.endOffset, work.startIndex);
+            ingestSupport.parse(stream, work.kbDoc, handler);
+            handler.endDocument();
+
+            work.diff = ingestSupport.newChunkDiff(work.kbDoc);
+            work.batch = ingestSupport.diff(work.diff, work.startIndex, work.chunks);
+        } catch (Exception e) {
+            fail(work, e);
+        }
+    }
+
+    /**
+     * 各文档的新增块合在一起调用向量化，向量化服务按条数和 token 上限切成共享的批次
+     */
+    private void embedAll(List<DocWork> works) {
+        List<DocWork> owners = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        for (DocWork work : works) {
+            if (work.failed) {
+                continue;
+            }
+            for (int i = 0; i < work.chunks.size(); i++) {
+                if (work.batch.needsEmbedding(i)) {
+                    owners.add(work);
+                    positions.add(i);
+                    texts.add(work.chunks.get(i));
+                    hashes.add(work.batch.getContentHashes().get(i));
+                }
+            }
+        }
+        if (texts.isEmpty()) {
+            return;
+        }
+
+        EmbeddingBatchResult result;
+        try {
+            result = embeddingBatchService.embed(texts, hashes);
+        } catch (Exception e) {
+            EmbeddingException failure = new EmbeddingException("批量向量化失败: " + e.getMessage(), e);
+            for (DocWork work : works) {
+                if (!work.failed) {
+                    fail(work, failure);
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < texts.size(); i++) {
+            owners.get(i).batch.getEmbeddings().set(positions.get(i), result.getEmbeddings().get(i));
+        }
+        // 只有包含失败块的文档判为失败
+        for (Integer failedIndex : result.getFailedIndexes()) {
+            DocWork work = owners.get(failedIndex);
+            if (!work.failed) {
+                fail(work, new EmbeddingException("文档块向量化失败，原因=" + result.getLastError(),
+                        result.getLastException()));
+            }
+        }
+    }
+
+    /**
+     * 一个事务写入所有成功文档的块并标记完成；整批失败时逐篇重试以定位问题文档
+     */
+    private void writeAll(List<DocWork> works) {
+        List<DocWork> pending = works.stream().filter(work -> !work.failed).toList();
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> writeDocuments(pending));
+            pending.forEach(work -> work.settled = true);
+        } catch (Exception e) {
+            log.warn("批量写库失败，改为逐篇写入，文档数={}, 原因={}", pending.size(), e.getMessage());
+            for (DocWork work : pending) {
+                if (work.lease.isLost()) {
+                    fail(work, new LeaseLostException("文档租约已失效，docId=" + work.kbDoc.getId()));
+                    continue;
+                }
+                try {
+                    transactionTemplate.executeWithoutResult(status -> writeDocuments(List.of(work)));
+                    work.settled = true;
+                } catch (Exception single) {
+                    fail(work, single);
+                }
+            }
+        }
+        for (DocWork work : pending) {
+            if (!work.failed) {
+                KbDocument kbDoc = work.kbDoc;
+                kbDoc.setStatus("COMPLETED");
+                kbDoc.setProgress(100);
+                kbDoc.setProcessedChunks(work.startIndex + work.chunks.size());
+                kbDoc.setParsedOffset(work.endOffset);
+                docStatusService.publish(kbDoc);
+                // 新版本替换了旧内容，依据旧版本生成的语义缓存答案不再可信
+                if (kbDoc.getDocVersion() != null && kbDoc.getDocVersion() > 1) {
+                    semanticAnswerCache.evictGroup(kbDoc.getPermissionGroup());
+                }
+            }
+        }
+    }
+
+    /**
+     * 所有文档的新增块合并为一次批量写入，再删除各文档旧版本的块并标记完成，需在事务中调用
+     */
+    private void writeDocuments(List<DocWork> works) {
+        List<ChunkRecord> records = new ArrayList<>();
+        List<Object[]> reusedArgs = new ArrayList<>();
+        for (DocWork work : works) {
+            ingestSupport.collect(work.kbDoc, work.startIndex, work.chunks, work.batch, records, reusedArgs);
+        }
+        ingestSupport.write(records, reusedArgs);
+
+        for (DocWork work : works) {
+            KbDocument kbDoc = work.kbDoc;
+            // 防护令牌不一致说明租约已被其他节点接管，整个事务回滚
+            int updated = jdbcClient.sql("""
+                      UPDATE kb_documents
+                      SET status = 'COMPLETED', progress = 100, processed_chunks = :processed, parsed_offset = :offset
+                      WHERE id = :id AND lease_token = :token AND COALESCE(doc_version, 1) = :version
+                  """)
+                    .param("processed", work.startIndex + work.chunks.size())
+                    .param("offset", work.endOffset)
+                    .param("version", kbDoc.getDocVersion())
+                    .param("id", kbDoc.getId())
+                    .param("token", work.lease.getFencingToken())
+                    .update();
+            if (updated == 0) {
+                throw new LeaseLostException("防护令牌已过期，放弃提交，docId=" + kbDoc.getId());
+            }
+            ingestSupport.linkInDocumentDuplicates(kbDoc.getId(), kbDoc.getDocVersion());
+            ingestSupport.deleteStaleChunks(kbDoc.getId(), kbDoc.getDocVersion());
+        }
+    }
+
+    /**
+     * 消息头中的已重试次数，首次投递没有该消息头
+     */
+    private static int retryCountOf(Message<DocUploadMessage> message) {
+        Object value = message.getHeaders().get(FailureRouter.RETRY_COUNT_HEADER);
+        return value instanceof Number number ? number.intValue() : 0;
+    }
+
+    private void fail(DocWork work, Exception e) {
+        work.failed = true;
+        if (LeaseLostException.isCause(e)) {
+            // 已由其他节点接管，不再重试
+            log.error("文档租约已失效，放弃处理，docId={}", work.kbDoc.getId());
+            work.settled = true;
+            return;
+        }
+        log.error("文档处理失败，docId={}", work.kbDoc.getId(), e);
+        // 重试回到消息原来的通道，重试次数沿用消息头，逐级退避直到转入死信
+        failureRouter.route(work.msg, work.retryCount, work.routingKey, e, work.lease);
+        work.settled = true;
+    }
+}
@@ -1,33 +1,42 @@
 package org.example.rag.mq;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.tika.metadata.Metadata;
-import org.apache.tika.metadata.TikaCoreProperties;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.Parser;
-import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.io.TikaInputStream;
 import org.example.rag.entity.KbDocument;
+import org.example.rag.entity.dto.ChunkRecord;
+import org.example.rag.entity.dto.EmbeddingBatchResult;
+import org.example.rag.ingest.ChunkBatcher;
+import org.example.rag.ingest.ChunkDiff;
+import org.example.rag.ingest.EmbeddedBatch;
+import org.example.rag.ingest.ChunkingContentHandler;
+import org.example.rag.ingest.DocumentIngestSupport;
+import org.example.rag.ingest.DocumentMissingException;
+import org.example.rag.ingest.EmbeddingException;
+import org.example.rag.ingest.DocumentLeaseManager;
+import org.example.rag.ingest.IngestionGovernor;
+import org.example.rag.ingest.IngestionPipeline;
+import org.example.rag.ingest.LeaseBusyException;
+import org.example.rag.ingest.LeaseLostException;
+import org.example.rag.service.DocStatusService;
+import org.example.rag.service.SemanticAnswerCache;
+import org.example.rag.service.EmbeddingBatchService;
 import org.example.rag.service.StorageService;
-import org.springframework.ai.document.Document;
-import org.springframework.ai.transformer.splitter.TokenTextSplitter;
-import org.springframework.data.redis.core.RedisTemplate;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.example.rag.config.RabbitConfig;
 import org.example.rag.entity.dto.DocUploadMessage;
 import org.example.rag.repository.KbDocumentRepository;
-import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.jdbc.core.simple.JdbcClient;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionTemplate;
 
-import java.io.InputStream;
-import java.time.Duration;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * RAG文档上传消息消费者（自动ACK版本）
@@ -38,189 +47,280 @@ import java.util.Map;
 public class RagConsumer {
 
     private final KbDocumentRepository documentRepository;
-    private final EmbeddingModel embeddingModel;
+    private final EmbeddingBatchService embeddingBatchService;
     private final JdbcClient jdbcClient;
-    private final ObjectMapper objectMapper;
-    private final RedisTemplate<String, Object> redisTemplate;
+    private final DocumentLeaseManager leaseManager;
     private final TransactionTemplate transactionTemplate;
     private final StorageService storageService;
+    private final IngestionPipeline ingestionPipeline;
+    private final DocStatusService docStatusService;
+    private final DocumentIngestSupport ingestSupport;
+    private final FailureRouter failureRouter;
+    private final SemanticAnswerCache semanticAnswerCache;
 
-    @RabbitListener(queues = RabbitConfig.RAG_UPLOAD_QUEUE, concurrency = "5-10")
-    public void processUpload(DocUploadMessage msg) {
-        String distinctKey = "rag:process:" + msg.getDocId();
+    /**
+     * 每攒够多少块向量化并写库一次
+     */
+    @Value("${rag.ingest.flush-size:100}")
+    private int flushSize;
+    /**
+     * 文件读取方式：file（先下载到本地临时文件再解析）、stream（边下载边解析）
+     */
+    @Value("${rag.ingest.download-mode:file}")
+    private String downloadMode;
+
+    /**
+     * 并发数由 IngestionGovernor 按向量化和写库情况动态调整，这里只是初始值
+     */
+    @RabbitListener(id = IngestionGovernor.UPLOAD_LISTENER_ID, queues = RabbitConfig.RAG_UPLOAD_QUEUE,
+            concurrency = "${rag.governor.initial-concurrency:5}")
+    public void processUpload(DocUploadMessage msg,
+                              @Header(name = FailureRouter.RETRY_COUNT_HEADER, required = false) Integer retryCount,
+                              @Header(name = AmqpHeaders.RECEIVED_ROUTING_KEY, required = false) String routingKey) {
+        process(msg, retryCount, routingKey);
+    }
 
+    /**
+     * 处理一篇文档，交互通道的监听和批量通道的 FairShareDispatcher 共用
+     * @param retryCount 该消息已重试的次数
+     * @param routingKey 消息收到时的路由键，失败重试时回到该通道
+     */
+    public void process(DocUploadMessage msg, Integer retryCount, String routingKey) {
+        DocumentLeaseManager.Lease lease = null;
         try {
             log.info("========================================");
             log.info("收到MQ消息，开始处理文件上传");
             log.info("文档ID: {}", msg.getDocId());
             log.info("========================================");
 
-            // 1. 幂等性检查
-            if (!checkIdempotent(distinctKey, msg.getDocId())) {
-                log.warn("检测到重复处理，跳过，docId={}", msg.getDocId());
-                return;  // Spring自动ACK
+            // 1. 领取文档：获取租约并在数据库中把状态改为处理中
+            lease = leaseManager.tryAcquire(msg.getDocId(), msg.getDocVersion());
+            if (lease == null) {
+                return;  // 文档已完成、不存在或消息版本已过期，Spring自动ACK
             }
 
-            // 2. 检查文档是否存在
+            // 2. 加载文档
             KbDocument kbDoc = documentRepository.findById(msg.getDocId())
-                    .orElseThrow(() -> {
-                        log.error("文档不存在，docId={}", msg.getDocId());
-                        redisTemplate.delete(distinctKey);
-                        return new IllegalArgumentException("文档不存在");
-                    });
-
-            // 3. 更新状态为处理中
-            log.info("更新文档状态为PROCESSING，docId={}", msg.getDocId());
-            kbDoc.setStatus("PROCESSING");
-            documentRepository.save(kbDoc);
-
-            // 4. 处理文档
+                    .orElseThrow(() -> new DocumentMissingException(msg.getDocId()));
+            docStatusService.publish(kbDoc);
+
+            // 3. 处理文档
             log.info("开始处理文档，docId={}", msg.getDocId());
-            processDocument(kbDoc, msg);
+            processDocument(kbDoc, msg, lease);
 
-            // 5. 完成
+            // 4. 完成
             log.info("文档处理完成，docId={}, 状态={}", msg.getDocId(), kbDoc.getStatus());
 
+        } catch (LeaseBusyException e) {
+            // 其他节点正在处理（如旧版本尚未退出），稍后重新投递，不能直接丢弃
+            failureRouter.defer(msg, retryCount, routingKey, e);
         } catch (Exception e) {
+            if (LeaseLostException.isCause(e)) {
+                // 已由其他节点接管，当前节点的结果全部作废，也不再重试
+                log.error("文档租约已失效，放弃处理，docId={}", msg.getDocId());
+                return;
+            }
             log.error("文档处理失败，docId={}", msg.getDocId(), e);
-            handleFailure(msg.getDocId(), e);
-            // 抛出异常，Spring自动NACK并重试
-            throw new RuntimeException("文档处理失败: " + e.getMessage(), e);
+            // 按失败类型投递到延迟重试队列或死信队列，消息本身正常确认
+            failureRouter.route(msg, retryCount, routingKey, e, lease);
         } finally {
-            redisTemplate.delete(distinctKey);
+            leaseManager.release(lease);
         }
     }
 
-    /**
-     * 幂等性检查
-     */
-    private boolean checkIdempotent(String distinctKey, Long docId) {
-        Boolean isAbsent = redisTemplate.opsForValue()
-                .setIfAbsent(distinctKey, "PROCESSING", Duration.ofHours(1));
-
-        if (Boolean.FALSE.equals(isAbsent)) {
-            log.warn("幂等性检查失败，正在处理或已处理，docId={}", docId);
-            return false;
-        }
-
-        return true;
-    }
-
     /**
      * 处理文档的核心逻辑
+     * 解析分块在当前线程流式进行，每攒够一批交给入库流水线，向量化和写库在各自的线程池中重叠执行，
+     * 内存占用只与块大小和在途批次数有关，与文档大小无关。
+     * 重新处理同一文档（新版本）时按内容哈希与库中旧版本的块比对，只向量化和写入新增的块，
+     * 最后删除仍停留在旧版本的块，向量化开销和写入量与改动量成正比。
+     * 每批写库时在同一事务中记录断点，重试或重复投递时跳过已入库的部分。
+     * 所有写库都校验防护令牌和文档版本，租约丢失或期间上传了新版本时本节点的写入会被拒绝并整批回滚。
      */
-    private void processDocument(KbDocument kbDoc, DocUploadMessage msg) throws Exception {
-        String ossKey = msg.getLocalFilePath();
-
-        // 1. 从OSS下载并解析文件
-        log.info("开始下载并解析文件，ossKey={}", ossKey);
-        String content = downloadAndParseFile(ossKey, kbDoc.getFilename());
-        log.info("文件解析完成，内容长度={}字符", content.length());
+    private void processDocument(KbDocument kbDoc, DocUploadMessage msg, DocumentLeaseManager.Lease lease)
+            throws Exception {
+        // 对象名以文档记录为准，消息中的路径可能是旧版本的文件
+        String ossKey = kbDoc.getFilepath();
+        Long docId = kbDoc.getId();
+        if (kbDoc.getDocVersion() == null) {
+            kbDoc.setDocVersion(1);
+        }
+        int docVersion = kbDoc.getDocVersion();
+        int resumeChunks = kbDoc.getProcessedChunks() == null ? 0 : kbDoc.getProcessedChunks();
+        long resumeOffset = kbDoc.getParsedOffset() == null ? 0 : kbDoc.getParsedOffset();
+        if (resumeChunks > 0) {
+            log.info("从断点继续处理，docId={}, 已入库块数={}, 文本位置={}", docId, resumeChunks, resumeOffset);
+        }
 
-        // 2. 文本清洗
-        content = cleanText(content);
+        // 1. 加载旧版本的块用于比对，并开始近似重复检测
+        ChunkDiff diff = ingestSupport.newChunkDiff(kbDoc);
 
-        // 3. 文本分块
-        log.info("开始文本分块...");
-        TokenTextSplitter splitter = new TokenTextSplitter(800, 350, 5, 10000, true);
-        List<Document> chunks = splitter.split(new Document(content));
-        log.info("文本分块完成，共{}个块", chunks.size());
+        // 2. 边解析边分块，每批提交给流水线向量化并写库
+        log.info("开始流式解析并分块，ossKey={}", ossKey);
+        ChunkBatcher batcher;
+        Path tempFile = null;
+        try {
+            TikaInputStream stream;
+            if ("stream".equals(downloadMode)) {
+                stream = TikaInputStream.get(storageService.getFileStream(ossKey));
+            } else {
+                // 先完整下载到本地，解析时按磁盘速度读取，不占用 OSS 连接
+                tempFile = Files.createTempFile("rag-doc-" + docId + "-", ".tmp");
+                storageService.downloadToFile(ossKey, tempFile);
+                stream = TikaInputStream.get(tempFile);
+            }
+            try (stream) {
+                IngestionPipeline.Run<EmbeddedBatch> run = ingestionPipeline.start(docId,
+                        (startIndex, chunks) -> {
+                            // 租约丢失后不再浪费向量化额度
+                            lease.checkValid();
+                            return embedChunks(diff, startIndex, chunks);
+                        },
+                        (startIndex, chunks, endOffset, bytesRead, batch) -> saveChunksToDatabase(kbDoc, lease,
+                                startIndex, chunks, endOffset, batch, progressOf(bytesRead, kbDoc.getFileSize())));
+                // 读取位置在解析线程提交批次时记下，写库线程读 stream 既不安全也会高估进度
+                batcher = new ChunkBatcher(flushSize, resumeChunks, stream::getPosition, run::submit);
+                ChunkingContentHandler handler = ingestSupport.newChunkingHandler(batcher);
+                handler.resumeFrom(resumeOffset, resumeChunks);
+                try {
+                    ingestSupport.parse(stream, kbDoc, handler);
+                    // 部分解析器不会透传 endDocument，这里补一次，重复调用无副作用
+                    handler.endDocument();
+                    batcher.flush();
+                } catch (Exception e) {
+                    run.abort(e);
+                    throw e;
+                }
+                run.await();
+            }
+        } finally {
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
 
-        // 4. 向量化并存储到数据库
-        log.info("开始向量化和存储...");
-        saveChunksToDatabase(kbDoc.getId(), kbDoc.getFilename(), chunks);
-        log.info("向量化和存储完成");
+        // 3. 标记完成并删除新版本中已经不存在的旧块，校验防护令牌
+        int processedChunks = batcher.getSubmittedCount();
+        long parsedOffset = batcher.getLastEndOffset() > 0 ? batcher.getLastEndOffset()
+                : kbDoc.getParsedOffset() == null ? 0 : kbDoc.getParsedOffset();
+        Integer deleted = transactionTemplate.execute(status -> {
+            int updated = jdbcClient.sql("""
+                          UPDATE kb_documents
+                          SET status = 'COMPLETED', progress = 100, processed_chunks = :processed, parsed_offset = :offset
+                          WHERE id = :id AND lease_token = :token AND COALESCE(doc_version, 1) = :version
+                      """)
+                    .param("processed", processedChunks)
+                    .param("offset", parsedOffset)
+                    .param("version", docVersion)
+                    .param("id", docId)
+                    .param("token", lease.getFencingToken())
+                    .update();
+            if (updated == 0) {
+                throw new LeaseLostException("防护令牌已过期，放弃提交，docId=" + docId);
+            }
+            ingestSupport.linkInDocumentDuplicates(docId, docVersion);
+            return ingestSupport.deleteStaleChunks(docId, docVersion);
+        });
+        log.info("向量化和存储完成，共{}个块，复用={}, 新增={}, 删除={}",
+                processedChunks, diff.getReused(), diff.getAdded(), deleted);
 
-        // 5. 更新状态为完成
+        // 4. 推送完成状态
         kbDoc.setStatus("COMPLETED");
-        documentRepository.save(kbDoc);
+        kbDoc.setProgress(100);
+        kbDoc.setProcessedChunks(processedChunks);
+        kbDoc.setParsedOffset(parsedOffset);
+        docStatusService.publish(kbDoc);
+        // 新版本替换了旧内容，依据旧版本生成的语义缓存答案不再可信
+        if (docVersion > 1) {
+            semanticAnswerCache.evictGroup(kbDoc.getPermissionGroup());
+        }
     }
 
     /**
-     * 从OSS下载文件并解析内容
+     * 按已读取字节估算进度，未完成前最多 99
      */
-    private String downloadAndParseFile(String ossKey, String filename) throws Exception {
-        try (InputStream stream = storageService.getFileStream(ossKey)) {
-            BodyContentHandler handler = new BodyContentHandler(-1);
-            Parser parser = new AutoDetectParser();
-            Metadata metadata = new Metadata();
-            metadata.set(TikaCoreProperties.RESOURCE_NAME_KEY, filename);
-            ParseContext context = new ParseContext();
-            parser.parse(stream, handler, metadata, context);
-            return handler.toString();
+    private int progressOf(long bytesRead, Long fileSize) {
+        if (fileSize == null || fileSize <= 0) {
+            return 0;
         }
+        return (int) Math.min(99, bytesRead * 100 / fileSize);
     }
 
     /**
-     * 文本清洗
+     * 比对并向量化一批文档块，只有新增且不是近似重复的块调用向量化，任一块失败则整批失败
      */
-    private String cleanText(String content) {
-        return content.replaceAll("\\n+", "\n");
+    private EmbeddedBatch embedChunks(ChunkDiff diff, int startIndex, List<String> chunks) {
+        EmbeddedBatch batch = ingestSupport.diff(diff, startIndex, chunks);
+        List<Integer> newIndexes = new ArrayList<>();
+        List<String> newTexts = new ArrayList<>();
+        List<String> newHashes = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            if (batch.needsEmbedding(i)) {
+                newIndexes.add(i);
+                newTexts.add(chunks.get(i));
+                newHashes.add(batch.getContentHashes().get(i));
+            }
+        }
+
+        if (!newTexts.isEmpty()) {
+            EmbeddingBatchResult embeddingResult = embeddingBatchService.embed(newTexts, newHashes);
+            if (embeddingResult.hasFailures()) {
+                throw new EmbeddingException("文档块向量化失败，失败数=" + embeddingResult.getFailedIndexes().size()
+                        + ", 原因=" + embeddingResult.getLastError(), embeddingResult.getLastException());
+            }
+            for (int i = 0; i < newIndexes.size(); i++) {
+                batch.getEmbeddings().set(newIndexes.get(i), embeddingResult.getEmbeddings().get(i));
+            }
+        }
+        return batch;
     }
 
     /**
-     * 保存文档块到数据库
+     * 保存一批已比对、向量化的文档块，并在同一事务中记录断点
+     * 新增的块批量写入；复用的块标记为当前版本并更新 metadata 中的 chunk_index
+     * @param startIndex 该批第一块在文档中的序号
+     * @param endOffset  该批最后一块在清洗后文本中的结束位置
      */
-    private void saveChunksToDatabase(Long docId, String filename, List<Document> chunks) {
+    private void saveChunksToDatabase(KbDocument kbDoc, DocumentLeaseManager.Lease lease, int startIndex,
+                                      List<String> chunks, long endOffset, EmbeddedBatch batch, int progress) {
+        Long docId = kbDoc.getId();
         transactionTemplate.execute(status -> {
             try {
-                // 1. 清理旧数据
-                jdbcClient.sql("DELETE FROM document_chunks WHERE doc_id = ?")
-                        .param(docId)
-                        .update();
+                List<ChunkRecord> records = new ArrayList<>();
+                List<Object[]> reusedArgs = new ArrayList<>();
+                ingestSupport.collect(kbDoc, startIndex, chunks, batch, records, reusedArgs);
+                ingestSupport.write(records, reusedArgs);
 
-                // 2. 批量插入
-                int chunkIndex = 0;
-                for (Document chunk : chunks) {
-                    Map<String, Object> metadataMap = new HashMap<>();
-                    metadataMap.put("source", "rabbitmq");
-                    metadataMap.put("filename", filename);
-                    metadataMap.put("file_id", docId);
-                    metadataMap.put("chunk_index", chunkIndex++);
-
-                    String metadataJson = objectMapper.writeValueAsString(metadataMap);
-                    List<Double> embedding = embeddingModel.embed(chunk.getContent());
-
-                    String sql = """
-                          INSERT INTO document_chunks (doc_id, content, metadata, embedding)
-                          VALUES (:docId, :content, :metadata::jsonb, :embedding::vector)
-                      """;
-                    jdbcClient.sql(sql)
-                            .param("docId", docId)
-                            .param("content", chunk.getContent())
-                            .param("metadata", metadataJson)
-                            .param("embedding", embedding.toString())
-                            .update();
+                // 断点与本批数据同一事务提交，防护令牌不一致说明租约已被接管，整批回滚
+                int updated = jdbcClient.sql("""
+                          UPDATE kb_documents
+                          SET processed_chunks = :processed, parsed_offset = :offset, progress = :progress
+                          WHERE id = :id AND lease_token = :token AND COALESCE(doc_version, 1) = :version
+                      """)
+                        .param("processed", startIndex + chunks.size())
+                        .param("version", kbDoc.getDocVersion())
+                        .param("offset", endOffset)
+                        .param("progress", progress)
+                        .param("id", docId)
+                        .param("token", lease.getFencingToken())
+                        .update();
+                if (updated == 0) {
+                    throw new LeaseLostException("防护令牌已过期，本批不写入，docId=" + docId);
                 }
 
-                log.info("成功插入{}个文档块", chunks.size());
+                log.info("成功保存{}个文档块，新增={}, 起始序号={}, 进度={}%",
+                        chunks.size(), records.size(), startIndex, progress);
                 return null;
 
+            } catch (LeaseLostException e) {
+                throw e;
             } catch (Exception e) {
                 log.error("保存文档块失败", e);
                 throw new RuntimeException("保存文档块失败: " + e.getMessage(), e);
             }
         });
+        // 提交后再推送进度，写库阶段按批次顺序执行，进度不会倒退
+        kbDoc.setProgress(progress);
+        docStatusService.publish(kbDoc);
     }
-
-    /**
-     * 处理失败情况
-     */
-    private void handleFailure(Long docId, Exception e) {
-        try {
-            KbDocument doc = documentRepository.findById(docId).orElse(null);
-            if (doc != null) {
-                doc.setStatus("FAILED");
-                String errorMsg = e.getMessage();
-                if (errorMsg != null && errorMsg.length() > 1000) {
-                    errorMsg = errorMsg.substring(0, 1000) + "...";
-                }
-                doc.setErrorMessage(errorMsg);
-                documentRepository.save(doc);
-                log.info("已更新文档状态为FAILED，docId={}", docId);
-            }
-        } catch (Exception ex) {
-            log.error("更新失败状态时出错", ex);
-        }
-    }
-}
\ No newline at end of file
+}
@@ -1,37 +1,43 @@
 package org.example.rag.mq;
 
-import com.rabbitmq.client.Channel;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.example.rag.config.RabbitConfig;
+import org.example.rag.entity.ParkedDocument;
 import org.example.rag.entity.dto.DocUploadMessage;
+import org.example.rag.ingest.FailureType;
+import org.example.rag.repository.ParkedDocumentRepository;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 
-import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
 
-import java.io.IOException;
-
+/**
+ * 死信消费者：把进入死信队列的文档登记到 parked_documents，按失败类型分类，等待批量重放
+ */
 @Slf4j
 @Component
+@RequiredArgsConstructor
 public class RagDeadLetterConsumer {
 
-    @RabbitListener(queues = RabbitConfig.RAG_DL_QUEUE)
-    public void processDeadLetter(DocUploadMessage msg, Channel channel, @Header(AmqpHeaders.DELIVERY_TAG) long tag)  {
+    private final ParkedDocumentRepository parkedDocumentRepository;
 
-        // 在这里添加处理死信消息的逻辑，例如记录日志、报警等
-        try{
-            log.error("收到死信队列消息，文档ID: {}, 可能处理失败多次，请检查相关问题。", msg.getDocId());
-            // 手动确认消息已被处理
-            channel.basicAck(tag, false);
-        } catch (Exception e) {
-            log.error("处理死信消息时发生异常，文档ID: {}", msg.getDocId(), e);
-            try {
-                // 拒绝消息并不重新入队
-                channel.basicAck(tag, false);
-            } catch (IOException ioException) {
-                log.error("拒绝死信消息时发生异常，文档ID: {}", msg.getDocId(), ioException);
-            }
-        }
+    @RabbitListener(queues = RabbitConfig.RAG_DL_QUEUE)
+    public void processDeadLetter(DocUploadMessage msg,
+                                  @Header(name = FailureRouter.FAILURE_TYPE_HEADER, required = false) String failureType,
+                                  @Header(name = FailureRouter.ERROR_HEADER, required = false) String error,
+                                  @Header(name = FailureRouter.RETRY_COUNT_HEADER, required = false) Integer retryCount) {
+        // 由 broker 直接转入的死信（如消费者抛出异常被拒绝）没有失败类型
+        ParkedDocument parked = new ParkedDocument();
+        parked.setDocId(msg.getDocId());
+        parked.setOssKey(msg.getLocalFilePath());
+        parked.setUserId(msg.getUserId());
+        parked.setPermissionGroup(msg.getGroup());
+        parked.setFailureType(failureType == null ? FailureType.UNKNOWN.name() : failureType);
+        parked.setErrorMessage(error);
+        parked.setRetryCount(retryCount == null ? 0 : retryCount);
+        parkedDocumentRepository.save(parked);
+        log.error("收到死信队列消息，已登记待重放，文档ID: {}, 失败类型: {}, 原因: {}",
+                msg.getDocId(), parked.getFailureType(), error);
     }
 }
@@ -0,0 +1,90 @@
+package org.example.rag.mq;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.config.RabbitConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 选择处理队列
+ * 1. 交互通道：零散的单次上传，按文件大小分到单文档队列或小文件批量队列，消费者独占，延迟不受批量导入影响
+ * 2. 批量通道：每个权限组一个队列，由 FairShareDispatcher 按权重轮流处理
+ * 某个权限组一分钟内的上传数超过 interactivePerMinute 时，该组后续上传自动降到批量通道，
+ * 一个部门集中导入时只会在自己的队列里排队。
+ */
+@Slf4j
+@Component
+public class UploadRouter {
+
+    private static final String RATE_KEY_PREFIX = "rag:fair:rate:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final BulkLaneRegistry bulkLaneRegistry;
+
+    /**
+     * 不超过该大小的文件视为小文件，0 表示关闭批量处理
+     */
+    @Value("${rag.ingest.small-file-threshold:262144}")
+    private long smallFileThreshold;
+    /**
+     * 单个权限组每分钟最多多少次上传走交互通道，0 表示不降级
+     */
+    @Value("${rag.fair.interactive-per-minute:30}")
+    private long interactivePerMinute;
+
+    public UploadRouter(StringRedisTemplate stringRedisTemplate, BulkLaneRegistry bulkLaneRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.bulkLaneRegistry = bulkLaneRegistry;
+    }
+
+    /**
+     * 单次上传的路由键
+     */
+    public String routingKeyFor(String permissionGroup, Long fileSize) {
+        if (isBursting(permissionGroup)) {
+            return bulkRoutingKeyFor(permissionGroup);
+        }
+        return isSmallFile(fileSize) ? RabbitConfig.RAG_SMALL_ROUTING_KEY : RabbitConfig.RAG_ROUTING_KEY;
+    }
+
+    /**
+     * 批量导入、死信重放等批量操作的路由键
+     */
+    public String bulkRoutingKeyFor(String permissionGroup) {
+        return bulkLaneRegistry.ensureLane(permissionGroup);
+    }
+
+    public boolean isSmallFile(Long fileSize) {
+        return fileSize != null && fileSize > 0 && fileSize <= smallFileThreshold;
+    }
+
+    /**
+     * 按分钟计数该权限组的上传次数，超过阈值视为集中导入
+     */
+    private boolean isBursting(String permissionGroup) {
+        if (interactivePerMinute <= 0) {
+            return false;
+        }
+        String key = RATE_KEY_PREFIX + permissionGroup + ":" + System.currentTimeMillis() / 60_000;
+        try {
+            Long count = stringRedisTemplate.opsForValue().increment(key);
+            if (count != null && count == 1) {
+                stringRedisTemplate.expire(key, Duration.ofMinutes(2));
+            }
+            if (count != null && count > interactivePerMinute) {
+                if (count == interactivePerMinute + 1) {
+                    log.info("权限组上传过于集中，转入批量通道，group={}", permissionGroup);
+                }
+                return true;
+            }
+            return false;
+        } catch (Exception e) {
+            // 计数失败时按交互上传处理
+            log.warn("上传计数失败，group={}", permissionGroup, e);
+            return false;
+        }
+    }
+}
@@ -6,9 +6,65 @@ import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 public interface KbDocumentRepository extends JpaRepository<KbDocument,Long> {
     // 查询某组下是否存在该 Hash 的文件
     boolean existsByFileHashAndPermissionGroup(String fileHash, String permissionGroup);
+    // 查询某组下该 Hash 的文件，用于重复上传时返回已有文档ID
+    Optional<KbDocument> findFirstByFileHashAndPermissionGroup(String fileHash, String permissionGroup);
+    // 批量上传时一次查出某组下已存在的 Hash
+    @Query("SELECT d.fileHash FROM KbDocument d WHERE d.permissionGroup = :group AND d.fileHash IN :hashes")
+    List<String> findExistingHashes(@Param("group") String permissionGroup, @Param("hashes") Collection<String> hashes);
+    // 上传任务下各状态的文档数，每行为 [status, count]
+    @Query("SELECT d.status, COUNT(d) FROM KbDocument d WHERE d.uploadJobId = :jobId GROUP BY d.status")
+    List<Object[]> countStatusByUploadJob(@Param("jobId") Long uploadJobId);
+    /**
+     * 登记新版本：指向新文件、版本号加一、清空断点，并递增防护令牌，
+     * 仍在处理旧版本的节点下一次写库即失败，不会把版本号和状态改回去
+     * 只更新这些列，不覆盖消费者通过 JDBC 写入的其他列
+     *
+     * @return 更新的行数，文档不存在时为 0
+     */
+    @Modifying(clearAutomatically = true)
+    @Query(value = """
+            UPDATE kb_documents
+            SET filename = :filename, file_size = :fileSize, filetype = :filetype, file_hash = :fileHash,
+                filepath = :filepath, status = 'PENDING', error_message = NULL,
+                progress = 0, processed_chunks = 0, parsed_offset = 0,
+                doc_version = COALESCE(doc_version, 1) + 1, lease_token = COALESCE(lease_token, 0) + 1
+            WHERE id = :id
+            """, nativeQuery = true)
+    int startNewVersion(@Param("id") Long docId, @Param("filename") String filename, @Param("fileSize") Long fileSize,
+                        @Param("filetype") String filetype, @Param("fileHash") String fileHash,
+                        @Param("filepath") String filepath);
+    /**
+     * 死信重放前把文档恢复为待处理，只更新状态和错误信息；正在处理或已完成的文档不更新
+     *
+     * @return 更新的行数，文档不存在、正在处理或已完成时为 0
+     */
+    @Modifying(clearAutomatically = true)
+    @Query(value = """
+            UPDATE kb_documents SET status = 'PENDING', error_message = NULL
+            WHERE id = :id AND status NOT IN ('PROCESSING', 'COMPLETED')
+            """, nativeQuery = true)
+    int resetForReplay(@Param("id") Long docId);
+    /**
+     * 其他文档的近似重复块指向该文档的块时，把原块的向量复制过去，转为独立的块，需在删除文档片段之前调用
+     *
+     * @param docId 文档ID
+     * @return 转为独立块的数量
+     */
+    @Modifying
+    @Query(value = """
+            UPDATE document_chunks d
+            SET embedding = c.embedding, duplicate_of = NULL
+            FROM document_chunks c
+            WHERE d.duplicate_of = c.id AND c.doc_id = :docId AND d.doc_id <> :docId
+            """, nativeQuery = true)
+    int promoteDuplicatesOfDoc(@Param("docId") Long docId);
     /**
      * 级联删除文档片段
      *
@@ -0,0 +1,7 @@
+package org.example.rag.repository;
+
+import org.example.rag.entity.OutboxMessage;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface OutboxMessageRepository extends JpaRepository<OutboxMessage, Long> {
+}
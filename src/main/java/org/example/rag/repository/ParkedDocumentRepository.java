@@ -0,0 +1,43 @@
+package org.example.rag.repository;
+
+import org.example.rag.entity.ParkedDocument;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface ParkedDocumentRepository extends JpaRepository<ParkedDocument, Long> {
+    /**
+     * 按条件查询，条件为 null 时不过滤
+     */
+    @Query("""
+            SELECT p FROM ParkedDocument p
+            WHERE p.status = :status
+              AND (:failureType IS NULL OR p.failureType = :failureType)
+              AND (:permissionGroup IS NULL OR p.permissionGroup = :permissionGroup)
+              AND (:parkedAfter IS NULL OR p.parkedAt >= :parkedAfter)
+            ORDER BY p.id
+            """)
+    List<ParkedDocument> search(@Param("status") String status,
+                                @Param("failureType") String failureType,
+                                @Param("permissionGroup") String permissionGroup,
+                                @Param("parkedAfter") LocalDateTime parkedAfter,
+                                Pageable pageable);
+
+    /**
+     * 开始重放一条记录，只有仍处于本次选中时的 QUEUED 状态才会更新
+     *
+     * @param queuedAt 选中时写入的时间，超时恢复后被再次选中的记录该值不同
+     */
+    @Modifying
+    @Query("""
+            UPDATE ParkedDocument p SET p.status = 'REPLAYED', p.replayedAt = :replayedAt
+            WHERE p.id = :id AND p.status = 'QUEUED' AND p.queuedAt = :queuedAt
+            """)
+    int markReplayed(@Param("id") Long id, @Param("queuedAt") LocalDateTime queuedAt,
+                     @Param("replayedAt") LocalDateTime replayedAt);
+}
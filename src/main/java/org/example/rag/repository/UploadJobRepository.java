@@ -0,0 +1,7 @@
+package org.example.rag.repository;
+
+import org.example.rag.entity.UploadJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface UploadJobRepository extends JpaRepository<UploadJob, Long> {
+}
@@ -0,0 +1,415 @@
+package org.example.rag.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.tika.Tika;
+import org.example.rag.common.UserContext;
+import org.example.rag.config.RabbitConfig;
+import org.example.rag.entity.UploadJob;
+import org.example.rag.entity.dto.DocUploadMessage;
+import org.example.rag.entity.dto.UploadJobStatus;
+import org.example.rag.mq.UploadRouter;
+import org.example.rag.repository.KbDocumentRepository;
+import org.example.rag.repository.UploadJobRepository;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 压缩包批量上传
+ * 一次请求上传整个 zip/tar（可 gzip 压缩），边读请求体边解压，不在内存或磁盘上保留整个压缩包：
+ * 1. 每个文件落到临时文件，同时计算 MD5
+ * 2. 每攒够 windowSize 个文件处理一批：包内按哈希去重，再一次查询剔除组内已有的文件
+ * 3. 剩余文件并发上传到对象存储
+ * 4. 一个事务中多行 INSERT 登记文档，发件箱一次登记全部处理消息，投递到该权限组的批量通道
+ * 整个压缩包对应一个 UploadJob，通过任务ID查询各状态的文档数。
+ */
+@Slf4j
+@Service
+public class BulkUploadService implements DisposableBean {
+
+    private static final Tika TIKA = new Tika();
+    /**
+     * 单条 INSERT 最多登记的文档数
+     */
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private final KbDocumentRepository documentRepository;
+    private final UploadJobRepository uploadJobRepository;
+    private final StorageService storageService;
+    private final OutboxService outboxService;
+    private final UploadRouter uploadRouter;
+    private final JdbcClient jdbcClient;
+    private final TransactionTemplate transactionTemplate;
+    private final ExecutorService uploadExecutor;
+
+    /**
+     * 每批处理的文件数，每批做一次去重查询和一次批量登记
+     */
+    @Value("${rag.bulk.window-size:1000}")
+    private int windowSize;
+    /**
+     * 单个压缩包最多文件数
+     */
+    @Value("${rag.bulk.max-files:20000}")
+    private int maxFiles;
+    /**
+     * 单个文件大小上限，与单文件上传的限制一致
+     */
+    @Value("${rag.bulk.max-file-bytes:52428800}")
+    private long maxFileBytes;
+
+    public BulkUploadService(KbDocumentRepository documentRepository, UploadJobRepository uploadJobRepository,
+                             StorageService storageService, OutboxService outboxService, UploadRouter uploadRouter,
+                             JdbcClient jdbcClient, TransactionTemplate transactionTemplate,
+                             @Value("${rag.bulk.upload-parallelism:8}") int uploadParallelism) {
+        this.documentRepository = documentRepository;
+        this.uploadJobRepository = uploadJobRepository;
+        this.storageService = storageService;
+        this.outboxService = outboxService;
+        this.uploadRouter = uploadRouter;
+        this.jdbcClient = jdbcClient;
+        this.transactionTemplate = transactionTemplate;
+        AtomicInteger index = new AtomicInteger();
+        this.uploadExecutor = Executors.newFixedThreadPool(Math.max(1, uploadParallelism), r -> {
+            Thread thread = new Thread(r, "bulk-upload-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 解压过程中暂存在本地的文件
+     */
+    private static class SpooledFile {
+        private final String filename;
+        private final Path path;
+        private final long size;
+        private final String fileHash;
+        private String ossKey;
+
+        private SpooledFile(String filename, Path path, long size, String fileHash) {
+            this.filename = filename;
+            this.path = path;
+            this.size = size;
+            this.fileHash = fileHash;
+        }
+    }
+
+    /**
+     * 上传压缩包，读完整个请求体后返回任务ID，文档处理在后台进行
+     * @param body        压缩包数据流，支持 zip、tar、tar.gz
+     * @param archiveName 压缩包名称，仅用于记录
+     */
+    public Long upload(InputStream body, String archiveName) {
+        Long userId = UserContext.getUserId();
+        List<String> roles = UserContext.getRoles();
+        if (userId == null || roles == null || roles.isEmpty()) {
+            throw new IllegalArgumentException("用户未登录或无权限");
+        }
+        String group = roles.get(0);
+
+        UploadJob job = new UploadJob();
+        job.setUserId(userId);
+        job.setPermissionGroup(group);
+        job.setArchiveName(archiveName);
+        job = uploadJobRepository.save(job);
+        log.info("开始批量上传，jobId={}, 用户ID={}, 权限组={}, 压缩包={}", job.getId(), userId, group, archiveName);
+
+        String routingKey = uploadRouter.bulkRoutingKeyFor(group);
+        Set<String> seenHashes = new HashSet<>();
+        List<SpooledFile> window = new ArrayList<>();
+        try (ArchiveInputStream<?> archive = openArchive(body)) {
+            ArchiveEntry entry;
+            while ((entry = archive.getNextEntry()) != null) {
+                if (entry.isDirectory() || isHidden(entry.getName())) {
+                    continue;
+                }
+                job.setTotalFiles(job.getTotalFiles() + 1);
+                if (job.getTotalFiles() > maxFiles) {
+                    throw new IllegalArgumentException("压缩包文件数超过上限" + maxFiles);
+                }
+                SpooledFile file = archive.canReadEntryData(entry) ? spool(archive, entry.getName()) : null;
+                if (file == null) {
+                    job.setSkippedFiles(job.getSkippedFiles() + 1);
+                    continue;
+                }
+                window.add(file);
+                if (window.size() >= windowSize) {
+                    flush(job, userId, routingKey, window, seenHashes);
+                    window.clear();
+                }
+            }
+            flush(job, userId, routingKey, window, seenHashes);
+            window.clear();
+            job.setStatus("QUEUED");
+        } catch (Exception e) {
+            log.error("批量上传失败，jobId={}", job.getId(), e);
+            job.setStatus("FAILED");
+            job.setErrorMessage(e.getMessage());
+        } finally {
+            window.forEach(this::deleteTemp);
+            job.setFinishedAt(LocalDateTime.now());
+            uploadJobRepository.save(job);
+        }
+
+        if ("FAILED".equals(job.getStatus()) && job.getAcceptedFiles() == 0) {
+            throw new RuntimeException("压缩包处理失败: " + job.getErrorMessage());
+        }
+        log.info("批量上传登记完成，jobId={}, 文件数={}, 新增={}, 重复={}, 跳过={}, 失败={}",
+                job.getId(), job.getTotalFiles(), job.getAcceptedFiles(), job.getDuplicateFiles(),
+                job.getSkippedFiles(), job.getFailedFiles());
+        return job.getId();
+    }
+
+    /**
+     * 查询任务进度
+     * @param roles 当前用户的权限组，无权访问时抛出异常
+     */
+    public UploadJobStatus getStatus(Long jobId, List<String> roles) {
+        UploadJob job = uploadJobRepository.findById(jobId)
+                .orElseThrow(() -> new IllegalArgumentException("上传任务不存在"));
+        if (roles == null || !roles.contains(job.getPermissionGroup())) {
+            throw new IllegalArgumentException("无权访问该上传任务");
+        }
+        Map<String, Long> documents = new LinkedHashMap<>();
+        for (Object[] row : documentRepository.countStatusByUploadJob(jobId)) {
+            documents.put((String) row[0], ((Number) row[1]).longValue());
+        }
+        UploadJobStatus status = new UploadJobStatus();
+        status.setJob(job);
+        status.setDocuments(documents);
+        return status;
+    }
+
+    @Override
+    public void destroy() {
+        uploadExecutor.shutdownNow();
+    }
+
+    /**
+     * 处理一批文件：去重、并发上传、批量登记和投递
+     */
+    private void flush(UploadJob job, Long userId, String routingKey, List<SpooledFile> window,
+                       Set<String> seenHashes) {
+        if (window.isEmpty()) {
+            return;
+        }
+        String group = job.getPermissionGroup();
+        try {
+            // 1. 包内去重，再一次查询剔除组内已有的文件
+            List<SpooledFile> candidates = new ArrayList<>();
+            for (SpooledFile file : window) {
+                if (seenHashes.add(file.fileHash)) {
+                    candidates.add(file);
+                }
+            }
+            if (!candidates.isEmpty()) {
+                Set<String> existing = new HashSet<>(documentRepository.findExistingHashes(group,
+                        candidates.stream().map(file -> file.fileHash).toList()));
+                candidates.removeIf(file -> existing.contains(file.fileHash));
+            }
+            job.setDuplicateFiles(job.getDuplicateFiles() + window.size() - candidates.size());
+
+            // 2. 并发上传到对象存储
+            List<CompletableFuture<Boolean>> futures = candidates.stream()
+                    .map(file -> CompletableFuture.supplyAsync(() -> store(file, group), uploadExecutor))
+                    .toList();
+            List<SpooledFile> stored = new ArrayList<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                SpooledFile file = candidates.get(i);
+                if (futures.get(i).join()) {
+                    stored.add(file);
+                } else {
+                    // 上传失败的文件不算已见过，包内后面内容相同的文件还能再试
+                    seenHashes.remove(file.fileHash);
+                    job.setFailedFiles(job.getFailedFiles() + 1);
+                }
+            }
+
+            // 3. 一个事务中登记文档并登记处理消息
+            if (!stored.isEmpty()) {
+                try {
+                    transactionTemplate.executeWithoutResult(status -> {
+                        Map<String, Long> ids = insertDocuments(job.getId(), group, stored);
+                        List<DocUploadMessage> messages = new ArrayList<>(stored.size());
+                        for (SpooledFile file : stored) {
+                            messages.add(new DocUploadMessage(ids.get(file.ossKey), file.ossKey, userId, group,
+                                    file.size, 1));
+                        }
+                        outboxService.enqueueAll(RabbitConfig.RAG_UPLOAD_EXCHANGE, routingKey, messages);
+                    });
+                } catch (RuntimeException e) {
+                    stored.forEach(file -> deleteObjectQuietly(file.ossKey));
+                    throw e;
+                }
+                job.setAcceptedFiles(job.getAcceptedFiles() + stored.size());
+            }
+            uploadJobRepository.save(job);
+            log.info("批量上传进度，jobId={}, 本批={}, 登记={}, 累计登记={}",
+                    job.getId(), window.size(), stored.size(), job.getAcceptedFiles());
+        } finally {
+            window.forEach(this::deleteTemp);
+        }
+    }
+
+    /**
+     * 多行 INSERT 登记文档，返回对象名到文档ID的映射
+     */
+    private Map<String, Long> insertDocuments(Long jobId, String group, List<SpooledFile> files) {
+        Map<String, Long> ids = new HashMap<>();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        for (int from = 0; from < files.size(); from += INSERT_BATCH_SIZE) {
+            List<SpooledFile> slice = files.subList(from, Math.min(from + INSERT_BATCH_SIZE, files.size()));
+            StringBuilder sql = new StringBuilder("INSERT INTO kb_documents (filename, filepath, filetype, "
+                    + "file_size, status, progress, doc_version, processed_chunks, parsed_offset, permission_group, "
+                    + "file_hash, upload_job_id, created_at) VALUES ");
+            List<Object> params = new ArrayList<>();
+            for (int i = 0; i < slice.size(); i++) {
+                SpooledFile file = slice.get(i);
+                sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, 'PENDING', 0, 1, 0, 0, ?, ?, ?, ?)");
+                params.add(file.filename);
+                params.add(file.ossKey);
+                params.add(TIKA.detect(file.filename));
+                params.add(file.size);
+                params.add(group);
+                params.add(file.fileHash);
+                params.add(jobId);
+                params.add(now);
+            }
+            sql.append(" RETURNING id, filepath");
+            jdbcClient.sql(sql.toString())
+                    .params(params)
+                    .query((rs, rowNum) -> Map.entry(rs.getString("filepath"), rs.getLong("id")))
+                    .list()
+                    .forEach(row -> ids.put(row.getKey(), row.getValue()));
+        }
+        return ids;
+    }
+
+    /**
+     * 上传到对象存储，对象名规则与单文件上传一致
+     */
+    private boolean store(SpooledFile file, String group) {
+        String objectName = String.format("rag-docs/%s/%s_%s",
+                group, UUID.randomUUID().toString().replace("-", ""), file.filename);
+        try (InputStream is = Files.newInputStream(file.path)) {
+            storageService.upload(objectName, is, file.size);
+            file.ossKey = objectName;
+            return true;
+        } catch (Exception e) {
+            log.warn("批量上传文件失败，filename={}", file.filename, e);
+            return false;
+        }
+    }
+
+    /**
+     * 把当前条目写入临时文件并计算 MD5，空文件或超过大小上限时返回 null
+     */
+    private SpooledFile spool(InputStream entryStream, String entryName) throws IOException {
+        Path temp = Files.createTempFile("rag-bulk-", ".tmp");
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        long size = 0;
+        boolean tooLarge = false;
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = entryStream.read(buffer)) != -1) {
+                size += read;
+                if (size > maxFileBytes) {
+                    tooLarge = true;
+                    break;
+                }
+                md5.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (tooLarge || size == 0) {
+            Files.deleteIfExists(temp);
+            log.warn("跳过压缩包中的文件，entry={}, 原因={}", entryName, tooLarge ? "超过大小上限" : "空文件");
+            return null;
+        }
+        return new SpooledFile(baseName(entryName), temp, size, Hex.encodeHexString(md5.digest()));
+    }
+
+    /**
+     * 识别压缩格式（gzip 等）和归档格式（zip、tar）
+     */
+    private static ArchiveInputStream<?> openArchive(InputStream body) throws IOException {
+        InputStream in = new BufferedInputStream(body);
+        try {
+            String compression = CompressorStreamFactory.detect(in);
+            in = new BufferedInputStream(new CompressorStreamFactory().createCompressorInputStream(compression, in));
+        } catch (CompressorException e) {
+            // 没有外层压缩，直接按归档格式读取
+        }
+        try {
+            return new ArchiveStreamFactory().createArchiveInputStream(in);
+        } catch (ArchiveException e) {
+            throw new IllegalArgumentException("不支持的压缩包格式，仅支持 zip、tar、tar.gz", e);
+        }
+    }
+
+    /**
+     * 系统生成的隐藏文件，如 macOS 的 __MACOSX 和 ._ 文件
+     */
+    private static boolean isHidden(String entryName) {
+        String name = baseName(entryName);
+        return entryName.startsWith("__MACOSX/") || name.startsWith(".");
+    }
+
+    private static String baseName(String entryName) {
+        String name = entryName.replace('\\', '/');
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    private void deleteTemp(SpooledFile file) {
+        try {
+            Files.deleteIfExists(file.path);
+        } catch (IOException e) {
+            log.warn("删除临时文件失败，path={}", file.path, e);
+        }
+    }
+
+    private void deleteObjectQuietly(String ossKey) {
+        try {
+            storageService.delete(ossKey);
+        } catch (Exception e) {
+            log.warn("删除OSS文件失败，ossKey={}", ossKey, e);
+        }
+    }
+}
@@ -1,22 +1,45 @@
 package org.example.rag.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 /**
  * 缓存管理器
+ * 两级缓存：
+ * 1. 一级为本节点的 Caffeine 缓存（W-TinyLFU 淘汰），按估算的字节数限制总大小，命中时不访问 Redis、不做反序列化
+ * 2. 二级为 Redis，节点间共享
+ * 一级缓存的有效期按键的命名空间（第一个冒号之前的部分，如 chat、qemb）分别配置，且不超过写入 Redis 时的过期时间。
+ * put 和 delete 之后通过 Redis 发布订阅通知其他节点删除一级缓存中的该键；订阅断开期间丢失的通知，
+ * 由一级缓存的有效期兜底。
  */
 @Slf4j
 @Component
 @RequiredArgsConstructor
-public class CacheManager {
+public class CacheManager implements MessageListener {
     private final RedisTemplate<String, Object> redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
     /**
      * 默认设置缓存过期时间，单位：小时
      */
@@ -25,6 +48,81 @@ public class CacheManager {
      * 表示空值的占位符, 防止缓存穿透
      */
     private static final String NULL_VALUE = "NULL_PLACEHOLDER";
+    /**
+     * 一级缓存失效通知的频道
+     */
+    private static final String INVALIDATE_CHANNEL = "rag:cache:invalidate";
+
+    @Value("${rag.cache.local.enabled:true}")
+    private boolean localEnabled = true;
+    /**
+     * 一级缓存总大小上限（估算字节数）
+     */
+    @Value("${rag.cache.local.max-weight-bytes:67108864}")
+    private long localMaxWeight = 64L << 20;
+    /**
+     * 未单独配置的命名空间在一级缓存中的有效期
+     */
+    @Value("${rag.cache.local.default-ttl-seconds:60}")
+    private long localDefaultTtlSeconds = 60;
+    /**
+     * 各命名空间在一级缓存中的有效期，格式 namespace:seconds，逗号分隔
+     */
+    @Value("${rag.cache.local.ttls:}")
+    private String localTtls = "";
+
+    /**
+     * 本节点标识，收到自己发出的失效通知时跳过
+     */
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+    /**
+     * 一级缓存的变更代数，本节点写入、删除或收到失效通知时递增；
+     * 从 Redis 回填一级缓存前后比较，期间有变更则不回填，避免旧值覆盖新值
+     */
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong redisMisses = new AtomicLong();
+
+    private Map<String, Long> namespaceTtlNanos = new HashMap<>();
+    private Cache<String, LocalEntry> local;
+
+    /**
+     * 一级缓存中的条目，空值以 NULL_VALUE 保存
+     */
+    private record LocalEntry(Object value, int weight, long ttlNanos) {
+    }
+
+    @PostConstruct
+    public void init() {
+        namespaceTtlNanos = parseTtls(localTtls);
+        local = Caffeine.newBuilder()
+                .maximumWeight(localMaxWeight)
+                .weigher((String key, LocalEntry entry) -> entry.weight())
+                .expireAfter(new Expiry<String, LocalEntry>() {
+                    @Override
+                    public long expireAfterCreate(String key, LocalEntry entry, long currentTime) {
+                        return entry.ttlNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, LocalEntry entry, long currentTime,
+                                                  long currentDuration) {
+                        return entry.ttlNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, LocalEntry entry, long currentTime,
+                                                long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        listenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATE_CHANNEL));
+        log.info("一级缓存已启用={}, 大小上限={}字节, 默认有效期={}s, 命名空间有效期={}",
+                localEnabled, localMaxWeight, localDefaultTtlSeconds, localTtls);
+    }
 
     /**
      * 获取缓存值
@@ -33,15 +131,28 @@ public class CacheManager {
      */
     @SuppressWarnings("unchecked")
     public <T> T get(String key){
+        if (localEnabled) {
+            LocalEntry entry = local.getIfPresent(key);
+            if (entry != null) {
+                return NULL_VALUE.equals(entry.value()) ? null : (T) entry.value();
+            }
+        }
         try{
+            long before = generation.get();
             Object value = redisTemplate.opsForValue().get(key);
+            if (value != null && generation.get() == before) {
+                putLocal(key, value, null);
+            }
             if (NULL_VALUE.equals(value)) {
+                redisHits.incrementAndGet();
                 return null;
             }
             if(value != null){
+                redisHits.incrementAndGet();
                 log.debug("缓存命中，key: {}", key);
                 return (T) value;
             }
+            redisMisses.incrementAndGet();
             log.debug("缓存未命中，key: {}", key);
             return null;
         }catch (Exception e){
@@ -60,6 +171,9 @@ public class CacheManager {
                 value=NULL_VALUE;
             }
             redisTemplate.opsForValue().set(key, value, expire);
+            generation.incrementAndGet();
+            putLocal(key, value, expire);
+            publishInvalidation(List.of(key));
             log.debug("缓存设置成功，key: {}", key);
         }catch (Exception e){
             log.error("设置缓存失败，key: {}", key, e);
@@ -74,8 +188,10 @@ public class CacheManager {
      * @return 删除是否成功
      */
     public boolean delete(String key){
+        invalidateLocal(List.of(key));
         try{
             Boolean result = redisTemplate.delete(key);
+            publishInvalidation(List.of(key));
             log.debug("缓存删除成功，key: {}", key);
             return result;
         }catch (Exception e){
@@ -88,6 +204,9 @@ public class CacheManager {
      * @param key 缓存键
      */
     public boolean exists(String key) {
+        if (localEnabled && local.getIfPresent(key) != null) {
+            return true;
+        }
         try {
             return redisTemplate.hasKey(key);
         } catch (Exception e) {
@@ -146,8 +265,10 @@ public class CacheManager {
      * @return 删除的数量
      */
     public long deleteBatch(String... keys) {
+        invalidateLocal(List.of(keys));
         try {
             Long count = redisTemplate.delete(List.of(keys));
+            publishInvalidation(List.of(keys));
             log.debug("批量删除缓存，count={}", count);
             return count;
 
@@ -163,4 +284,123 @@ public class CacheManager {
         }
         return key.toString();
     }
+
+    // ========== 一级缓存 ==========
+
+    /**
+     * 一级缓存命中数和二级缓存命中数，invalidations 为收到的其他节点失效通知数
+     */
+    public Map<String, Object> stats() {
+        CacheStats stats = local.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("localEntries", local.estimatedSize());
+        result.put("localHits", stats.hitCount());
+        result.put("localMisses", stats.missCount());
+        result.put("localEvictions", stats.evictionCount());
+        result.put("redisHits", redisHits.get());
+        result.put("redisMisses", redisMisses.get());
+        result.put("invalidations", invalidations.get());
+        return result;
+    }
+
+    /**
+     * 收到其他节点的失效通知，删除一级缓存中的对应键
+     * 消息格式：第一行为发送方节点标识，其后每行一个键
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Object value;
+        try {
+            value = redisTemplate.getValueSerializer().deserialize(message.getBody());
+        } catch (Exception e) {
+            log.warn("解析缓存失效消息失败", e);
+            return;
+        }
+        if (!(value instanceof String text)) {
+            return;
+        }
+        String[] lines = text.split("\n");
+        if (lines.length < 2 || nodeId.equals(lines[0])) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        invalidateLocal(List.of(lines).subList(1, lines.length));
+    }
+
+    /**
+     * 写入一级缓存
+     * @param expire 写入 Redis 时的过期时间，从 Redis 回填时为 null
+     */
+    private void putLocal(String key, Object value, Duration expire) {
+        if (!localEnabled) {
+            return;
+        }
+        long ttlNanos = namespaceTtlNanos.getOrDefault(namespace(key),
+                Duration.ofSeconds(localDefaultTtlSeconds).toNanos());
+        if (expire != null) {
+            ttlNanos = Math.min(ttlNanos, expire.toNanos());
+        }
+        if (ttlNanos <= 0) {
+            return;
+        }
+        local.put(key, new LocalEntry(value, weigh(key, value), ttlNanos));
+    }
+
+    private void invalidateLocal(Collection<String> keys) {
+        generation.incrementAndGet();
+        if (localEnabled) {
+            local.invalidateAll(keys);
+        }
+    }
+
+    /**
+     * 通知其他节点删除一级缓存，失败只记录日志，由一级缓存的有效期兜底
+     */
+    private void publishInvalidation(Collection<String> keys) {
+        if (!localEnabled) {
+            return;
+        }
+        try {
+            redisTemplate.convertAndSend(INVALIDATE_CHANNEL, nodeId + "\n" + String.join("\n", keys));
+        } catch (Exception e) {
+            log.warn("发布缓存失效通知失败，keys={}", keys, e);
+        }
+    }
+
+    private static String namespace(String key) {
+        int colon = key.indexOf(':');
+        return colon < 0 ? key : key.substring(0, colon);
+    }
+
+    /**
+     * 估算条目占用的字节数，字符串按 UTF-16 计，集合按元素数估算，其他对象按固定值
+     */
+    private static int weigh(String key, Object value) {
+        long bytes = 64L + 2L * key.length();
+        if (value instanceof CharSequence text) {
+            bytes += 40L + 2L * text.length();
+        } else if (value instanceof Collection<?> collection) {
+            bytes += 32L + 24L * collection.size();
+        } else if (value instanceof Map<?, ?> map) {
+            bytes += 48L + 64L * map.size();
+        } else {
+            bytes += 256;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static Map<String, Long> parseTtls(String config) {
+        Map<String, Long> result = new HashMap<>();
+        if (config == null || config.isBlank()) {
+            return result;
+        }
+        for (String entry : config.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("一级缓存有效期配置格式错误: " + entry);
+            }
+            result.put(parts[0].trim(), Duration.ofSeconds(Long.parseLong(parts[1].trim())).toNanos());
+        }
+        return result;
+    }
 }
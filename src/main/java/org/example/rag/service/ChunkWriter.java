@@ -0,0 +1,18 @@
+package org.example.rag.service;
+
+import org.example.rag.entity.dto.ChunkRecord;
+
+import java.util.List;
+
+/**
+ * 文档块写入接口
+ * 通过 rag.ingest.writer 选择实现：row（逐行插入）、batch（JDBC批量）、copy（PostgreSQL COPY 二进制）
+ */
+public interface ChunkWriter {
+    /**
+     * 写入文档块，需在调用方的事务内执行
+     * @param chunks 文档块
+     * @return 写入的行数
+     */
+    int write(List<ChunkRecord> chunks);
+}
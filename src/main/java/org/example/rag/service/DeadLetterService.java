@@ -0,0 +1,223 @@
+package org.example.rag.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.config.RabbitConfig;
+import org.example.rag.entity.KbDocument;
+import org.example.rag.entity.ParkedDocument;
+import org.example.rag.entity.dto.DocUploadMessage;
+import org.example.rag.entity.dto.ReplayRequest;
+import org.example.rag.mq.UploadRouter;
+import org.example.rag.repository.KbDocumentRepository;
+import org.example.rag.repository.ParkedDocumentRepository;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 死信文档的查询和批量重放
+ * 重放在后台线程中按指定速率逐条进行，每条重新登记到发件箱，避免一次性把大量文档压回队列。
+ * 选中时用一条 UPDATE ... RETURNING 原子地把 PARKED 改为 QUEUED，并发重放只会各自拿到不同的记录；
+ * 节点重启后停留在 QUEUED 的记录超过 replay-queued-timeout-minutes 后恢复为 PARKED，可以再次重放。
+ */
+@Slf4j
+@Service
+public class DeadLetterService implements DisposableBean {
+    private final ParkedDocumentRepository parkedDocumentRepository;
+    private final KbDocumentRepository documentRepository;
+    private final OutboxService outboxService;
+    private final UploadRouter uploadRouter;
+    private final DocStatusService docStatusService;
+    private final TransactionTemplate transactionTemplate;
+    private final JdbcClient jdbcClient;
+
+    /**
+     * 默认每秒重放条数
+     */
+    @Value("${rag.retry.replay-rate-per-second:5}")
+    private double defaultRate;
+    /**
+     * 单次重放最多条数
+     */
+    @Value("${rag.retry.replay-max-size:1000}")
+    private int maxReplaySize;
+    /**
+     * QUEUED 超过该时间仍未重放，视为选中它的节点已重启，恢复为 PARKED
+     */
+    @Value("${rag.retry.replay-queued-timeout-minutes:60}")
+    private int queuedTimeoutMinutes;
+
+    private final ExecutorService replayExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "dead-letter-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DeadLetterService(ParkedDocumentRepository parkedDocumentRepository,
+                             KbDocumentRepository documentRepository, OutboxService outboxService,
+                             UploadRouter uploadRouter, DocStatusService docStatusService,
+                             TransactionTemplate transactionTemplate, JdbcClient jdbcClient) {
+        this.parkedDocumentRepository = parkedDocumentRepository;
+        this.documentRepository = documentRepository;
+        this.outboxService = outboxService;
+        this.uploadRouter = uploadRouter;
+        this.docStatusService = docStatusService;
+        this.transactionTemplate = transactionTemplate;
+        this.jdbcClient = jdbcClient;
+    }
+
+    /**
+     * 查询等待处理的死信文档
+     */
+    public List<ParkedDocument> list(String failureType, String permissionGroup, LocalDateTime parkedAfter, int limit) {
+        return parkedDocumentRepository.search("PARKED", failureType, permissionGroup, parkedAfter,
+                PageRequest.of(0, Math.min(limit, maxReplaySize)));
+    }
+
+    /**
+     * 选中符合条件的死信文档并在后台按速率重放
+     * @return 本次选中的条数
+     */
+    public int replay(ReplayRequest request) {
+        int limit = request.getLimit() == null ? 100 : Math.min(request.getLimit(), maxReplaySize);
+        double rate = request.getRatePerSecond() == null || request.getRatePerSecond() <= 0
+                ? defaultRate : request.getRatePerSecond();
+
+        List<Long> claimed = claim(request, limit);
+        if (claimed.isEmpty()) {
+            return 0;
+        }
+        List<ParkedDocument> selected = parkedDocumentRepository.findAllById(claimed).stream()
+                .sorted(Comparator.comparing(ParkedDocument::getId))
+                .toList();
+
+        long intervalNanos = (long) (1_000_000_000L / rate);
+        replayExecutor.execute(() -> {
+            int replayed = 0;
+            for (ParkedDocument parked : selected) {
+                long begin = System.nanoTime();
+                try {
+                    if (replayOne(parked)) {
+                        replayed++;
+                    }
+                } catch (Exception e) {
+                    log.error("重放死信文档失败，docId={}", parked.getDocId(), e);
+                    parked.setStatus("PARKED");
+                    parkedDocumentRepository.save(parked);
+                }
+                long sleep = intervalNanos - (System.nanoTime() - begin);
+                if (sleep > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            log.info("死信重放结束，选中={}, 已重放={}", selected.size(), replayed);
+        });
+        log.info("开始重放死信文档，条数={}, 速率={}/s", selected.size(), rate);
+        return selected.size();
+    }
+
+    /**
+     * 原子地选中符合条件的 PARKED 记录并改为 QUEUED，被其他事务锁住的记录直接跳过
+     * @return 本次选中的记录 id
+     */
+    private List<Long> claim(ReplayRequest request, int limit) {
+        return jdbcClient.sql("""
+                      UPDATE parked_documents SET status = 'QUEUED', queued_at = now()
+                      WHERE id IN (
+                          SELECT id FROM parked_documents
+                          WHERE status = 'PARKED'
+                            AND (CAST(:failureType AS VARCHAR) IS NULL OR failure_type = :failureType)
+                            AND (CAST(:permissionGroup AS VARCHAR) IS NULL OR permission_group = :permissionGroup)
+                            AND (CAST(:parkedAfter AS TIMESTAMP) IS NULL OR parked_at >= :parkedAfter)
+                          ORDER BY id
+                          LIMIT :limit
+                          FOR UPDATE SKIP LOCKED)
+                      RETURNING id
+                  """)
+                .param("failureType", request.getFailureType())
+                .param("permissionGroup", request.getPermissionGroup())
+                .param("parkedAfter", request.getParkedAfter())
+                .param("limit", limit)
+                .query(Long.class)
+                .list();
+    }
+
+    /**
+     * 定时把超时仍停留在 QUEUED 的记录恢复为 PARKED（选中它们的节点在重放完成前重启）
+     */
+    @Scheduled(fixedDelayString = "${rag.retry.replay-recover-interval-ms:300000}")
+    public void recoverStaleQueued() {
+        try {
+            int recovered = jdbcClient.sql("""
+                          UPDATE parked_documents SET status = 'PARKED'
+                          WHERE status = 'QUEUED' AND queued_at < now() - make_interval(mins => :timeout)
+                      """)
+                    .param("timeout", queuedTimeoutMinutes)
+                    .update();
+            if (recovered > 0) {
+                log.warn("恢复超时未重放的死信记录，条数={}", recovered);
+            }
+        } catch (Exception e) {
+            log.warn("恢复超时未重放的死信记录失败", e);
+        }
+    }
+
+    /**
+     * 重放一条：文档恢复为待处理，重新登记处理消息，从断点继续
+     * 只更新状态和错误信息，不覆盖断点、版本和防护令牌；文档正在处理或已完成时不重放
+     */
+    private boolean replayOne(ParkedDocument parked) {
+        // 只处理本次选中的记录：超时恢复后又被其他重放选中的，queued_at 已变化
+        LocalDateTime now = LocalDateTime.now();
+        Integer marked = transactionTemplate.execute(status ->
+                parkedDocumentRepository.markReplayed(parked.getId(), parked.getQueuedAt(), now));
+        if (marked == null || marked == 0) {
+            log.warn("死信记录已被其他重放处理，跳过，id={}", parked.getId());
+            return false;
+        }
+        parked.setReplayedAt(now);
+        KbDocument doc = transactionTemplate.execute(status -> {
+            int reset = documentRepository.resetForReplay(parked.getDocId());
+            KbDocument kbDoc = reset == 0 ? null : documentRepository.findById(parked.getDocId()).orElse(null);
+            if (kbDoc == null) {
+                parked.setStatus("DISCARDED");
+                parkedDocumentRepository.save(parked);
+                return null;
+            }
+            // 重放属于批量操作，走该权限组的批量通道，不挤占交互通道
+            outboxService.enqueue(RabbitConfig.RAG_UPLOAD_EXCHANGE,
+                    uploadRouter.bulkRoutingKeyFor(kbDoc.getPermissionGroup()),
+                    new DocUploadMessage(kbDoc.getId(), kbDoc.getFilepath(), parked.getUserId(),
+                            kbDoc.getPermissionGroup(), kbDoc.getFileSize(), kbDoc.getDocVersion()));
+            parked.setStatus("REPLAYED");
+            parkedDocumentRepository.save(parked);
+            return kbDoc;
+        });
+        if (doc == null) {
+            log.warn("死信文档已被删除、正在处理或已完成，跳过重放，docId={}", parked.getDocId());
+            return false;
+        }
+        docStatusService.publish(doc);
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        replayExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,191 @@
+package org.example.rag.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.KbDocument;
+import org.example.rag.entity.dto.DocStatusEvent;
+import org.example.rag.repository.KbDocumentRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 文档处理状态服务
+ * 职责说明：
+ * 1. 消费者每次状态变化时写入 Redis 并通过发布订阅广播，状态查询先读 Redis，不再轮询数据库
+ * 2. 维护本节点的 SSE 连接，收到广播后推送给订阅了该文档的客户端
+ * 每个节点只有一个 Redis 订阅连接，SSE 基于 Servlet 异步请求，等待中的客户端不占用线程
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DocStatusService implements MessageListener {
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final KbDocumentRepository documentRepository;
+
+    private static final String STATUS_KEY_PREFIX = "rag:doc:status:";
+    private static final String CHANNEL = "rag:doc:status";
+    /**
+     * 状态缓存过期时间，过期后回源数据库
+     */
+    private static final Duration STATUS_EXPIRE = Duration.ofDays(1);
+
+    /**
+     * SSE 连接最长保持时间，超时后客户端自行重连
+     */
+    @Value("${rag.status.sse-timeout-ms:600000}")
+    private long sseTimeout;
+
+    /**
+     * 文档ID -> 本节点上订阅该文档的连接
+     */
+    private final Map<Long, List<SseEmitter>> emitters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void listen() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+    }
+
+    /**
+     * 发布状态变化，失败只记录日志，不影响文档处理
+     */
+    public void publish(KbDocument doc) {
+        DocStatusEvent event = toEvent(doc);
+        try {
+            redisTemplate.opsForValue().set(STATUS_KEY_PREFIX + doc.getId(), event, STATUS_EXPIRE);
+            redisTemplate.convertAndSend(CHANNEL, event);
+        } catch (Exception e) {
+            log.warn("发布文档状态失败，docId={}, status={}", doc.getId(), doc.getStatus(), e);
+        }
+    }
+
+    /**
+     * 删除文档时清除状态缓存
+     */
+    public void evict(Long docId) {
+        try {
+            redisTemplate.delete(STATUS_KEY_PREFIX + docId);
+        } catch (Exception e) {
+            log.warn("删除文档状态缓存失败，docId={}", docId, e);
+        }
+    }
+
+    /**
+     * 查询文档状态，先查 Redis，未命中再查数据库并回填
+     * @param roles 当前用户的权限组，无权访问时抛出异常
+     */
+    public DocStatusEvent getStatus(Long docId, List<String> roles) {
+        DocStatusEvent event = null;
+        try {
+            Object cached = redisTemplate.opsForValue().get(STATUS_KEY_PREFIX + docId);
+            if (cached instanceof DocStatusEvent status) {
+                event = status;
+            }
+        } catch (Exception e) {
+            log.warn("读取文档状态缓存失败，docId={}", docId, e);
+        }
+        if (event == null) {
+            KbDocument doc = documentRepository.findById(docId)
+                    .orElseThrow(() -> new IllegalArgumentException("文档不存在"));
+            event = toEvent(doc);
+            try {
+                redisTemplate.opsForValue().set(STATUS_KEY_PREFIX + docId, event, STATUS_EXPIRE);
+            } catch (Exception e) {
+                log.warn("写入文档状态缓存失败，docId={}", docId, e);
+            }
+        }
+        if (roles == null || !roles.contains(event.getPermissionGroup())) {
+            throw new IllegalArgumentException("无权访问该文档");
+        }
+        return event;
+    }
+
+    /**
+     * 订阅文档状态，立即推送一次当前状态；已结束的文档推送后直接关闭
+     * 先登记连接再读取当前状态，两者之间发生的状态变化不会丢失
+     */
+    public SseEmitter subscribe(Long docId, List<String> roles) {
+        SseEmitter emitter = new SseEmitter(sseTimeout);
+        List<SseEmitter> list = emitters.computeIfAbsent(docId, id -> new CopyOnWriteArrayList<>());
+        list.add(emitter);
+        Runnable remove = () -> removeEmitter(docId, emitter);
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+
+        DocStatusEvent current;
+        try {
+            current = getStatus(docId, roles);
+        } catch (RuntimeException e) {
+            removeEmitter(docId, emitter);
+            throw e;
+        }
+        if (send(emitter, current) && current.isTerminal()) {
+            emitter.complete();
+        }
+        return emitter;
+    }
+
+    /**
+     * 收到广播，推送给本节点上订阅该文档的连接
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Object value;
+        try {
+            value = redisTemplate.getValueSerializer().deserialize(message.getBody());
+        } catch (Exception e) {
+            log.warn("解析文档状态消息失败", e);
+            return;
+        }
+        if (!(value instanceof DocStatusEvent event)) {
+            return;
+        }
+        List<SseEmitter> list = emitters.get(event.getDocId());
+        if (list == null) {
+            return;
+        }
+        for (SseEmitter emitter : list) {
+            if (send(emitter, event) && event.isTerminal()) {
+                emitter.complete();
+            }
+        }
+    }
+
+    private boolean send(SseEmitter emitter, DocStatusEvent event) {
+        try {
+            emitter.send(SseEmitter.event().name("status").data(event));
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            // 客户端已断开
+            emitter.completeWithError(e);
+            return false;
+        }
+    }
+
+    private void removeEmitter(Long docId, SseEmitter emitter) {
+        emitters.computeIfPresent(docId, (id, list) -> {
+            list.remove(emitter);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    private DocStatusEvent toEvent(KbDocument doc) {
+        return new DocStatusEvent(doc.getId(), doc.getStatus(), doc.getProgress(), doc.getErrorMessage(),
+                doc.getPermissionGroup(), System.currentTimeMillis());
+    }
+}
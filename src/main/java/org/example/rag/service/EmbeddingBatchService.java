@@ -0,0 +1,223 @@
+package org.example.rag.service;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.dto.EmbeddingBatchResult;
+import org.example.rag.ingest.IngestionGovernor;
+import org.example.rag.utils.ContentHashUtil;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量向量化服务
+ * 职责说明：
+ * 1. 按服务商单批条数上限和 token 上限把文本分组，一组只调用一次 EmbeddingModel
+ * 2. 记录每一批的耗时，方便观察服务商的批处理能力
+ * 3. 某一批失败时先整批重试，仍失败则二分定位出有问题的文本，其余文本照常返回；
+ *    被限流时由调速器退避后整批重试，不二分（限流与文本无关，二分只会发出更多请求）
+ * 4. 调用模型前先查向量缓存，只有未命中的文本才真正向量化
+ * 5. 每批调用前向调速器申请 token 额度，调用结果反馈给调速器用于调整并发
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class EmbeddingBatchService {
+    private final EmbeddingModel embeddingModel;
+    private final EmbeddingCacheService embeddingCacheService;
+    private final IngestionGovernor ingestionGovernor;
+
+    /**
+     * 分词器只加载一次，用于估算每段文本的 token 数
+     */
+    private static final Encoding ENCODING = Encodings.newLazyEncodingRegistry()
+            .getEncoding(EncodingType.CL100K_BASE);
+
+    /**
+     * 单批最多条数（DashScope text-embedding-v2 单次最多 25 条）
+     */
+    @Value("${rag.embedding.batch.max-size:25}")
+    private int maxBatchSize;
+    /**
+     * 单批最多 token 数
+     */
+    @Value("${rag.embedding.batch.max-tokens:16000}")
+    private int maxBatchTokens;
+    /**
+     * 整批失败后的重试次数，超过后进入二分定位
+     */
+    @Value("${rag.embedding.batch.retry-times:1}")
+    private int retryTimes;
+    /**
+     * 被限流后整批重试的次数，用完后整批记为失败，由消息级的延迟重试接手
+     */
+    @Value("${rag.embedding.batch.throttle-retries:3}")
+    private int throttleRetries;
+
+    /**
+     * 批量向量化
+     * @param texts 待向量化的文本
+     * @return 与输入一一对应的向量结果，失败的位置为 null
+     */
+    public EmbeddingBatchResult embed(List<String> texts) {
+        return embed(texts, texts.stream().map(ContentHashUtil::hash).toList());
+    }
+
+    /**
+     * 批量向量化，调用方已算好内容哈希时使用
+     * @param texts         待向量化的文本
+     * @param contentHashes 与 texts 一一对应的归一化内容哈希
+     * @return 与输入一一对应的向量结果，失败的位置为 null
+     */
+    public EmbeddingBatchResult embed(List<String> texts, List<String> contentHashes) {
+        // 1. 查缓存
+        Map<String, List<Double>> cached = embeddingCacheService.getAll(contentHashes);
+        List<Integer> missIndexes = new ArrayList<>();
+        List<String> missTexts = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            if (!cached.containsKey(contentHashes.get(i))) {
+                missIndexes.add(i);
+                missTexts.add(texts.get(i));
+            }
+        }
+
+        // 2. 只向量化未命中的文本
+        EmbeddingBatchResult missResult = embedUncached(missTexts);
+
+        // 3. 合并结果并回填缓存
+        EmbeddingBatchResult result = new EmbeddingBatchResult();
+        List<List<Double>> embeddings = new ArrayList<>(Collections.nCopies(texts.size(), null));
+        Map<String, List<Double>> fresh = new HashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            embeddings.set(i, cached.get(contentHashes.get(i)));
+        }
+        for (int i = 0; i < missIndexes.size(); i++) {
+            List<Double> embedding = missResult.getEmbeddings().get(i);
+            embeddings.set(missIndexes.get(i), embedding);
+            if (embedding != null) {
+                fresh.put(contentHashes.get(missIndexes.get(i)), embedding);
+            }
+        }
+        for (Integer failed : missResult.getFailedIndexes()) {
+            result.getFailedIndexes().add(missIndexes.get(failed));
+        }
+        result.setEmbeddings(embeddings);
+        result.setLastError(missResult.getLastError());
+        result.setLastException(missResult.getLastException());
+        result.setBatchCount(missResult.getBatchCount());
+        embeddingCacheService.putAll(fresh);
+
+        if (!cached.isEmpty()) {
+            log.info("向量缓存命中{}条，共{}条", texts.size() - missTexts.size(), texts.size());
+        }
+        return result;
+    }
+
+    /**
+     * 按批调用模型向量化，不经过缓存
+     */
+    private EmbeddingBatchResult embedUncached(List<String> texts) {
+        EmbeddingBatchResult result = new EmbeddingBatchResult();
+        List<List<Double>> embeddings = new ArrayList<>(Collections.nCopies(texts.size(), null));
+        result.setEmbeddings(embeddings);
+
+        int start = 0;
+        while (start < texts.size()) {
+            int end = start;
+            int tokens = 0;
+            while (end < texts.size() && end - start < maxBatchSize) {
+                int textTokens = countTokens(texts.get(end));
+                // 至少放入一条，避免单条超长文本导致死循环
+                if (end > start && tokens + textTokens > maxBatchTokens) {
+                    break;
+                }
+                tokens += textTokens;
+                end++;
+            }
+            embedBatch(texts, start, end, tokens, retryTimes, 0, result);
+            result.setBatchCount(result.getBatchCount() + 1);
+            start = end;
+        }
+
+        if (result.hasFailures()) {
+            log.warn("批量向量化存在失败，总数={}, 失败数={}, 批次数={}",
+                    texts.size(), result.getFailedIndexes().size(), result.getBatchCount());
+        } else if (!texts.isEmpty()) {
+            log.info("批量向量化完成，总数={}, 批次数={}", texts.size(), result.getBatchCount());
+        }
+        return result;
+    }
+
+    /**
+     * 估算文本的 token 数
+     */
+    public int countTokens(String text) {
+        return ENCODING.countTokens(text);
+    }
+
+    /**
+     * 向量化 [from, to) 区间内的文本
+     * @param attemptsLeft 非限流失败剩余的整批重试次数
+     * @param throttled    本批已因限流重试的次数
+     */
+    private void embedBatch(List<String> texts, int from, int to, int tokens, int attemptsLeft, int throttled,
+                            EmbeddingBatchResult result) {
+        ingestionGovernor.acquire(tokens);
+        long begin = System.nanoTime();
+        try {
+            List<List<Double>> vectors = embeddingModel.embed(new ArrayList<>(texts.subList(from, to)));
+            if (vectors.size() != to - from) {
+                throw new IllegalStateException("向量数量与输入数量不一致，期望=" + (to - from) + ", 实际=" + vectors.size());
+            }
+            for (int i = 0; i < vectors.size(); i++) {
+                result.getEmbeddings().set(from + i, vectors.get(i));
+            }
+            long elapsed = (System.nanoTime() - begin) / 1_000_000;
+            ingestionGovernor.recordEmbedding(elapsed, true, false);
+            log.info("向量化批次完成，区间=[{}, {}), token数≈{}, 耗时={}ms", from, to, tokens, elapsed);
+        } catch (Exception e) {
+            long elapsed = (System.nanoTime() - begin) / 1_000_000;
+            boolean rateLimited = IngestionGovernor.isRateLimited(e);
+            ingestionGovernor.recordEmbedding(elapsed, false, rateLimited);
+            log.warn("向量化批次失败，区间=[{}, {}), 耗时={}ms, 限流={}, 原因={}",
+                    from, to, elapsed, rateLimited, e.getMessage());
+            if (rateLimited) {
+                if (throttled < throttleRetries) {
+                    ingestionGovernor.backOff(throttled);
+                    embedBatch(texts, from, to, tokens, attemptsLeft, throttled + 1, result);
+                    return;
+                }
+                // 退避后仍被限流，整批记为失败
+                for (int i = from; i < to; i++) {
+                    result.getFailedIndexes().add(i);
+                }
+                result.setLastError(e.getMessage());
+                result.setLastException(e);
+                return;
+            }
+            if (attemptsLeft > 0) {
+                embedBatch(texts, from, to, tokens, attemptsLeft - 1, throttled, result);
+                return;
+            }
+            if (to - from == 1) {
+                result.getFailedIndexes().add(from);
+                result.setLastError(e.getMessage());
+                result.setLastException(e);
+                return;
+            }
+            // 二分定位有问题的文本，其余部分仍然可以成功
+            int mid = (from + to) >>> 1;
+            embedBatch(texts, from, mid, tokens / 2, 0, throttled, result);
+            embedBatch(texts, mid, to, tokens - tokens / 2, 0, throttled, result);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.example.rag.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.dto.EmbeddingCacheStats;
+import org.example.rag.utils.VectorUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 向量缓存服务
+ * 以 (向量模型, 归一化内容哈希) 为键持久化保存向量，同样的页脚、模板或同一文件上传到多个权限组时不再重复向量化。
+ * 缓存条数超过上限时按最近使用时间淘汰，淘汰在 Postgres 事务级咨询锁下进行，多个节点同时触发时只有一个执行，
+ * 不会各自按同一个超出量重复删除。缓存读写失败只记录日志，不影响入库。
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class EmbeddingCacheService {
+    private final JdbcClient jdbcClient;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    /**
+     * 淘汰任务的咨询锁键，全库唯一即可
+     */
+    private static final long EVICT_LOCK_KEY = 0x7261672D65766963L;
+
+    @Value("${rag.embedding.cache.enabled:true}")
+    private boolean enabled;
+    /**
+     * 缓存最多条数
+     */
+    @Value("${rag.embedding.cache.max-entries:500000}")
+    private long maxEntries;
+    /**
+     * 缓存键中的模型名，换模型后旧向量自然失效
+     */
+    @Value("${spring.ai.openai.embedding.options.model:default}")
+    private String model;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * 批量查询缓存
+     * @param contentHashes 归一化内容哈希
+     * @return 命中的 哈希 -> 向量
+     */
+    public Map<String, List<Double>> getAll(List<String> contentHashes) {
+        Map<String, List<Double>> found = new HashMap<>();
+        if (!enabled || contentHashes.isEmpty()) {
+            return found;
+        }
+        try {
+            jdbcClient.sql("""
+                          SELECT content_hash, embedding::text AS embedding
+                          FROM embedding_cache
+                          WHERE model = :model AND content_hash IN (:hashes)
+                      """)
+                    .param("model", model)
+                    .param("hashes", contentHashes)
+                    .query((RowCallbackHandler) rs -> found.put(rs.getString("content_hash"),
+                            VectorUtil.parsePgVector(rs.getString("embedding"))));
+            if (!found.isEmpty()) {
+                // 只刷新一小时前用过的，避免每次命中都写库
+                jdbcClient.sql("""
+                              UPDATE embedding_cache SET last_used_at = now()
+                              WHERE model = :model AND content_hash IN (:hashes)
+                                AND last_used_at < now() - interval '1 hour'
+                          """)
+                        .param("model", model)
+                        .param("hashes", new ArrayList<>(found.keySet()))
+                        .update();
+            }
+        } catch (Exception e) {
+            log.warn("查询向量缓存失败，按未命中处理", e);
+            found.clear();
+        }
+        // 同一批里重复的哈希各算一次
+        long hitCount = contentHashes.stream().filter(found::containsKey).count();
+        hits.addAndGet(hitCount);
+        misses.addAndGet(contentHashes.size() - hitCount);
+        return found;
+    }
+
+    /**
+     * 批量写入缓存，已存在的键忽略
+     */
+    public void putAll(Map<String, List<Double>> embeddings) {
+        if (!enabled || embeddings.isEmpty()) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, List<Double>>> entries = new ArrayList<>(embeddings.entrySet());
+            jdbcTemplate.batchUpdate("""
+                              INSERT INTO embedding_cache (model, content_hash, embedding)
+                              VALUES (?, ?, ?::vector)
+                              ON CONFLICT (model, content_hash) DO NOTHING
+                          """, entries, entries.size(), (ps, entry) -> {
+                ps.setString(1, model);
+                ps.setString(2, entry.getKey());
+                ps.setString(3, VectorUtil.toPgVector(entry.getValue()));
+            });
+        } catch (Exception e) {
+            log.warn("写入向量缓存失败", e);
+        }
+    }
+
+    /**
+     * 定期淘汰最久未使用的缓存
+     */
+    @Scheduled(fixedDelayString = "${rag.embedding.cache.evict-interval-ms:600000}")
+    public void evict() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                // 事务结束自动释放，拿不到说明其他节点正在淘汰
+                Boolean locked = jdbcClient.sql("SELECT pg_try_advisory_xact_lock(:key)")
+                        .param("key", EVICT_LOCK_KEY)
+                        .query(Boolean.class)
+                        .single();
+                if (!Boolean.TRUE.equals(locked)) {
+                    log.debug("其他节点正在淘汰向量缓存，本轮跳过");
+                    return;
+                }
+                Long count = jdbcClient.sql("SELECT count(*) FROM embedding_cache").query(Long.class).single();
+                long overflow = count - maxEntries;
+                if (overflow <= 0) {
+                    return;
+                }
+                int deleted = jdbcClient.sql("""
+                              DELETE FROM embedding_cache
+                              WHERE ctid IN (SELECT ctid FROM embedding_cache ORDER BY last_used_at LIMIT :overflow)
+                          """)
+                        .param("overflow", overflow)
+                        .update();
+                evicted.addAndGet(deleted);
+                log.info("向量缓存淘汰完成，淘汰={}, 淘汰前条数={}", deleted, count);
+            });
+        } catch (Exception e) {
+            log.warn("向量缓存淘汰失败", e);
+        }
+    }
+
+    public EmbeddingCacheStats stats() {
+        EmbeddingCacheStats stats = new EmbeddingCacheStats();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        stats.setHits(hitCount);
+        stats.setMisses(missCount);
+        stats.setHitRate(hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+        stats.setEvicted(evicted.get());
+        return stats;
+    }
+}
@@ -1,74 +1,282 @@
 package org.example.rag.service.Impl;
 
 import com.aliyun.oss.OSS;
-import com.aliyun.oss.OSSClientBuilder;
+import com.aliyun.oss.model.AbortMultipartUploadRequest;
+import com.aliyun.oss.model.CompleteMultipartUploadRequest;
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.InitiateMultipartUploadRequest;
 import com.aliyun.oss.model.OSSObject;
+import com.aliyun.oss.model.PartETag;
+import com.aliyun.oss.model.UploadPartRequest;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.example.rag.service.StorageReadException;
 import org.example.rag.service.StorageService;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
 @Service
+@Profile("!local")
 @Slf4j
-public class AliyunOssStorageService implements StorageService {
-    @Value("${aliyun.oss.endpoint}")
-    private String endpoint;
-    @Value("${aliyun.oss.access-key-id}")
-    private String accessKeyId;
-    @Value("${aliyun.oss.access-key-secret}")
-    private String accessKeySecret;
+@RequiredArgsConstructor
+public class AliyunOssStorageService implements StorageService, DisposableBean {
+    /**
+     * 全局共用的带连接池客户端，见 OssConfig
+     */
+    private final OSS ossClient;
+
     @Value("${aliyun.oss.bucket-name}")
     private String bucketName;
+    /**
+     * 超过该大小使用分片上传
+     */
+    @Value("${aliyun.oss.multipart-threshold:10485760}")
+    private long multipartThreshold;
+    /**
+     * 分片大小，OSS 要求除最后一片外不小于 100KB
+     */
+    @Value("${aliyun.oss.part-size:5242880}")
+    private int partSize;
+    /**
+     * 单个文件同时上传的分片数
+     */
+    @Value("${aliyun.oss.upload-parallelism:3}")
+    private int uploadParallelism;
+    /**
+     * 超过该大小使用并行范围下载
+     */
+    @Value("${aliyun.oss.range-download-threshold:8388608}")
+    private long rangeDownloadThreshold;
+    /**
+     * 每个范围请求的大小
+     */
+    @Value("${aliyun.oss.range-size:4194304}")
+    private long rangeSize;
+    /**
+     * 单个文件同时下载的范围数
+     */
+    @Value("${aliyun.oss.download-parallelism:4}")
+    private int downloadParallelism;
+
+    private final ExecutorService transferExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "oss-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     @Override
     public String upload(String objectName, InputStream inputStream) {
-        OSS ossClient = null;
         try {
-            // 创建OSSClient实例
-            ossClient = new OSSClientBuilder().build(endpoint, accessKeyId, accessKeySecret);
             //上传文件
             ossClient.putObject(bucketName, objectName, inputStream);
             log.info("文件上传成功，objectName: {}",objectName);
             return objectName;
         }catch (Exception e){
-            log.error("创建OSSClient实例失败:",e);
+            log.error("文件上传失败:",e);
             throw new RuntimeException("文件上传失败"+e.getMessage());
-        }finally {
-            if (ossClient != null) {
-                ossClient.shutdown();
+        }
+    }
+
+    /**
+     * 大文件分片上传：顺序读取输入流切成分片，最多 uploadParallelism 片同时上传
+     * 输入流只读一遍，调用方可以在读取的同时计算摘要
+     */
+    @Override
+    public String upload(String objectName, InputStream inputStream, long size) {
+        if (size < multipartThreshold) {
+            return upload(objectName, inputStream);
+        }
+        String uploadId = null;
+        try {
+            uploadId = ossClient.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucketName, objectName)).getUploadId();
+
+            Semaphore permits = new Semaphore(uploadParallelism);
+            List<Future<PartETag>> parts = new ArrayList<>();
+            int partNumber = 1;
+            while (true) {
+                byte[] buffer = new byte[partSize];
+                int length = readFully(inputStream, buffer);
+                if (length == 0) {
+                    break;
+                }
+                permits.acquire();
+                UploadPartRequest request = new UploadPartRequest();
+                request.setBucketName(bucketName);
+                request.setKey(objectName);
+                request.setUploadId(uploadId);
+                request.setInputStream(new ByteArrayInputStream(buffer, 0, length));
+                request.setPartSize(length);
+                request.setPartNumber(partNumber++);
+                parts.add(transferExecutor.submit(() -> {
+                    try {
+                        return ossClient.uploadPart(request).getPartETag();
+                    } finally {
+                        permits.release();
+                    }
+                }));
+                if (length < buffer.length) {
+                    break;
+                }
+            }
+
+            List<PartETag> partETags = new ArrayList<>(parts.size());
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            ossClient.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, objectName, uploadId, partETags));
+            log.info("文件分片上传成功，objectName: {}, 分片数: {}", objectName, partETags.size());
+            return objectName;
+        } catch (Exception e) {
+            log.error("分片上传失败:", e);
+            if (uploadId != null) {
+                try {
+                    ossClient.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, objectName, uploadId));
+                } catch (Exception abortException) {
+                    log.warn("取消分片上传失败，uploadId: {}", uploadId, abortException);
+                }
             }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("文件上传失败" + rootMessage(e));
         }
     }
 
     @Override
     public InputStream getFileStream(String objectName) {
-        OSS ossClient = null;
         try{
-            ossClient = new OSSClientBuilder().build(endpoint, accessKeyId, accessKeySecret);
             OSSObject ossObject = ossClient.getObject(bucketName, objectName);
+            // 调用方关闭流时连接归还连接池
             return ossObject.getObjectContent();
         }catch (Exception e){
             log.error("获取文件流失败:",e);
-            throw new RuntimeException("获取文件流失败"+e.getMessage());
+            throw new StorageReadException("获取文件流失败" + e.getMessage(), e);
         }
 
     }
 
+    /**
+     * 下载到本地文件，大文件按范围并行下载，各段直接写入文件的对应位置
+     */
+    @Override
+    public void downloadToFile(String objectName, Path target) {
+        try {
+            long size = ossClient.getObjectMetadata(bucketName, objectName).getContentLength();
+            if (size < rangeDownloadThreshold) {
+                try (InputStream in = getFileStream(objectName)) {
+                    Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return;
+            }
+
+            long begin = System.nanoTime();
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Semaphore permits = new Semaphore(downloadParallelism);
+                List<Future<Void>> ranges = new ArrayList<>();
+                for (long start = 0; start < size; start += rangeSize) {
+                    long from = start;
+                    long to = Math.min(start + rangeSize, size) - 1;
+                    permits.acquire();
+                    ranges.add(transferExecutor.submit(() -> {
+                        try {
+                            downloadRange(objectName, from, to, channel);
+                            return null;
+                        } finally {
+                            permits.release();
+                        }
+                    }));
+                }
+                for (Future<Void> range : ranges) {
+                    range.get();
+                }
+            }
+            log.info("文件并行下载完成，objectName: {}, 大小: {}, 耗时: {}ms",
+                    objectName, size, (System.nanoTime() - begin) / 1_000_000);
+        } catch (Exception e) {
+            log.error("下载文件失败:", e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new StorageReadException("下载文件失败" + rootMessage(e), e);
+        }
+    }
+
     @Override
     public void delete(String objectName) {
-        OSS ossClient = null;
         try{
-            ossClient = new OSSClientBuilder().build(endpoint, accessKeyId, accessKeySecret);
             ossClient.deleteObject(bucketName, objectName);
             log.info("文件删除成功，objectName: {}",objectName);
         }catch (Exception e){
             log.error("删除文件失败:",e);
             throw new RuntimeException("删除文件失败"+e.getMessage());
-        }finally {
-            if (ossClient != null) {
-                ossClient.shutdown();
+        }
+
+    }
+
+    @Override
+    public void destroy() {
+        transferExecutor.shutdown();
+    }
+
+    /**
+     * 下载 [from, to] 字节范围并写入文件对应位置
+     */
+    private void downloadRange(String objectName, long from, long to, FileChannel channel) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucketName, objectName);
+        request.setRange(from, to);
+        try (OSSObject ossObject = ossClient.getObject(request);
+             InputStream in = ossObject.getObjectContent()) {
+            byte[] buffer = new byte[64 * 1024];
+            long position = from;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, n);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
             }
         }
+    }
 
+    private static String rootMessage(Exception e) {
+        Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+        return cause.getMessage();
+    }
+
+    /**
+     * 尽量读满缓冲区，返回实际读取的字节数，流结束时返回 0
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = inputStream.read(buffer, total, buffer.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
     }
 }
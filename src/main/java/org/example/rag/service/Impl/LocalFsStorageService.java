@@ -0,0 +1,189 @@
+package org.example.rag.service.Impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.rag.service.StorageReadException;
+import org.example.rag.service.StorageService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 本地文件系统存储，用于私有化部署、CI 和基准测试，通过 local profile 启用
+ * 对象按 objectName 的 SHA-256 分两级目录存放（ab/cd/abcd...），单个目录下的文件数保持在可控范围，
+ * 且 objectName 中的用户文件名不会参与路径拼接。
+ * 写入走 FileChannel.transferFrom，读取时大文件使用内存映射，其余使用基于 FileChannel 的流。
+ */
+@Slf4j
+@Service
+@Profile("local")
+public class LocalFsStorageService implements StorageService {
+
+    /**
+     * 单次 transferFrom 的最大字节数
+     */
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    private final Path rootDir;
+    /**
+     * 超过该大小的文件读取时使用内存映射
+     */
+    private final long mmapThreshold;
+
+    public LocalFsStorageService(@Value("${rag.storage.local.root-dir:${java.io.tmpdir}/rag-storage}") String rootDir,
+                                 @Value("${rag.storage.local.mmap-threshold:1048576}") long mmapThreshold) {
+        this.rootDir = Paths.get(rootDir).toAbsolutePath().normalize();
+        this.mmapThreshold = mmapThreshold;
+        log.info("使用本地文件存储，根目录: {}", this.rootDir);
+    }
+
+    @Override
+    public String upload(String objectName, InputStream inputStream) {
+        Path target = resolve(objectName);
+        Path temp = null;
+        try {
+            Files.createDirectories(target.getParent());
+            // 先写临时文件再原子改名，读取方不会看到写了一半的文件
+            temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 ReadableByteChannel source = Channels.newChannel(inputStream)) {
+                long position = 0;
+                long n;
+                while ((n = channel.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                    position += n;
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("文件上传成功，objectName: {}", objectName);
+            return objectName;
+        } catch (IOException e) {
+            log.error("文件上传失败:", e);
+            deleteQuietly(temp);
+            throw new RuntimeException("文件上传失败" + e.getMessage());
+        }
+    }
+
+    @Override
+    public InputStream getFileStream(String objectName) {
+        Path path = resolve(objectName);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= mmapThreshold && size <= Integer.MAX_VALUE) {
+                // 映射建立后与通道无关，关闭通道不影响读取
+                return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+        } catch (IOException e) {
+            log.error("获取文件流失败:", e);
+            throw new StorageReadException("获取文件流失败" + e.getMessage(), e);
+        }
+        try {
+            return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+        } catch (IOException e) {
+            log.error("获取文件流失败:", e);
+            throw new StorageReadException("获取文件流失败" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 本地复制，走 transferTo，由内核直接在文件之间搬运数据
+     */
+    @Override
+    public void downloadToFile(String objectName, Path target) {
+        try (FileChannel source = FileChannel.open(resolve(objectName), StandardOpenOption.READ);
+             FileChannel sink = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, sink);
+            }
+        } catch (IOException e) {
+            log.error("下载文件失败:", e);
+            throw new StorageReadException("下载文件失败" + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void delete(String objectName) {
+        try {
+            Files.deleteIfExists(resolve(objectName));
+            log.info("文件删除成功，objectName: {}", objectName);
+        } catch (IOException e) {
+            log.error("删除文件失败:", e);
+            throw new RuntimeException("删除文件失败" + e.getMessage());
+        }
+    }
+
+    /**
+     * objectName -> 根目录/哈希前两位/哈希三四位/哈希
+     */
+    private Path resolve(String objectName) {
+        String hash = DigestUtils.sha256Hex(objectName);
+        return rootDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("删除临时文件失败: {}", path, e);
+        }
+    }
+
+    /**
+     * 基于内存映射的输入流
+     */
+    private static class MappedInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        MappedInputStream(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
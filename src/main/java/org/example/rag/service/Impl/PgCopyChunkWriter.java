@@ -0,0 +1,165 @@
+package org.example.rag.service.Impl;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.dto.ChunkRecord;
+import org.example.rag.service.ChunkWriter;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * 通过 PostgreSQL COPY ... FROM STDIN (FORMAT binary) 写入
+ * 向量按 pgvector 的二进制格式发送（int16 维度 + int16 保留位 + float4 数组），不再经过十进制文本
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "rag.ingest.writer", havingValue = "copy")
+public class PgCopyChunkWriter implements ChunkWriter {
+
+    private static final String COPY_SQL =
+            "COPY document_chunks (doc_id, doc_version, content, content_hash, metadata, embedding, simhash, duplicate_of)"
+                    + " FROM STDIN (FORMAT binary)";
+    /**
+     * 二进制 COPY 文件头签名
+     */
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    /**
+     * jsonb 二进制格式版本号
+     */
+    private static final int JSONB_VERSION = 1;
+    /**
+     * 缓冲区达到该大小时推送给驱动
+     */
+    private static final int FLUSH_BYTES = 1 << 20;
+
+    private final DataSource dataSource;
+
+    @Override
+    public int write(List<ChunkRecord> chunks) {
+        if (chunks.isEmpty()) {
+            return 0;
+        }
+        // 从事务同步器中取连接，保证与调用方处于同一事务
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        CopyIn copyIn = null;
+        try {
+            copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_SQL);
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(FLUSH_BYTES + (64 << 10));
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.write(SIGNATURE);
+            out.writeInt(0); // flags
+            out.writeInt(0); // header extension length
+
+            for (ChunkRecord chunk : chunks) {
+                writeTuple(out, chunk);
+                if (buffer.size() >= FLUSH_BYTES) {
+                    flush(copyIn, buffer);
+                }
+            }
+            out.writeShort(-1); // 结束标记
+            flush(copyIn, buffer);
+
+            long rows = copyIn.endCopy();
+            return (int) rows;
+        } catch (SQLException | IOException e) {
+            cancelQuietly(copyIn);
+            throw new IllegalStateException("COPY 写入文档块失败: " + e.getMessage(), e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    private void writeTuple(DataOutputStream out, ChunkRecord chunk) throws IOException {
+        out.writeShort(8);
+
+        // doc_id bigint
+        out.writeInt(8);
+        out.writeLong(chunk.getDocId());
+
+        // doc_version int
+        out.writeInt(4);
+        out.writeInt(chunk.getDocVersion());
+
+        // content text
+        byte[] content = chunk.getContent().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(content.length);
+        out.write(content);
+
+        // content_hash varchar
+        if (chunk.getContentHash() == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] contentHash = chunk.getContentHash().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(contentHash.length);
+            out.write(contentHash);
+        }
+
+        // metadata jsonb
+        byte[] metadata = chunk.getMetadataJson().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(metadata.length + 1);
+        out.writeByte(JSONB_VERSION);
+        out.write(metadata);
+
+        // embedding vector，近似重复的块为空
+        List<Double> embedding = chunk.getEmbedding();
+        if (embedding == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(4 + 4 * embedding.size());
+            out.writeShort(embedding.size());
+            out.writeShort(0);
+            for (Double value : embedding) {
+                out.writeFloat(value.floatValue());
+            }
+        }
+
+        // simhash bigint
+        writeNullableLong(out, chunk.getSimhash());
+
+        // duplicate_of bigint
+        writeNullableLong(out, chunk.getDuplicateOf());
+    }
+
+    private void writeNullableLong(DataOutputStream out, Long value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(8);
+            out.writeLong(value);
+        }
+    }
+
+    private void flush(CopyIn copyIn, ByteArrayOutputStream buffer) throws SQLException {
+        if (buffer.size() == 0) {
+            return;
+        }
+        byte[] bytes = buffer.toByteArray();
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        buffer.reset();
+    }
+
+    private void cancelQuietly(CopyIn copyIn) {
+        if (copyIn == null || !copyIn.isActive()) {
+            return;
+        }
+        try {
+            copyIn.cancelCopy();
+        } catch (SQLException e) {
+            log.warn("取消 COPY 失败", e);
+        }
+    }
+}
@@ -3,29 +3,39 @@ package org.example.rag.service.Impl;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.example.rag.common.UserContext;
 import org.example.rag.config.RabbitConfig;
 import org.example.rag.entity.KbDocument;
 import org.example.rag.entity.dto.DocUploadMessage;
+import org.example.rag.mq.UploadRouter;
 import org.example.rag.repository.KbDocumentRepository;
 import org.example.rag.service.CacheManager;
+import org.example.rag.service.DocStatusService;
+import org.example.rag.service.OutboxService;
+import org.example.rag.service.QueryEmbeddingCache;
 import org.example.rag.service.RagService;
+import org.example.rag.service.SemanticAnswerCache;
 import org.example.rag.service.StorageService;
 import org.example.rag.service.VectorSearchService;
+import org.example.rag.utils.QueryNormalizer;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.chat.prompt.PromptTemplate;
 
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
-
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 @Slf4j
 @Service
@@ -34,10 +44,14 @@ public class RagServiceImpl implements RagService {
 
     private final KbDocumentRepository kbDocumentRepository;
     private final ChatClient.Builder chatClientBuilder;
-    private final RabbitTemplate rabbitTemplate;
+    private final OutboxService outboxService;
+    private final UploadRouter uploadRouter;
     private final StorageService storageService;
     private final CacheManager cacheManager;
     private final VectorSearchService vectorSearchService;
+    private final DocStatusService docStatusService;
+    private final QueryEmbeddingCache queryEmbeddingCache;
+    private final SemanticAnswerCache semanticAnswerCache;
     /**
      * 缓存过期时间：1小时
      */
@@ -60,7 +74,7 @@ public class RagServiceImpl implements RagService {
 
     @Override
     @Transactional
-    public String uploadAndProcess(MultipartFile file) {
+    public Long uploadAndProcess(MultipartFile file) {
         //获取当前用户的权限组
         // 1. 获取当前用户信息
         Long userId = UserContext.getUserId();
@@ -71,26 +85,30 @@ public class RagServiceImpl implements RagService {
         String targetGroup = roles.get(0);
         KbDocument kbDoc = new KbDocument();
         try {
-            //计算文件MD5
-            String fileHash = calculateFileHash(file);
+            //上传到OSS，同一遍读取中计算文件MD5
+            StoredFile stored = uploadToOSS(file, targetGroup);
+            String ossKey = stored.ossKey();
+            String fileHash = stored.fileHash();
+            log.info("文件上传到OSS成功，用户ID={}, OSS对象名={}", userId, ossKey);
 
-            //检测是否重复上传
-            if (isFileDuplicate(fileHash, targetGroup)) {
-                log.warn("文件重复上传检测，用户ID={}, 文件Hash={}, 权限组={}", userId, fileHash, targetGroup);
-                return "文件已存在，禁止重复上传";
+            //检测是否重复上传，重复则删掉刚上传的对象，返回已有文档
+            KbDocument existing = findDuplicate(fileHash, targetGroup);
+            if (existing != null) {
+                log.warn("文件重复上传检测，用户ID={}, 文件Hash={}, 权限组={}, 已有文档ID={}",
+                        userId, fileHash, targetGroup, existing.getId());
+                deleteQuietly(ossKey);
+                return existing.getId();
             }
-            //上传到OSS
-            String ossKey = uploadToOSS(file, fileHash, targetGroup);
-            log.info("文件上传到OSS成功，用户ID={}, OSS对象名={}", userId, ossKey);
 
             //登记文件信息
             kbDoc = saveDocumentRecord(file, ossKey, fileHash, targetGroup);
             log.info("文件信息保存到数据库成功，用户ID={}, 文档ID={}", userId, kbDoc.getId());
+            docStatusService.publish(kbDoc);
 
             //发送消息到消息队列
-            sendProcessMessage(kbDoc.getId(), ossKey, userId, targetGroup);
-            log.info("发送文件处理消息到MQ成功，用户ID={}, 文档ID={}", userId, kbDoc.getId());
-            return "文件上传成功，正在后台处理";
+            sendProcessMessage(kbDoc.getId(), ossKey, userId, targetGroup, file.getSize(), kbDoc.getDocVersion());
+            log.info("文件处理消息已登记到发件箱，用户ID={}, 文档ID={}", userId, kbDoc.getId());
+            return kbDoc.getId();
         } catch (Exception e) {
             log.error("处理文件时出错:", e);
             handleUploadFailure(kbDoc, e);
@@ -98,12 +116,57 @@ public class RagServiceImpl implements RagService {
         }
     }
 
+    @Override
+    @Transactional
+    public String uploadNewVersion(Long docId, MultipartFile file) {
+        Long userId = UserContext.getUserId();
+        List<String> roles = UserContext.getRoles();
+        validateUser(userId, roles);
+
+        KbDocument kbDoc = kbDocumentRepository.findById(docId)
+                .orElseThrow(() -> new IllegalArgumentException("文档不存在"));
+        if (!roles.contains(kbDoc.getPermissionGroup())) {
+            throw new IllegalArgumentException("无权更新该文档");
+        }
+        try {
+            StoredFile stored = uploadToOSS(file, kbDoc.getPermissionGroup());
+            String ossKey = stored.ossKey();
+            String fileHash = stored.fileHash();
+            if (fileHash.equals(kbDoc.getFileHash())) {
+                log.info("新版本内容未变化，跳过处理，docId={}", docId);
+                deleteQuietly(ossKey);
+                return "文件内容未变化";
+            }
+            String oldOssKey = kbDoc.getFilepath();
+            log.info("新版本上传到OSS成功，docId={}, OSS对象名={}", docId, ossKey);
+
+            // 保留原文档ID，后台按内容哈希与旧块比对；同时递增防护令牌，正在处理旧版本的节点随即失效
+            kbDocumentRepository.startNewVersion(docId, file.getOriginalFilename(), file.getSize(),
+                    file.getContentType(), fileHash, ossKey);
+            kbDoc = kbDocumentRepository.findById(docId)
+                    .orElseThrow(() -> new IllegalArgumentException("文档不存在"));
+            docStatusService.publish(kbDoc);
+
+            sendProcessMessage(docId, ossKey, userId, kbDoc.getPermissionGroup(), file.getSize(), kbDoc.getDocVersion());
+            log.info("新版本处理消息已登记到发件箱，docId={}", docId);
+
+            if (oldOssKey != null && !oldOssKey.isEmpty() && !oldOssKey.equals(ossKey)) {
+                deleteAfterCommit(oldOssKey);
+            }
+            return "新版本上传成功，正在后台增量处理";
+        } catch (Exception e) {
+            log.error("上传新版本时出错:", e);
+            throw new RuntimeException("新版本处理失败" + e.getMessage());
+        }
+    }
+
     @Override
     @Transactional(rollbackOn = Exception.class)
     public void deleteDocument(Long docId) {
         log.info("删除文档，docId={}", docId);
 
-        // 1. 先删除文档片段（子表）
+        // 1. 先删除文档片段（子表），指向这些片段的近似重复块先转为独立的块
+        kbDocumentRepository.promoteDuplicatesOfDoc(docId);
         int chunksDeleted = kbDocumentRepository.deleteChunksByDocId(docId);
         log.debug("已删除文档片段数={}", chunksDeleted);
         KbDocument doc = kbDocumentRepository.findById(docId).orElse(null);
@@ -116,6 +179,8 @@ public class RagServiceImpl implements RagService {
 
         // 2. 再删除文档（主表）
         kbDocumentRepository.deleteById(docId);
+        docStatusService.evict(docId);
+        evictSemanticCacheAfterCommit(doc.getPermissionGroup());
         if(ossKey!=null&&!ossKey.isEmpty()){
             storageService.delete(ossKey);
             log.debug("已从对象存储中删除文档记录，docId={}", docId);
@@ -136,7 +201,9 @@ public class RagServiceImpl implements RagService {
         //构建Redis缓存
         // 格式：chat:{角色哈希}:{问题哈希}
         // 为什么要把角色加进去？防止 HR 问完答案被缓存，研发问同样问题查到了 HR 的答案
-        String cacheKey = generateCacheKey(userRoles, query);
+        // 问题哈希基于归一化后的文本，只有大小写、标点、空白或全半角差异的问题共用一条缓存
+        String roleHash = roleHash(userRoles);
+        String cacheKey = cacheManager.generateKey("chat", roleHash, QueryNormalizer.hash(query));
         log.debug("缓存键={}", cacheKey);
         //先查缓存
         String cachedAnswer = cacheManager.get(cacheKey);
@@ -144,8 +211,29 @@ public class RagServiceImpl implements RagService {
             log.info("缓存命中，key={}", cacheKey);
             return cachedAnswer;
         }
+        //再查语义缓存：同一角色集合下换一种说法的问题
+        List<Double> queryEmbedding = null;
+        List<String> contexts = null;
+        if (semanticAnswerCache.isEnabled()) {
+            queryEmbedding = queryEmbeddingCache.embed(query);
+            SemanticAnswerCache.Hit hit = semanticAnswerCache.lookup(roleHash, queryEmbedding);
+            if (hit != null) {
+                if (!semanticAnswerCache.shouldVerify()) {
+                    log.info("语义缓存命中，相似度={}", hit.similarity());
+                    return hit.answer();
+                }
+                //抽样复核：检索结果与缓存答案所用资料一致才使用，否则沿用本次检索结果重新生成
+                contexts = vectorSearchService.search(query, userRoles);
+                if (semanticAnswerCache.verify(hit, contexts)) {
+                    log.info("语义缓存命中并通过复核，相似度={}", hit.similarity());
+                    return hit.answer();
+                }
+            }
+        }
         //缓存未命中，进行RAG流程
-        List<String> contexts = vectorSearchService.search(query, userRoles);
+        if (contexts == null) {
+            contexts = vectorSearchService.search(query, userRoles);
+        }
         if (contexts.isEmpty()) {
             return "未能找到相关内容。";
         }
@@ -154,6 +242,9 @@ public class RagServiceImpl implements RagService {
         log.info("LLM生成答案成功");
         //写入缓存
         cacheManager.put(cacheKey, answer, Duration.ofHours(CACHE_EXPIRE_HOURS));
+        if (queryEmbedding != null) {
+            semanticAnswerCache.put(roleHash, userRoles, query, queryEmbedding, contexts, answer);
+        }
         log.info("答案已缓存，key={}", cacheKey);
         return answer;
     }
@@ -168,33 +259,76 @@ public class RagServiceImpl implements RagService {
     }
 
     /**
-     * 计算文件MD5
+     * 查找同组下内容相同的已有文档，不存在返回 null
      */
-    private String calculateFileHash(MultipartFile file) throws Exception {
-        try (InputStream is = file.getInputStream()) {
-            return DigestUtils.md5Hex(is);
-        }
+    private KbDocument findDuplicate(String fileHash, String permissionGroup) {
+        return kbDocumentRepository.findFirstByFileHashAndPermissionGroup(fileHash, permissionGroup).orElse(null);
     }
 
     /**
-     * 检查文件是否重复
+     * 已上传的文件
      */
-    private boolean isFileDuplicate(String fileHash, String permissionGroup) {
-        return kbDocumentRepository.existsByFileHashAndPermissionGroup(fileHash, permissionGroup);
+    private record StoredFile(String ossKey, String fileHash) {
     }
 
     /**
-     * 上传文件到OSS
+     * 上传文件到OSS，读取的同时计算MD5，文件只读一遍
+     * 对象名不含哈希，重复文件只需删除刚上传的对象，不需要改名
      */
-    private String uploadToOSS(MultipartFile file, String fileHash, String permissionGroup) throws Exception {
+    private StoredFile uploadToOSS(MultipartFile file, String permissionGroup) throws Exception {
         String objectName = String.format("rag-docs/%s/%s_%s",
-                permissionGroup, fileHash, file.getOriginalFilename());
+                permissionGroup, UUID.randomUUID().toString().replace("-", ""), file.getOriginalFilename());
 
-        try (InputStream is = file.getInputStream()) {
-            storageService.upload(objectName, is);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        try (InputStream is = new DigestInputStream(file.getInputStream(), md5)) {
+            storageService.upload(objectName, is, file.getSize());
         }
 
-        return objectName;
+        return new StoredFile(objectName, Hex.encodeHexString(md5.digest()));
+    }
+
+    /**
+     * 删除对象存储中的文件，失败只记录日志
+     */
+    private void deleteQuietly(String ossKey) {
+        try {
+            storageService.delete(ossKey);
+        } catch (Exception e) {
+            log.warn("删除OSS文件失败，ossKey={}", ossKey, e);
+        }
+    }
+
+    /**
+     * 事务提交后再删除旧版本的文件：回滚时文档仍指向旧文件，不能先删
+     * 仍在处理旧版本的节点已因防护令牌递增而作废，提交后删除不影响新版本
+     */
+    private void deleteAfterCommit(String ossKey) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            deleteQuietly(ossKey);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                deleteQuietly(ossKey);
+            }
+        });
+    }
+
+    /**
+     * 提交后清除该权限组的语义缓存，提交前清除的话并发的问答仍可能按未删除的资料写回缓存
+     */
+    private void evictSemanticCacheAfterCommit(String permissionGroup) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            semanticAnswerCache.evictGroup(permissionGroup);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                semanticAnswerCache.evictGroup(permissionGroup);
+            }
+        });
     }
 
     /**
@@ -214,13 +348,15 @@ public class RagServiceImpl implements RagService {
     }
 
     /**
-     * 发送处理消息到MQ
+     * 登记处理消息，与文档记录同一事务提交，提交后由发件箱投递到MQ
+     * 由 UploadRouter 选择交互通道或该权限组的批量通道
      */
-    private void sendProcessMessage(Long docId, String ossKey, Long userId, String permissionGroup) {
-        DocUploadMessage message = new DocUploadMessage(docId, ossKey, userId, permissionGroup);
-        rabbitTemplate.convertAndSend(
+    private void sendProcessMessage(Long docId, String ossKey, Long userId, String permissionGroup, long fileSize,
+                                    Integer docVersion) {
+        DocUploadMessage message = new DocUploadMessage(docId, ossKey, userId, permissionGroup, fileSize, docVersion);
+        outboxService.enqueue(
                 RabbitConfig.RAG_UPLOAD_EXCHANGE,
-                RabbitConfig.RAG_ROUTING_KEY,
+                uploadRouter.routingKeyFor(permissionGroup, fileSize),
                 message
         );
     }
@@ -233,26 +369,21 @@ public class RagServiceImpl implements RagService {
             doc.setStatus("FAILED");
             doc.setErrorMessage(e.getMessage());
             kbDocumentRepository.save(doc);
+            if (doc.getId() != null) {
+                docStatusService.publish(doc);
+            }
         }
     }
 
     /**
-     * 生成缓存键
+     * 角色集合的哈希，答案缓存和语义缓存都按角色集合隔离
      */
-    private String generateCacheKey(List<String> userRoles, String query) {
-        // 1. 角色排序并拼接
+    private String roleHash(List<String> userRoles) {
+        // 角色排序并拼接后计算哈希
         String roleKey = userRoles.stream()
                 .sorted()
                 .reduce("", String::concat);
-
-        // 2. 计算角色哈希
-        String roleHash = DigestUtils.md5Hex(roleKey);
-
-        // 3. 计算问题哈希
-        String queryHash = DigestUtils.sha256Hex(query);
-
-        // 4. 生成缓存键
-        return cacheManager.generateKey("chat", roleHash, queryHash);
+        return DigestUtils.md5Hex(roleKey);
     }
 
     /**
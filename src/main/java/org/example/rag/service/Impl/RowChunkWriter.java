@@ -0,0 +1,48 @@
+package org.example.rag.service.Impl;
+
+import lombok.RequiredArgsConstructor;
+import org.example.rag.entity.dto.ChunkRecord;
+import org.example.rag.service.ChunkWriter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.stereotype.Service;
+
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * 逐行插入，每个文档块一条 INSERT，保留作对照
+ */
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "rag.ingest.writer", havingValue = "row")
+public class RowChunkWriter implements ChunkWriter {
+
+    private static final String INSERT_SQL = """
+              INSERT INTO document_chunks (doc_id, doc_version, content, content_hash, metadata, embedding,
+                                           simhash, duplicate_of)
+              VALUES (:docId, :docVersion, :content, :contentHash, :metadata::jsonb, :embedding::vector,
+                      :simhash, :duplicateOf)
+          """;
+
+    private final JdbcClient jdbcClient;
+
+    @Override
+    public int write(List<ChunkRecord> chunks) {
+        int rows = 0;
+        for (ChunkRecord chunk : chunks) {
+            rows += jdbcClient.sql(INSERT_SQL)
+                    .param("docId", chunk.getDocId())
+                    .param("docVersion", chunk.getDocVersion())
+                    .param("content", chunk.getContent())
+                    .param("contentHash", chunk.getContentHash())
+                    .param("metadata", chunk.getMetadataJson())
+                    .param("embedding", chunk.getEmbedding() == null ? null : chunk.getEmbedding().toString(),
+                            Types.VARCHAR)
+                    .param("simhash", chunk.getSimhash(), Types.BIGINT)
+                    .param("duplicateOf", chunk.getDuplicateOf(), Types.BIGINT)
+                    .update();
+        }
+        return rows;
+    }
+}
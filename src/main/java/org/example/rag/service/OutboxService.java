@@ -0,0 +1,105 @@
+package org.example.rag.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.OutboxMessage;
+import org.example.rag.mq.OutboxDispatcher;
+import org.example.rag.repository.OutboxMessageRepository;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 发件箱服务
+ * 业务方法不再直接调用 rabbitTemplate，而是把消息写入 outbox_messages，与业务数据同一事务提交：
+ * 事务回滚则消息一起消失，不会出现指向不存在文档的消息；事务提交则消息一定会被投递。
+ * 提交后唤醒投递器立即投递，上传接口的耗时不再包含 broker 往返。
+ * 批量上传时用 enqueueAll 一条 INSERT 登记多条消息。
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class OutboxService {
+    private final OutboxMessageRepository outboxMessageRepository;
+    private final OutboxDispatcher outboxDispatcher;
+    private final ObjectMapper objectMapper;
+    private final JdbcClient jdbcClient;
+
+    /**
+     * 批量登记时单条 INSERT 最多包含的消息数
+     */
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    /**
+     * 登记一条待投递的消息，需在业务事务内调用
+     */
+    public void enqueue(String exchange, String routingKey, Object payload) {
+        OutboxMessage message = new OutboxMessage();
+        message.setExchange(exchange);
+        message.setRoutingKey(routingKey);
+        message.setPayloadType(payload.getClass().getName());
+        message.setPayload(serialize(payload));
+        outboxMessageRepository.save(message);
+        wakeUpAfterCommit();
+    }
+
+    /**
+     * 批量登记发往同一路由键的消息，多行 VALUES 一次插入，需在业务事务内调用
+     */
+    public void enqueueAll(String exchange, String routingKey, List<?> payloads) {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        for (int from = 0; from < payloads.size(); from += INSERT_BATCH_SIZE) {
+            List<?> slice = payloads.subList(from, Math.min(from + INSERT_BATCH_SIZE, payloads.size()));
+            StringBuilder sql = new StringBuilder("INSERT INTO outbox_messages "
+                    + "(exchange, routing_key, payload_type, payload, attempts, next_attempt_at, created_at) VALUES ");
+            List<Object> params = new ArrayList<>();
+            for (int i = 0; i < slice.size(); i++) {
+                Object payload = slice.get(i);
+                sql.append(i == 0 ? "(?, ?, ?, ?, 0, ?, ?)" : ", (?, ?, ?, ?, 0, ?, ?)");
+                params.add(exchange);
+                params.add(routingKey);
+                params.add(payload.getClass().getName());
+                params.add(serialize(payload));
+                params.add(now);
+                params.add(now);
+            }
+            jdbcClient.sql(sql.toString()).params(params).update();
+        }
+        log.info("批量登记发件箱消息，条数={}, routingKey={}", payloads.size(), routingKey);
+        wakeUpAfterCommit();
+    }
+
+    private String serialize(Object payload) {
+        try {
+            return objectMapper.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("消息序列化失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 事务提交后唤醒投递器，不在事务中时立即唤醒
+     */
+    private void wakeUpAfterCommit() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    outboxDispatcher.wakeUp();
+                }
+            });
+        } else {
+            outboxDispatcher.wakeUp();
+        }
+    }
+}
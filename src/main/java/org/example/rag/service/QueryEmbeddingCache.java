@@ -0,0 +1,73 @@
+package org.example.rag.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.utils.QueryNormalizer;
+import org.example.rag.utils.VectorUtil;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 问题向量缓存
+ * 以 (向量模型, 归一化问题哈希) 为键，经 CacheManager 的两级缓存保存，向量按 pgvector 文本格式保存，
+ * 命名空间为 qemb，一级缓存有效期见 rag.cache.local.ttls。
+ * 重复提问或只有大小写、标点、全半角差异的问题不再调用向量模型。缓存读写失败时直接向量化，不影响检索。
+ */
+@Slf4j
+@Service
+public class QueryEmbeddingCache {
+    private final EmbeddingModel embeddingModel;
+    private final CacheManager cacheManager;
+    private final boolean enabled;
+    private final Duration ttl;
+    /**
+     * 缓存键中的模型名，换模型后旧向量自然失效
+     */
+    private final String model;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public QueryEmbeddingCache(EmbeddingModel embeddingModel, CacheManager cacheManager,
+                               @Value("${rag.query-cache.embedding.enabled:true}") boolean enabled,
+                               @Value("${rag.query-cache.embedding.ttl-hours:24}") long ttlHours,
+                               @Value("${spring.ai.openai.embedding.options.model:default}") String model) {
+        this.embeddingModel = embeddingModel;
+        this.cacheManager = cacheManager;
+        this.enabled = enabled;
+        this.ttl = Duration.ofHours(ttlHours);
+        this.model = model;
+    }
+
+    /**
+     * 取问题的向量，未命中时调用向量模型并写入两级缓存
+     */
+    public List<Double> embed(String query) {
+        if (!enabled) {
+            return embeddingModel.embed(query);
+        }
+        String key = cacheManager.generateKey("qemb", model, QueryNormalizer.hash(query));
+        String cached = cacheManager.get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return VectorUtil.parsePgVector(cached);
+        }
+
+        misses.incrementAndGet();
+        List<Double> embedding = embeddingModel.embed(query);
+        cacheManager.put(key, VectorUtil.toPgVector(embedding), ttl);
+        return embedding;
+    }
+
+    /**
+     * 启动以来命中和未命中的次数，一级和二级缓存的命中分布见 CacheManager.stats
+     */
+    public Map<String, Long> stats() {
+        return Map.of("hits", hits.get(), "misses", misses.get());
+    }
+}
@@ -7,11 +7,19 @@ import org.springframework.web.multipart.MultipartFile;
  */
 public interface RagService {
     /**
-     * 上传并处理文件
+     * 上传并处理文件，后台异步处理，通过状态接口或 SSE 获取进度
+     * @param file
+     * @return 文档ID，重复上传时返回已有文档的ID
+     */
+    Long uploadAndProcess(MultipartFile file);
+
+    /**
+     * 上传文档的新版本，后台只重新向量化有变化的块
+     * @param documentId
      * @param file
      * @return
      */
-    String uploadAndProcess(MultipartFile file);
+    String uploadNewVersion(Long documentId, MultipartFile file);
     /**
      * 删除知识库文档
      * @param documentId
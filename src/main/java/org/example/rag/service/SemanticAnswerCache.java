@@ -0,0 +1,271 @@
+package org.example.rag.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.rag.entity.dto.SemanticCacheStats;
+import org.example.rag.utils.ContentHashUtil;
+import org.example.rag.utils.QueryNormalizer;
+import org.example.rag.utils.VectorUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.simple.JdbcClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 语义答案缓存
+ * 以 (向量模型, 角色哈希) 为范围保存 (问题向量, 答案)，新问题取同一角色集合下余弦相似度最高的历史问题，
+ * 不低于 similarity-threshold 时直接返回其答案，换一种说法的问题也不再检索和调用大模型。
+ * 同一角色集合的条目数受有效期限制，按角色哈希索引精确扫描，不使用近似索引，避免近似索引先取近邻再按角色过滤时漏掉结果。
+ * 误命中统计：按 verify-sample-rate 抽样复核命中，重新检索新问题的资料，与缓存答案生成时所用资料比较，
+ * 重合比例低于 verify-min-overlap 的记为误命中，删除该条目并按未命中处理。
+ * 每条缓存记录提问者的角色，权限组内有文档删除或新版本入库完成时清除该组相关条目，不再返回依据旧资料生成的答案。
+ * 缓存读写失败只记录日志，按未命中处理。
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SemanticAnswerCache {
+    private final JdbcClient jdbcClient;
+
+    @Value("${rag.semantic-cache.enabled:true}")
+    private boolean enabled = true;
+    /**
+     * 命中所需的最低余弦相似度
+     */
+    @Value("${rag.semantic-cache.similarity-threshold:0.92}")
+    private double similarityThreshold = 0.92;
+    @Value("${rag.semantic-cache.ttl-minutes:60}")
+    private long ttlMinutes = 60;
+    /**
+     * 命中后抽样复核的比例，0 关闭复核，1 每次命中都复核
+     */
+    @Value("${rag.semantic-cache.verify-sample-rate:0.1}")
+    private double verifySampleRate = 0.1;
+    /**
+     * 复核时新旧资料的最低重合比例
+     */
+    @Value("${rag.semantic-cache.verify-min-overlap:0.6}")
+    private double verifyMinOverlap = 0.6;
+    /**
+     * 缓存键中的模型名，换模型后旧向量自然失效
+     */
+    @Value("${spring.ai.openai.embedding.options.model:default}")
+    private String model = "default";
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong falseHits = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final DoubleAdder hitSimilarity = new DoubleAdder();
+
+    /**
+     * 一次命中
+     * @param contextHashes 生成该答案时所用资料的哈希
+     */
+    public record Hit(long id, String query, String answer, double similarity, Set<String> contextHashes) {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 查找同一角色集合下最相近的历史问题
+     * @return 相似度达到阈值时返回命中，否则返回 null
+     */
+    public Hit lookup(String roleHash, List<Double> embedding) {
+        if (!enabled) {
+            return null;
+        }
+        Hit hit;
+        try {
+            hit = jdbcClient.sql("""
+                          SELECT id, query, answer, context_hashes,
+                                 1 - (embedding <=> :embedding::vector) AS similarity
+                          FROM semantic_answer_cache
+                          WHERE model = :model AND role_hash = :roleHash AND expires_at > now()
+                          ORDER BY embedding <=> :embedding::vector
+                          LIMIT 1
+                      """)
+                    .param("embedding", VectorUtil.toPgVector(embedding))
+                    .param("model", model)
+                    .param("roleHash", roleHash)
+                    .query((rs, rowNum) -> new Hit(rs.getLong("id"), rs.getString("query"), rs.getString("answer"),
+                            rs.getDouble("similarity"), parseHashes(rs.getString("context_hashes"))))
+                    .optional()
+                    .filter(candidate -> candidate.similarity() >= similarityThreshold)
+                    .orElse(null);
+        } catch (Exception e) {
+            log.warn("查询语义答案缓存失败，按未命中处理", e);
+            hit = null;
+        }
+        if (hit == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        hitSimilarity.add(hit.similarity());
+        log.debug("语义缓存命中，id={}, 相似度={}, 原问题={}", hit.id(), hit.similarity(), hit.query());
+        return hit;
+    }
+
+    /**
+     * 本次命中是否需要复核
+     */
+    public boolean shouldVerify() {
+        return verifySampleRate > 0 && ThreadLocalRandom.current().nextDouble() < verifySampleRate;
+    }
+
+    /**
+     * 用新问题的检索结果复核一次命中，不一致时记为误命中并删除该条目
+     * @return 缓存答案可以使用时返回 true
+     */
+    public boolean verify(Hit hit, List<String> contexts) {
+        verified.incrementAndGet();
+        Set<String> current = hashContexts(contexts);
+        double overlap = overlap(hit.contextHashes(), current);
+        if (overlap >= verifyMinOverlap) {
+            return true;
+        }
+        falseHits.incrementAndGet();
+        log.info("语义缓存误命中，id={}, 相似度={}, 资料重合比例={}, 原问题={}",
+                hit.id(), hit.similarity(), overlap, hit.query());
+        try {
+            jdbcClient.sql("DELETE FROM semantic_answer_cache WHERE id = :id")
+                    .param("id", hit.id())
+                    .update();
+        } catch (Exception e) {
+            log.warn("删除误命中的语义缓存失败，id={}", hit.id(), e);
+        }
+        return false;
+    }
+
+    /**
+     * 写入缓存，同一角色集合下归一化后相同的问题覆盖旧答案
+     * @param roles 提问者的角色，检索范围即这些权限组
+     */
+    public void put(String roleHash, List<String> roles, String query, List<Double> embedding,
+                    List<String> contexts, String answer) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            jdbcClient.sql("""
+                          INSERT INTO semantic_answer_cache
+                              (model, role_hash, query_hash, query, embedding, answer, context_hashes,
+                               permission_groups, expires_at)
+                          VALUES (:model, :roleHash, :queryHash, :query, :embedding::vector, :answer, :contextHashes,
+                                  string_to_array(:groups, chr(31)), now() + make_interval(mins => :ttlMinutes))
+                          ON CONFLICT (model, role_hash, query_hash) DO UPDATE
+                          SET query = EXCLUDED.query, embedding = EXCLUDED.embedding, answer = EXCLUDED.answer,
+                              context_hashes = EXCLUDED.context_hashes, permission_groups = EXCLUDED.permission_groups,
+                              expires_at = EXCLUDED.expires_at
+                      """)
+                    .param("model", model)
+                    .param("roleHash", roleHash)
+                    .param("queryHash", QueryNormalizer.hash(query))
+                    .param("query", query)
+                    .param("embedding", VectorUtil.toPgVector(embedding))
+                    .param("answer", answer)
+                    .param("contextHashes", String.join(",", hashContexts(contexts)))
+                    // 以不可见的单元分隔符拼接，组名中的逗号等字符不会被拆开
+                    .param("groups", String.join("\u001f", roles))
+                    .param("ttlMinutes", (int) ttlMinutes)
+                    .update();
+        } catch (Exception e) {
+            log.warn("写入语义答案缓存失败", e);
+        }
+    }
+
+    /**
+     * 清除能检索到该权限组的全部条目，组内文档删除或新版本入库完成后调用
+     */
+    public void evictGroup(String permissionGroup) {
+        if (!enabled || permissionGroup == null) {
+            return;
+        }
+        try {
+            int deleted = jdbcClient.sql("DELETE FROM semantic_answer_cache WHERE :group = ANY (permission_groups)")
+                    .param("group", permissionGroup)
+                    .update();
+            if (deleted > 0) {
+                log.info("权限组资料已变更，清除语义缓存，group={}, 删除条目={}", permissionGroup, deleted);
+            }
+        } catch (Exception e) {
+            log.warn("清除权限组语义缓存失败，group={}", permissionGroup, e);
+        }
+    }
+
+    /**
+     * 定期删除过期条目
+     */
+    @Scheduled(fixedDelayString = "${rag.semantic-cache.purge-interval-ms:600000}")
+    public void purge() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            int deleted = jdbcClient.sql("DELETE FROM semantic_answer_cache WHERE expires_at <= now()").update();
+            if (deleted > 0) {
+                expired.addAndGet(deleted);
+                log.info("语义答案缓存清理完成，删除过期条目={}", deleted);
+            }
+        } catch (Exception e) {
+            log.warn("语义答案缓存清理失败", e);
+        }
+    }
+
+    public SemanticCacheStats stats() {
+        SemanticCacheStats stats = new SemanticCacheStats();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long verifiedCount = verified.get();
+        long falseHitCount = falseHits.get();
+        stats.setHits(hitCount);
+        stats.setMisses(missCount);
+        stats.setHitRate(hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+        stats.setVerified(verifiedCount);
+        stats.setFalseHits(falseHitCount);
+        stats.setFalseHitRate(verifiedCount == 0 ? 0 : (double) falseHitCount / verifiedCount);
+        stats.setAvgHitSimilarity(hitCount == 0 ? 0 : hitSimilarity.sum() / hitCount);
+        stats.setExpired(expired.get());
+        return stats;
+    }
+
+    /**
+     * 资料按归一化内容哈希比较，取前 16 位即可区分
+     */
+    private static Set<String> hashContexts(List<String> contexts) {
+        return contexts.stream()
+                .map(context -> ContentHashUtil.hash(context).substring(0, 16))
+                .collect(Collectors.toCollection(HashSet::new));
+    }
+
+    private static Set<String> parseHashes(String text) {
+        if (text == null || text.isEmpty()) {
+            return Set.of();
+        }
+        return new HashSet<>(Arrays.asList(text.split(",")));
+    }
+
+    /**
+     * 重合比例：交集大小 / 较大集合的大小，任一为空时为 0
+     */
+    private static double overlap(Set<String> cached, Set<String> current) {
+        if (cached.isEmpty() || current.isEmpty()) {
+            return 0;
+        }
+        long common = cached.stream().filter(current::contains).count();
+        return (double) common / Math.max(cached.size(), current.size());
+    }
+}
@@ -0,0 +1,10 @@
+package org.example.rag.service;
+
+/**
+ * 从存储读取文件失败（获取文件流或下载到本地），通常是暂时性的，入库时按可重试处理
+ */
+public class StorageReadException extends RuntimeException {
+    public StorageReadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
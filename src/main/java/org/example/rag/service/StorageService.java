@@ -1,6 +1,10 @@
 package org.example.rag.service;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 /**
  * 存储服务接口
@@ -14,6 +18,17 @@ public interface StorageService {
      */
     String upload(String objectName, InputStream inputStream);
 
+    /**
+     * 上传已知大小的文件，实现可据此对大文件使用分片上传
+     * @param objectName
+     * @param inputStream
+     * @param size 文件大小（字节）
+     * @return
+     */
+    default String upload(String objectName, InputStream inputStream, long size) {
+        return upload(objectName, inputStream);
+    }
+
     /**
      * 获取文件流
      * @param objectName
@@ -21,6 +36,19 @@ public interface StorageService {
      */
     InputStream getFileStream(String objectName);
 
+    /**
+     * 下载文件到本地，实现可对大文件使用并行范围下载
+     * @param objectName
+     * @param target 本地目标文件，已存在时覆盖
+     */
+    default void downloadToFile(String objectName, Path target) {
+        try (InputStream in = getFileStream(objectName)) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new StorageReadException("下载文件失败", e);
+        }
+    }
+
     /**
      * 删除文件
      * @param objectName
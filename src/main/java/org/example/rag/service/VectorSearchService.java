@@ -32,20 +32,21 @@ public class VectorSearchService {
     private final EmbeddingModel embeddingModel;
     private final JdbcClient jdbcClient;
     private final KbDocumentRepository kbDocumentRepository;
+    private final QueryEmbeddingCache queryEmbeddingCache;
     private static final int TOP_K = 5; // 默认返回最相似的5条记录
 
     public List<String> search(String query,List<String> userRoles) {
         log.info("开始向量检索，query={}, userRoles={}", query, userRoles);
 
-        // 1. 将查询文本转换为向量
-
-        List<Double> queryEmbedding = embeddingModel.embed(query);
+        // 1. 将查询文本转换为向量，重复或只有大小写、标点差异的问题直接取缓存
+        List<Double> queryEmbedding = queryEmbeddingCache.embed(query);
         log.debug("查询向量维度：{}", queryEmbedding.size());
 
         // 2. 构建向量检索SQL
         // 核心逻辑：
         // - JOIN kb_documents: 关联文档表获取权限信息
         // - WHERE permission_group IN: 只查询用户有权访问的文档
+        // - embedding IS NOT NULL: 跳过近似重复的块，它们与原块内容相近，不再占用 TOP-K 名额
         // - ORDER BY embedding <->: 按向量距离排序（越近越相似）
         // - LIMIT 3: 只返回最相关的3个结果
         String searchSql = """
@@ -53,6 +54,7 @@ public class VectorSearchService {
               FROM document_chunks dc
               JOIN kb_documents kd ON dc.doc_id = kd.id
               WHERE kd.permission_group IN (:userRoles)
+                AND dc.embedding IS NOT NULL
               ORDER BY dc.embedding <-> :embedding::vector
               LIMIT :topK
           """;
@@ -0,0 +1,34 @@
+package org.example.rag.utils;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * 文本内容哈希工具
+ */
+public class ContentHashUtil {
+
+    private ContentHashUtil() {
+    }
+
+    /**
+     * 归一化后计算 SHA-256：去掉首尾空白，连续空白合并为一个空格
+     * 只有空白差异的两段文本得到相同的哈希
+     */
+    public static String hash(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            normalized.append(c);
+        }
+        return DigestUtils.sha256Hex(normalized.toString());
+    }
+}
@@ -0,0 +1,76 @@
+package org.example.rag.utils;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * 用户问题归一化，答案缓存和问题向量缓存的键都基于归一化后的文本
+ * 1. NFKC：全角字母、数字、标点和全角空格转为半角
+ * 2. 转小写
+ * 3. 标点视为分隔符，只保留词内有意义的部分：单词中间的 . - / '（如 3.5、e-mail），数字中间的 , :（如 1,000），
+ *    紧跟在字母数字后的 # 和 %（如 C#、50%）；+ 等符号不属于标点，原样保留
+ * 4. 连续空白合并为一个空格，去掉首尾空白
+ * "What is the leave policy?" 和 "what is the  leave policy" 归一化后相同。
+ */
+public class QueryNormalizer {
+
+    private QueryNormalizer() {
+    }
+
+    public static String normalize(String query) {
+        if (query == null) {
+            return "";
+        }
+        String text = Normalizer.normalize(query, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isPunctuation(c) && !keep(text, i, normalized)) {
+                c = ' ';
+            }
+            if (Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * 归一化后计算 SHA-256，用作缓存键
+     */
+    public static String hash(String query) {
+        return DigestUtils.sha256Hex(normalize(query));
+    }
+
+    private static boolean keep(String text, int i, StringBuilder normalized) {
+        char c = text.charAt(i);
+        boolean afterWord = normalized.length() > 0 && !Character.isWhitespace(text.charAt(i - 1))
+                && Character.isLetterOrDigit(normalized.charAt(normalized.length() - 1));
+        return switch (c) {
+            case '.', '-', '/', '\'' -> afterWord && i + 1 < text.length()
+                    && Character.isLetterOrDigit(text.charAt(i + 1));
+            case ',', ':' -> afterWord && Character.isDigit(normalized.charAt(normalized.length() - 1))
+                    && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1));
+            case '#', '%' -> afterWord;
+            default -> false;
+        };
+    }
+
+    private static boolean isPunctuation(char c) {
+        return switch (Character.getType(c)) {
+            case Character.CONNECTOR_PUNCTUATION, Character.DASH_PUNCTUATION, Character.START_PUNCTUATION,
+                 Character.END_PUNCTUATION, Character.INITIAL_QUOTE_PUNCTUATION,
+                 Character.FINAL_QUOTE_PUNCTUATION, Character.OTHER_PUNCTUATION -> true;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,117 @@
+package org.example.rag.utils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 文本 SimHash 工具
+ * 只保留字母和数字并转小写，按连续 3 个字符切成片段，每个片段哈希为 64 位后按位投票得到指纹。
+ * 内容相近的文本指纹的汉明距离小，中文按字切片段，不依赖分词。
+ * 指纹只用来找候选，是否真的重复由 similarity 按片段集合确认。
+ */
+public class SimHashUtil {
+
+    /**
+     * 指纹切成 4 段，每段 16 位；汉明距离不超过 3 的两个指纹至少有一段完全相同
+     */
+    public static final int BANDS = 4;
+    private static final int SHINGLE = 3;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SimHashUtil() {
+    }
+
+    public static long simhash(String text) {
+        String normalized = normalize(text);
+        int[] votes = new int[64];
+        int count = Math.max(1, normalized.length() - SHINGLE + 1);
+        for (int start = 0; start < count; start++) {
+            long hash = hash(normalized, start, Math.min(normalized.length(), start + SHINGLE));
+            for (int bit = 0; bit < 64; bit++) {
+                votes[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+            }
+        }
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * 只保留字母和数字并转小写，指纹和相似度都基于归一化后的文本
+     */
+    public static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * 两段已归一化文本的 3 字片段集合的 Jaccard 相似度，完全相同为 1
+     */
+    public static double similarity(String normalizedA, String normalizedB) {
+        if (normalizedA.equals(normalizedB)) {
+            return 1;
+        }
+        Set<String> a = shingles(normalizedA);
+        Set<String> b = shingles(normalizedB);
+        int common = 0;
+        for (String shingle : a) {
+            if (b.contains(shingle)) {
+                common++;
+            }
+        }
+        int union = a.size() + b.size() - common;
+        return union == 0 ? 1 : (double) common / union;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * 第 index 段（0 为最高 16 位）的值，与 schema.sql 中的表达式索引 (simhash >> 48) & 65535 等一致
+     */
+    public static int band(long fingerprint, int index) {
+        return (int) ((fingerprint >>> (48 - 16 * index)) & 0xFFFF);
+    }
+
+    private static Set<String> shingles(String normalized) {
+        Set<String> shingles = new HashSet<>();
+        int count = Math.max(1, normalized.length() - SHINGLE + 1);
+        for (int start = 0; start < count; start++) {
+            shingles.add(normalized.substring(start, Math.min(normalized.length(), start + SHINGLE)));
+        }
+        return shingles;
+    }
+
+    /**
+     * FNV-1a 之后再做一次混合，让相邻片段的哈希各位分布均匀
+     */
+    private static long hash(CharSequence text, int from, int to) {
+        long hash = FNV_OFFSET;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            hash ^= c & 0xFF;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb53fe1a85ec3L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
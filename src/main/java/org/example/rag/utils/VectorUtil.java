@@ -0,0 +1,51 @@
+package org.example.rag.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * pgvector 向量格式工具
+ */
+public class VectorUtil {
+
+    private VectorUtil() {
+    }
+
+    /**
+     * 转为 pgvector 文本格式，如 [0.1,0.2,0.3]
+     * pgvector 以 float4 存储，这里按 float 输出，比 List<Double>.toString() 短得多
+     */
+    public static String toPgVector(List<Double> embedding) {
+        StringBuilder sb = new StringBuilder(embedding.size() * 12 + 2);
+        sb.append('[');
+        for (int i = 0; i < embedding.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(embedding.get(i).floatValue());
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * 解析 pgvector 文本格式
+     */
+    public static List<Double> parsePgVector(String text) {
+        String body = text.trim();
+        body = body.substring(1, body.length() - 1);
+        List<Double> embedding = new ArrayList<>();
+        if (body.isEmpty()) {
+            return embedding;
+        }
+        int start = 0;
+        while (start <= body.length()) {
+            int end = body.indexOf(',', start);
+            if (end < 0) {
+                end = body.length();
+            }
+            embedding.add(Double.parseDouble(body.substring(start, end)));
+            start = end + 1;
+        }
+        return embedding;
+    }
+}
@@ -0,0 +1,58 @@
+-- 启动时执行，所有语句需可重复执行
+CREATE EXTENSION IF NOT EXISTS vector;
+
+CREATE TABLE IF NOT EXISTS document_chunks (
+    id        BIGSERIAL PRIMARY KEY,
+    doc_id    BIGINT NOT NULL,
+    content   TEXT,
+    metadata  JSONB,
+    embedding vector(1536)
+);
+
+-- 文档块内容哈希，用于重新入库时的增量比对
+ALTER TABLE document_chunks ADD COLUMN IF NOT EXISTS content_hash VARCHAR(64);
+CREATE INDEX IF NOT EXISTS idx_document_chunks_doc_id ON document_chunks (doc_id);
+-- 写入该块的文档版本，断点续传和增量入库结束时据此清理旧版本的块
+ALTER TABLE document_chunks ADD COLUMN IF NOT EXISTS doc_version INT NOT NULL DEFAULT 0;
+
+-- 向量缓存：(向量模型, 归一化内容哈希) -> 向量，跨文档、跨权限组共享
+CREATE TABLE IF NOT EXISTS embedding_cache (
+    model        VARCHAR(64) NOT NULL,
+    content_hash VARCHAR(64) NOT NULL,
+    embedding    vector      NOT NULL,
+    last_used_at TIMESTAMP   NOT NULL DEFAULT now(),
+    PRIMARY KEY (model, content_hash)
+);
+CREATE INDEX IF NOT EXISTS idx_embedding_cache_last_used ON embedding_cache (last_used_at);
+
+-- 近似重复检测：新增块的 SimHash 指纹；近似重复的块不保存向量，duplicate_of 指向原块
+ALTER TABLE document_chunks ADD COLUMN IF NOT EXISTS simhash BIGINT;
+ALTER TABLE document_chunks ADD COLUMN IF NOT EXISTS duplicate_of BIGINT;
+-- 指纹按 16 位分为四段，任一段相同即为候选，与 SimHashUtil.band 一致
+CREATE INDEX IF NOT EXISTS idx_document_chunks_simhash_b0 ON document_chunks (((simhash >> 48) & 65535)) WHERE duplicate_of IS NULL;
+CREATE INDEX IF NOT EXISTS idx_document_chunks_simhash_b1 ON document_chunks (((simhash >> 32) & 65535)) WHERE duplicate_of IS NULL;
+CREATE INDEX IF NOT EXISTS idx_document_chunks_simhash_b2 ON document_chunks (((simhash >> 16) & 65535)) WHERE duplicate_of IS NULL;
+CREATE INDEX IF NOT EXISTS idx_document_chunks_simhash_b3 ON document_chunks ((simhash & 65535)) WHERE duplicate_of IS NULL;
+CREATE INDEX IF NOT EXISTS idx_document_chunks_duplicate_of ON document_chunks (duplicate_of) WHERE duplicate_of IS NOT NULL;
+
+-- 语义答案缓存：同一角色集合下按问题向量的余弦相似度查找历史答案
+-- 每个角色集合的条目数受有效期限制，按角色哈希精确扫描，不建近似索引
+CREATE TABLE IF NOT EXISTS semantic_answer_cache (
+    id             BIGSERIAL PRIMARY KEY,
+    model          VARCHAR(64) NOT NULL,
+    role_hash      VARCHAR(32) NOT NULL,
+    query_hash     VARCHAR(64) NOT NULL,
+    query          TEXT        NOT NULL,
+    embedding      vector      NOT NULL,
+    answer         TEXT        NOT NULL,
+    -- 生成答案时所用资料的内容哈希，逗号分隔，抽样复核时与新检索结果比较
+    context_hashes TEXT,
+    -- 提问者的角色（即可检索的权限组），组内文档删除或换新版本时按组清除
+    permission_groups TEXT[]   NOT NULL DEFAULT '{}',
+    created_at     TIMESTAMP   NOT NULL DEFAULT now(),
+    expires_at     TIMESTAMP   NOT NULL,
+    UNIQUE (model, role_hash, query_hash)
+);
+CREATE INDEX IF NOT EXISTS idx_semantic_answer_cache_scope ON semantic_answer_cache (model, role_hash, expires_at);
+CREATE INDEX IF NOT EXISTS idx_semantic_answer_cache_expires ON semantic_answer_cache (expires_at);
+CREATE INDEX IF NOT EXISTS idx_semantic_answer_cache_groups ON semantic_answer_cache USING GIN (permission_groups);
@@ -1,20 +1,59 @@
 package org.example.rag;
 
 import lombok.RequiredArgsConstructor;
+import org.example.rag.entity.KbDocument;
+import org.example.rag.entity.dto.ChunkRecord;
+import org.example.rag.ingest.ChunkingContentHandler;
+import org.example.rag.repository.KbDocumentRepository;
+import org.example.rag.service.ChunkWriter;
+import org.example.rag.service.EmbeddingBatchService;
 import org.example.rag.service.RagService;
+import org.example.rag.service.Impl.JdbcBatchChunkWriter;
+import org.example.rag.service.Impl.PgCopyChunkWriter;
+import org.example.rag.service.Impl.RowChunkWriter;
+import org.example.rag.utils.ContentHashUtil;
+import org.example.rag.utils.SimHashUtil;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.simple.JdbcClient;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.xml.sax.helpers.AttributesImpl;
 
+import javax.sql.DataSource;
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 @SpringBootTest
 class RagApplicationTests {
 
     @Autowired
     private RagService ragService;
+    @Autowired
+    private KbDocumentRepository kbDocumentRepository;
+    @Autowired
+    private JdbcClient jdbcClient;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private DataSource dataSource;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private EmbeddingBatchService embeddingBatchService;
+
+    private static final String XHTML = "http://www.w3.org/1999/xhtml";
+    private static final char[] NEWLINE = {'\n'};
 
     @Test
     void contextLoads() {
@@ -46,8 +85,8 @@ class RagApplicationTests {
 
                 try {
                     // 调用 Service 上传
-                    String result = ragService.uploadAndProcess(mockFile);
-                    System.out.println("✅ 上传成功: " + file.getName() + " -> " + result);
+                    Long documentId = ragService.uploadAndProcess(mockFile);
+                    System.out.println("✅ 上传成功: " + file.getName() + " -> 文档ID " + documentId);
                     successCount++;
                 } catch (Exception e) {
                     System.err.println("❌ 上传失败: " + file.getName() + " -> " + e.getMessage());
@@ -58,4 +97,125 @@ class RagApplicationTests {
         }
         System.out.println("批量处理结束，成功入库: " + successCount + " 个文件");
     }
+
+    /**
+     * 对比三种文档块写入方式的耗时
+     * 每种方式都在回滚的事务里执行，不会在库里留下数据
+     * 默认不运行，需要时加 -Drag.benchmark=true
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "rag.benchmark", matches = "true")
+    void benchmarkChunkWriters() {
+        int chunkCount = 2000;
+        int dimensions = 1536;
+        Random random = new Random(42);
+
+        Map<String, ChunkWriter> writers = new LinkedHashMap<>();
+        writers.put("row", new RowChunkWriter(jdbcClient));
+        writers.put("batch", new JdbcBatchChunkWriter(jdbcTemplate));
+        writers.put("copy", new PgCopyChunkWriter(dataSource));
+
+        for (Map.Entry<String, ChunkWriter> entry : writers.entrySet()) {
+            long elapsed = transactionTemplate.execute(status -> {
+                KbDocument doc = new KbDocument();
+                doc.setFilename("benchmark.txt");
+                doc = kbDocumentRepository.saveAndFlush(doc);
+
+                List<ChunkRecord> chunks = new ArrayList<>(chunkCount);
+                for (int i = 0; i < chunkCount; i++) {
+                    List<Double> embedding = new ArrayList<>(dimensions);
+                    for (int d = 0; d < dimensions; d++) {
+                        embedding.add(random.nextDouble() * 2 - 1);
+                    }
+                    String content = "benchmark chunk " + i + " 测试内容".repeat(40);
+                    chunks.add(new ChunkRecord(doc.getId(), 1, content, ContentHashUtil.hash(content),
+                            "{\"chunk_index\": " + i + "}", embedding, SimHashUtil.simhash(content), null));
+                }
+
+                long begin = System.nanoTime();
+                entry.getValue().write(chunks);
+                long cost = System.nanoTime() - begin;
+                status.setRollbackOnly();
+                return cost;
+            });
+            System.out.printf("写入方式=%s, 块数=%d, 维度=%d, 耗时=%dms%n",
+                    entry.getKey(), chunkCount, dimensions, elapsed / 1_000_000);
+        }
+    }
+
+    /**
+     * 对比原 TokenTextSplitter（整篇清洗后按 token 切分）与结构感知的流式分块处理器
+     * 用同一篇合成文档（标题、段落、表格），输出块数和耗时
+     * 默认不运行，需要时加 -Drag.benchmark=true
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "rag.benchmark", matches = "true")
+    void benchmarkChunkers() throws Exception {
+        int sections = 300;
+        int rounds = 5;
+        StringBuilder plain = new StringBuilder();
+        for (int s = 0; s < sections; s++) {
+            plain.append("第").append(s).append("章 制度说明\n");
+            for (int p = 0; p < 3; p++) {
+                plain.append(("本制度适用于公司全体员工，第" + s + "章第" + p + "段。").repeat(6)).append("\n\n");
+            }
+            if (s % 3 == 0) {
+                for (int r = 0; r < 5; r++) {
+                    plain.append("岗位").append(r).append(" | 额度").append(r * 100).append(" | 审批人").append("\n");
+                }
+            }
+        }
+        String text = plain.toString();
+
+        for (int round = 0; round < rounds; round++) {
+            long begin = System.nanoTime();
+            TokenTextSplitter splitter = new TokenTextSplitter(800, 350, 5, 10000, true);
+            List<Document> oldChunks = splitter.apply(List.of(new Document(text.replaceAll("\\n+", "\n"))));
+            long oldCost = System.nanoTime() - begin;
+
+            List<String> newChunks = new ArrayList<>();
+            begin = System.nanoTime();
+            ChunkingContentHandler handler = new ChunkingContentHandler(800, 350, 5, 10000, 8,
+                    embeddingBatchService::countTokens, (chunk, endOffset) -> newChunks.add(chunk));
+            feedStructured(handler, sections);
+            handler.endDocument();
+            long newCost = System.nanoTime() - begin;
+
+            System.out.printf("第%d轮：TokenTextSplitter 块数=%d, 耗时=%dms；结构感知分块 块数=%d, 耗时=%dms%n",
+                    round + 1, oldChunks.size(), oldCost / 1_000_000, newChunks.size(), newCost / 1_000_000);
+        }
+    }
+
+    /**
+     * 按 Tika XHTML 的事件顺序输出与 benchmarkChunkers 中纯文本相同的内容
+     */
+    private void feedStructured(ChunkingContentHandler handler, int sections) throws Exception {
+        AttributesImpl none = new AttributesImpl();
+        for (int s = 0; s < sections; s++) {
+            element(handler, "h2", "第" + s + "章 制度说明", none);
+            for (int p = 0; p < 3; p++) {
+                element(handler, "p", ("本制度适用于公司全体员工，第" + s + "章第" + p + "段。").repeat(6), none);
+            }
+            if (s % 3 == 0) {
+                handler.startElement(XHTML, "table", "table", none);
+                for (int r = 0; r < 5; r++) {
+                    handler.startElement(XHTML, "tr", "tr", none);
+                    element(handler, "td", "岗位" + r, none);
+                    element(handler, "td", "额度" + r * 100, none);
+                    element(handler, "td", "审批人", none);
+                    handler.endElement(XHTML, "tr", "tr");
+                }
+                handler.endElement(XHTML, "table", "table");
+            }
+        }
+    }
+
+    private void element(ChunkingContentHandler handler, String name, String text, AttributesImpl atts)
+            throws Exception {
+        handler.startElement(XHTML, name, name, atts);
+        char[] chars = text.toCharArray();
+        handler.characters(chars, 0, chars.length);
+        handler.endElement(XHTML, name, name);
+        handler.characters(NEWLINE, 0, 1);
+    }
 }
@@ -0,0 +1,48 @@
+package org.example.rag.ingest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ChunkDiffTest {
+
+    @Test
+    void reusesChunksWithTheSameHash() {
+        ChunkDiff diff = new ChunkDiff(List.of(
+                new ChunkDiff.ExistingChunk(1L, "a", 0),
+                new ChunkDiff.ExistingChunk(2L, "b", 1)));
+
+        assertEquals(2L, diff.claim("b").getId());
+        assertEquals(1L, diff.claim("a").getId());
+        assertNull(diff.claim("c"));
+        assertEquals(2, diff.getReused());
+        assertEquals(1, diff.getAdded());
+    }
+
+    @Test
+    void eachOldChunkIsClaimedOnce() {
+        // 重复的页脚在旧版本中出现两次，新版本出现三次时第三次为新增
+        ChunkDiff diff = new ChunkDiff(List.of(
+                new ChunkDiff.ExistingChunk(1L, "footer", 0),
+                new ChunkDiff.ExistingChunk(2L, "footer", 5)));
+
+        assertEquals(1L, diff.claim("footer").getId());
+        assertEquals(2L, diff.claim("footer").getId());
+        assertNull(diff.claim("footer"));
+        assertEquals(2, diff.getReused());
+        assertEquals(1, diff.getAdded());
+    }
+
+    @Test
+    void chunksWithoutHashAreNeverReused() {
+        ChunkDiff diff = new ChunkDiff(List.of(new ChunkDiff.ExistingChunk(1L, null, 0)));
+
+        assertNull(diff.claim("a"));
+        assertEquals(0, diff.getReused());
+        assertEquals(1, diff.getAdded());
+        assertNull(diff.getNearDuplicates());
+    }
+}
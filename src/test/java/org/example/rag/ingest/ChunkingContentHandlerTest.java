@@ -0,0 +1,123 @@
+package org.example.rag.ingest;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 流式分块处理器：断点续传、标题归属和表格行完整性
+ * token 数按字符数计，结果与分词器无关
+ */
+class ChunkingContentHandlerTest {
+
+    private static final String XHTML = "http://www.w3.org/1999/xhtml";
+    private static final AttributesImpl NONE = new AttributesImpl();
+
+    private record Chunk(String text, long endOffset) {
+    }
+
+    @Test
+    void resumeFromMatchesUninterruptedRun() {
+        List<Chunk> full = run(0, 0, 120, 60, 4);
+        assertTrue(full.size() > 5, "样例文本应切出多个块");
+
+        for (int k = 1; k < full.size(); k++) {
+            List<Chunk> resumed = run(full.get(k - 1).endOffset(), k, 120, 60, 4);
+            assertEquals(full.subList(k, full.size()), resumed, "从第" + k + "块续传");
+        }
+    }
+
+    @Test
+    void headingMovesWithFollowingBody() {
+        List<String> chunks = new ArrayList<>();
+        // minChunkSizeChars 很大，标题前不主动截断，只会因超限截断
+        ChunkingContentHandler handler = handler(100, 10_000, 0, chunks);
+        paragraph(handler, "First section body text. ".repeat(3));
+        element(handler, "h2", "Second Heading");
+        paragraph(handler, "Second section body text that does not fit.");
+        handler.endDocument();
+
+        assertEquals(2, chunks.size());
+        assertFalse(chunks.get(0).contains("Second Heading"), "标题不应留在上一块末尾");
+        assertTrue(chunks.get(1).startsWith("Second Heading"), "标题应跟随后面的正文");
+    }
+
+    @Test
+    void tableRowsAreNeverSplit() {
+        List<String> chunks = new ArrayList<>();
+        ChunkingContentHandler handler = handler(80, 10_000, 0, chunks);
+        handler.startElement(XHTML, "table", "table", NONE);
+        for (int r = 0; r < 20; r++) {
+            handler.startElement(XHTML, "tr", "tr", NONE);
+            element(handler, "td", "name" + r);
+            // 单元格内的换行和句号不切分
+            element(handler, "td", "line one.\nline two" + r);
+            handler.endElement(XHTML, "tr", "tr");
+        }
+        handler.endElement(XHTML, "table", "table");
+        handler.endDocument();
+
+        assertTrue(chunks.size() > 1, "表格应切成多个块");
+        for (int r = 0; r < 20; r++) {
+            String row = "name" + r + " | line one. line two" + r;
+            long containing = chunks.stream().filter(chunk -> chunk.lines().anyMatch(row::equals)).count();
+            assertEquals(1, containing, "第" + r + "行应完整出现在一个块中");
+        }
+    }
+
+    /**
+     * 标题、段落和表格交替的文档，开启锚点
+     */
+    private static List<Chunk> run(long offset, int chunks, int chunkSize, int minChunkSizeChars,
+                                   int anchorModulus) {
+        List<Chunk> result = new ArrayList<>();
+        ChunkingContentHandler handler = new ChunkingContentHandler(chunkSize, minChunkSizeChars, 5, 10_000,
+                anchorModulus, String::length, (chunk, endOffset) -> result.add(new Chunk(chunk, endOffset)));
+        handler.resumeFrom(offset, chunks);
+        for (int s = 0; s < 12; s++) {
+            element(handler, "h2", "Section " + s);
+            for (int p = 0; p < 3; p++) {
+                paragraph(handler, "Sentence " + s + "-" + p + " about policy. Another one here " + p
+                        + "! And a question " + s + "?");
+            }
+            if (s % 4 == 0) {
+                handler.startElement(XHTML, "table", "table", NONE);
+                for (int r = 0; r < 3; r++) {
+                    handler.startElement(XHTML, "tr", "tr", NONE);
+                    element(handler, "td", "cell" + s + r);
+                    element(handler, "td", "value " + r * 10);
+                    handler.endElement(XHTML, "tr", "tr");
+                }
+                handler.endElement(XHTML, "table", "table");
+            }
+        }
+        handler.endDocument();
+        return result;
+    }
+
+    private static ChunkingContentHandler handler(int chunkSize, int minChunkSizeChars, int anchorModulus,
+                                                  List<String> chunks) {
+        return new ChunkingContentHandler(chunkSize, minChunkSizeChars, 5, 10_000, anchorModulus,
+                String::length, (chunk, endOffset) -> chunks.add(chunk));
+    }
+
+    private static void paragraph(ChunkingContentHandler handler, String text) {
+        element(handler, "p", text);
+    }
+
+    private static void element(ChunkingContentHandler handler, String name, String text) {
+        handler.startElement(XHTML, name, name, NONE);
+        char[] chars = text.toCharArray();
+        handler.characters(chars, 0, chars.length);
+        handler.endElement(XHTML, name, name);
+        if (!"td".equals(name)) {
+            handler.characters(new char[]{'\n'}, 0, 1);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.example.rag.ingest;
+
+import org.apache.tika.exception.TikaException;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.retry.NonTransientAiException;
+
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FailureTypeTest {
+
+    @Test
+    void parseFailuresMentioningRateLimitsAreNotThrottled() {
+        // 文件名或正文里出现 "429"、"throttle" 不能让解析失败变成可重试的限流
+        assertEquals(FailureType.PARSE_LIMIT,
+                FailureType.classify(new ParseLimitException("解析超时，文件=report_429.pdf")));
+        assertEquals(FailureType.PARSE,
+                FailureType.classify(new TikaException("unsupported: throttle_valve_manual.docx")));
+    }
+
+    @Test
+    void otherFailuresMentioningRateLimitsKeepTheirType() {
+        assertEquals(FailureType.DATABASE,
+                FailureType.classify(new IllegalStateException("写库失败", new SQLException("Too Many Requests"))));
+        assertEquals(FailureType.NOT_FOUND, FailureType.classify(new DocumentMissingException(429L)));
+    }
+
+    @Test
+    void embeddingFailuresAreThrottledOnlyOnStatus429() {
+        assertEquals(FailureType.EMBEDDING_THROTTLED, FailureType.classify(
+                new EmbeddingException("文档块向量化失败", new NonTransientAiException("429 - Rate limit reached"))));
+        assertEquals(FailureType.EMBEDDING, FailureType.classify(
+                new EmbeddingException("文档块向量化失败", new NonTransientAiException("400 - chunk 429 too long"))));
+        assertEquals(FailureType.EMBEDDING, FailureType.classify(new EmbeddingException("rate limit 429")));
+    }
+
+    @Test
+    void unknownFailuresAreRetried() {
+        assertEquals(FailureType.UNKNOWN, FailureType.classify(new IllegalStateException("429")));
+    }
+}
@@ -0,0 +1,106 @@
+package org.example.rag.ingest;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LimitedContentHandlerTest {
+
+    private static final char[] TEXT = "hello".toCharArray();
+
+    @Test
+    void downstreamTimeIsNotCountedAgainstTheParser() {
+        // 下游（分块、流水线背压）每次阻塞 150ms，远超 100ms 的解析超时
+        LimitedContentHandler handler = new LimitedContentHandler(slowDownstream(150, null), 0, 100, "a.pdf");
+
+        assertDoesNotThrow(() -> {
+            for (int i = 0; i < 3; i++) {
+                handler.characters(TEXT, 0, TEXT.length);
+                handler.startElement("", "p", "p", null);
+                handler.endElement("", "p", "p");
+            }
+        });
+        assertTrue(handler.parserMillis() < 100, "parserMillis=" + handler.parserMillis());
+    }
+
+    @Test
+    void watchdogReadDuringDownstreamCallExcludesIt() throws Exception {
+        // 在下游调用中途读取（模拟看门狗），正在进行的阻塞也不计入
+        AtomicLong seen = new AtomicLong(-1);
+        LimitedContentHandler[] holder = new LimitedContentHandler[1];
+        holder[0] = new LimitedContentHandler(slowDownstream(200, () -> seen.set(holder[0].parserMillis())),
+                0, 100, "a.pdf");
+
+        holder[0].characters(TEXT, 0, TEXT.length);
+
+        assertTrue(seen.get() >= 0 && seen.get() < 100, "parserMillis=" + seen.get());
+        assertFalse(holder[0].isTimedOut());
+    }
+
+    @Test
+    void slowParserTimesOut() throws Exception {
+        LimitedContentHandler handler = new LimitedContentHandler(new DefaultHandler(), 0, 50, "a.pdf");
+        // 解析器自身（两次回调之间）用了 100ms
+        Thread.sleep(100);
+
+        SAXException e = assertThrows(SAXException.class, () -> handler.characters(TEXT, 0, TEXT.length));
+        assertInstanceOf(ParseLimitException.class, e.getException());
+        assertTrue(handler.isTimedOut());
+    }
+
+    @Test
+    void outputOverLimitIsRejected() throws Exception {
+        LimitedContentHandler handler = new LimitedContentHandler(new DefaultHandler(), 8, 0, "a.pdf");
+        handler.characters(TEXT, 0, TEXT.length);
+
+        SAXException e = assertThrows(SAXException.class, () -> handler.characters(TEXT, 0, TEXT.length));
+        assertInstanceOf(ParseLimitException.class, e.getException());
+    }
+
+    @Test
+    void abortedHandlerRejectsCallbacks() {
+        LimitedContentHandler handler = new LimitedContentHandler(new DefaultHandler(), 0, 0, "a.pdf");
+        handler.abort("看门狗中止");
+
+        SAXException e = assertThrows(SAXException.class, () -> handler.startElement("", "p", "p", null));
+        assertInstanceOf(ParseLimitException.class, e.getException());
+    }
+
+    /**
+     * 每次回调阻塞 sleepMillis 的下游处理器，阻塞中途执行 during
+     */
+    private static DefaultHandler slowDownstream(long sleepMillis, Runnable during) {
+        return new DefaultHandler() {
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                block();
+            }
+
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                block();
+            }
+
+            private void block() {
+                try {
+                    Thread.sleep(sleepMillis / 2);
+                    if (during != null) {
+                        during.run();
+                    }
+                    Thread.sleep(sleepMillis - sleepMillis / 2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,82 @@
+package org.example.rag.ingest;
+
+import org.example.rag.entity.KbDocument;
+import org.example.rag.utils.SimHashUtil;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.simple.JdbcClient;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Answers.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 本文档内的近似重复检测，库中没有候选块
+ */
+class NearDuplicateDetectorTest {
+
+    private final NearDuplicateDetector detector =
+            new NearDuplicateDetector(mock(JdbcClient.class, RETURNS_DEEP_STUBS));
+
+    @Test
+    void oneNumberEditIsNotDeduplicated() {
+        String three = policy("三个");
+        String five = policy("五个");
+
+        List<NearDuplicateDetector.Match> matches = check(scope(), 0, three, five);
+
+        assertNull(matches.get(0));
+        assertNull(matches.get(1), "只改一个数字的条款不能当作重复");
+    }
+
+    @Test
+    void repeatsAreLinkedToTheFirstOccurrence() {
+        String header = policy("三个");
+        String body = "第二部分 报销制度，差旅费用需在出差结束后十个工作日内提交，附发票原件和行程单。".repeat(3);
+
+        List<NearDuplicateDetector.Match> matches = check(scope(), 10, header, body, header + " ");
+
+        assertNull(matches.get(0));
+        assertNull(matches.get(1));
+        NearDuplicateDetector.Match repeat = matches.get(2);
+        assertNull(repeat.getCanonicalId());
+        assertEquals(10, repeat.getCanonicalIndex());
+        assertFalse(repeat.isDrop(), "link 模式下重复块也要保存");
+    }
+
+    @Test
+    void earlierChunkArrivingLateIsKept() {
+        // 向量化线程并发时序号大的批次可能先检测
+        NearDuplicateDetector.Scope scope = scope();
+        String header = policy("三个");
+
+        assertNull(check(scope, 20, header).get(0));
+        assertNull(check(scope, 0, header).get(0), "序号更小的块不能指向序号更大的块");
+        assertEquals(0, check(scope, 30, header).get(0).getCanonicalIndex());
+    }
+
+    private NearDuplicateDetector.Scope scope() {
+        KbDocument doc = new KbDocument();
+        doc.setId(1L);
+        doc.setPermissionGroup("hr");
+        return detector.open(doc);
+    }
+
+    private static List<NearDuplicateDetector.Match> check(NearDuplicateDetector.Scope scope, int startIndex,
+                                                           String... chunks) {
+        List<String> list = List.of(chunks);
+        return scope.check(startIndex, list, list.stream().map(SimHashUtil::simhash).toList());
+    }
+
+    private static String policy(String days) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            text.append("第").append(i).append("条 员工请假需提前").append(i == 5 ? days : "三个")
+                    .append("工作日提交申请，经部门负责人审批后生效，病假需提供医院证明。");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package org.example.rag.ingest;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PlainFormatExtractorTest {
+
+    /**
+     * 把文本和元素事件记录成一个字符串，元素记为 <name> 和 </name>
+     */
+    private static class RecordingHandler extends DefaultHandler {
+        private final StringBuilder out = new StringBuilder();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            out.append('<').append(localName).append('>');
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            out.append("</").append(localName).append('>');
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            out.append(ch, start, length);
+        }
+    }
+
+    @Test
+    void csvQuotedCellsKeepCommasQuotesAndNewlines() throws Exception {
+        String csv = "name,comment\r\n"
+                + "张三,\"请假, 三天\"\r\n"
+                + "李四,\"他说 \"\"同意\"\"\n第二行\"\n";
+        RecordingHandler handler = new RecordingHandler();
+        PlainFormatExtractor.extractCsv(stream(csv, StandardCharsets.UTF_8), handler);
+
+        assertEquals("name | comment\n"
+                + "张三 | 请假, 三天\n"
+                + "李四 | 他说 \"同意\" 第二行\n", handler.out.toString());
+    }
+
+    @Test
+    void htmlDecodesEntities() throws Exception {
+        String html = "<p>a &amp; b &lt;c&gt; &quot;d&quot; &#65;&#x42;&nbsp;e</p>"
+                + "<p>AT&T &unknown; 5 & 6 &#xZZ;</p>";
+        RecordingHandler handler = new RecordingHandler();
+        PlainFormatExtractor.extractHtml(stream(html, StandardCharsets.UTF_8), handler);
+
+        assertEquals("\na & b <c> \"d\" AB e\n\nAT&T &unknown; 5 & 6 &#xZZ;\n", handler.out.toString());
+    }
+
+    @Test
+    void htmlSkipsScriptStyleAndComments() throws Exception {
+        String html = "<head><style>p { color: red; }</style><script>var a = '<p>';</script></head>"
+                + "<body><!-- <p>hidden</p> -->visible</body>";
+        RecordingHandler handler = new RecordingHandler();
+        PlainFormatExtractor.extractHtml(stream(html, StandardCharsets.UTF_8), handler);
+
+        assertEquals("visible", handler.out.toString());
+    }
+
+    @Test
+    void htmlEmitsHeadingAndTableEvents() throws Exception {
+        String html = "<h1>标题</h1><table>\n  <tr><td>a<td>b\n  <tr><th>c</th></tr>\n</table>";
+        RecordingHandler handler = new RecordingHandler();
+        PlainFormatExtractor.extractHtml(stream(html, StandardCharsets.UTF_8), handler);
+
+        // 缺少结束标签的单元格和行自动补齐，单元格外的缩进不输出
+        assertEquals("<h1>标题</h1><table><tr><td>a</td><td>b\n  </td></tr><tr><th>c</th></tr></table>",
+                handler.out.toString());
+    }
+
+    @Test
+    void sniffsGb18030AndUtf8() throws Exception {
+        String text = "员工请假制度：提前三个工作日申请。";
+
+        assertEquals(text, read(stream(text, Charset.forName("GB18030"))));
+        assertEquals(text, read(stream(text, StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void skipsByteOrderMarks() throws Exception {
+        String text = "年假规定";
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        byte[] withBom = new byte[utf8.length + 3];
+        withBom[0] = (byte) 0xEF;
+        withBom[1] = (byte) 0xBB;
+        withBom[2] = (byte) 0xBF;
+        System.arraycopy(utf8, 0, withBom, 3, utf8.length);
+
+        assertEquals(text, read(new ByteArrayInputStream(withBom)));
+        assertEquals(text, read(stream("\uFEFF" + text, StandardCharsets.UTF_16BE)));
+        assertEquals(text, read(stream("\uFEFF" + text, StandardCharsets.UTF_16LE)));
+    }
+
+    private static ByteArrayInputStream stream(String text, Charset charset) {
+        return new ByteArrayInputStream(text.getBytes(charset));
+    }
+
+    private static String read(ByteArrayInputStream stream) throws Exception {
+        StringWriter out = new StringWriter();
+        try (Reader reader = PlainFormatExtractor.openReader(stream)) {
+            reader.transferTo(out);
+        }
+        return out.toString();
+    }
+}
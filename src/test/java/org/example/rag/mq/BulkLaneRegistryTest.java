@@ -0,0 +1,36 @@
+package org.example.rag.mq;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkLaneRegistryTest {
+
+    private final BulkLaneRegistry registry = new BulkLaneRegistry(null, null);
+
+    @Test
+    void safeGroupNamesAreUsedAsIs() {
+        assertEquals("rag.upload.bulk.finance", registry.queueName("finance"));
+        assertEquals("rag.upload.bulk.team_a-1.x", registry.queueName("team_a-1.x"));
+    }
+
+    @Test
+    void groupsThatSanitizeAlikeGetDifferentQueues() {
+        // "研发" 和 "人事" 都替换成 "__"，"a b" 替换后与 "a_b" 相同
+        assertNotEquals(registry.queueName("研发"), registry.queueName("人事"));
+        assertNotEquals(registry.queueName("a b"), registry.queueName("a_b"));
+        assertEquals(registry.queueName("研发"), registry.queueName("研发"));
+    }
+
+    @Test
+    void longGroupNamesAreTruncatedAndHashed() {
+        String prefix = "x".repeat(64);
+        String a = registry.queueName(prefix + "a");
+        String b = registry.queueName(prefix + "b");
+        assertNotEquals(a, b);
+        assertTrue(a.startsWith("rag.upload.bulk." + prefix + "."));
+        assertEquals("rag.upload.bulk." + prefix, registry.queueName(prefix));
+    }
+}
@@ -0,0 +1,30 @@
+package org.example.rag.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentHashUtilTest {
+
+    @Test
+    void whitespaceDifferencesShareAHash() {
+        String hash = ContentHashUtil.hash("员工 请假\n需提前申请");
+        assertEquals(hash, ContentHashUtil.hash("  员工\t请假   需提前申请\n\n"));
+        assertEquals(hash, ContentHashUtil.hash("员工 请假 需提前申请"));
+    }
+
+    @Test
+    void contentDifferencesChangeTheHash() {
+        assertNotEquals(ContentHashUtil.hash("员工请假"), ContentHashUtil.hash("员工 请假"));
+        assertNotEquals(ContentHashUtil.hash("Leave"), ContentHashUtil.hash("leave"));
+    }
+
+    @Test
+    void hashIsSha256Hex() {
+        String hash = ContentHashUtil.hash("abc");
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash);
+        assertTrue(ContentHashUtil.hash("").matches("[0-9a-f]{64}"));
+    }
+}
@@ -0,0 +1,42 @@
+package org.example.rag.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class QueryNormalizerTest {
+
+    @Test
+    void javadocExample() {
+        assertEquals(QueryNormalizer.normalize("What is the leave policy?"),
+                QueryNormalizer.normalize("what is the  leave policy"));
+        assertEquals("what is the leave policy", QueryNormalizer.normalize("What is the leave policy?"));
+        assertEquals(QueryNormalizer.hash("What is the leave policy?"), QueryNormalizer.hash("what is the  leave policy"));
+    }
+
+    @Test
+    void fullWidthCharactersBecomeHalfWidth() {
+        assertEquals("abc 123 年假规定", QueryNormalizer.normalize("ＡＢＣ　１２３，年假规定？"));
+    }
+
+    @Test
+    void keepsPunctuationInsideWords() {
+        assertEquals("gpt 3.5 e-mail and/or don't", QueryNormalizer.normalize("GPT 3.5, e-mail and/or don't!"));
+        assertEquals("1,000 yuan at 10:30", QueryNormalizer.normalize("1,000 yuan at 10:30."));
+        assertEquals("c# 50% c++", QueryNormalizer.normalize("C# 50% C++?"));
+    }
+
+    @Test
+    void dropsPunctuationBetweenWords() {
+        assertEquals("a b c", QueryNormalizer.normalize(" a, b. c "));
+        assertEquals("hello world", QueryNormalizer.normalize("(hello) \"world\""));
+        assertEquals("", QueryNormalizer.normalize(null));
+    }
+
+    @Test
+    void differentQuestionsStayDifferent() {
+        assertNotEquals(QueryNormalizer.hash("c# tutorial"), QueryNormalizer.hash("c tutorial"));
+        assertNotEquals(QueryNormalizer.hash("3.5"), QueryNormalizer.hash("3 5"));
+    }
+}
@@ -0,0 +1,91 @@
+package org.example.rag.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SimHashUtilTest {
+
+    /**
+     * 与文档块长度相当的文本，指纹按片段投票，文本过短时改一个字的影响会被放大
+     */
+    private static String policy(String days) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            text.append("第").append(i).append("条 员工请假需提前").append(i == 5 ? days : "三个")
+                    .append("工作日提交申请，经部门负责人审批后生效，病假需提供医院证明。");
+        }
+        return text.toString();
+    }
+
+    @Test
+    void ignoresCaseAndPunctuation() {
+        assertEquals(SimHashUtil.simhash("Hello, World! Leave policy 2024."),
+                SimHashUtil.simhash("hello world leave POLICY 2024"));
+    }
+
+    @Test
+    void similarTextsAreCandidates() {
+        long original = SimHashUtil.simhash(policy("三个"));
+        long edited = SimHashUtil.simhash(policy("五个"));
+        long other = SimHashUtil.simhash("The quarterly sales report shows revenue growth in every region, "
+                + "driven by new enterprise contracts and lower churn.");
+
+        assertEquals(0, SimHashUtil.distance(original, SimHashUtil.simhash(policy("三个"))));
+        // 指纹只负责找候选：改动一处的文本距离很小，无关文本距离较大
+        assertTrue(SimHashUtil.distance(original, edited) <= 3,
+                "改动一处的文本应成为候选，实际=" + SimHashUtil.distance(original, edited));
+        assertTrue(SimHashUtil.distance(original, other) > 10,
+                "无关文本距离应较大，实际=" + SimHashUtil.distance(original, other));
+    }
+
+    @Test
+    void similarityTellsChangedNumbersApart() {
+        String original = SimHashUtil.normalize(policy("三个"));
+
+        assertEquals(1.0, SimHashUtil.similarity(original, SimHashUtil.normalize(policy("三个") + "  ")));
+        assertTrue(SimHashUtil.similarity(original, SimHashUtil.normalize(policy("五个"))) < 1.0,
+                "只改一个数字的文本片段集合不同");
+        assertEquals("helloworld2024", SimHashUtil.normalize("Hello, World! 2024"));
+    }
+
+    @Test
+    void distanceCountsDifferentBits() {
+        assertEquals(0, SimHashUtil.distance(0L, 0L));
+        assertEquals(64, SimHashUtil.distance(0L, -1L));
+        assertEquals(2, SimHashUtil.distance(0b1010L, 0b0110L));
+    }
+
+    @Test
+    void bandsMatchIndexExpressions() {
+        long fingerprint = 0x1234_5678_9ABC_DEF0L;
+        assertEquals(0x1234, SimHashUtil.band(fingerprint, 0));
+        assertEquals(0x5678, SimHashUtil.band(fingerprint, 1));
+        assertEquals(0x9ABC, SimHashUtil.band(fingerprint, 2));
+        assertEquals(0xDEF0, SimHashUtil.band(fingerprint, 3));
+        // 与 schema.sql 中 (simhash >> 48) & 65535 等表达式一致，负数指纹也成立
+        long negative = -2L;
+        assertEquals((int) ((negative >> 48) & 65535), SimHashUtil.band(negative, 0));
+        assertEquals((int) (negative & 65535), SimHashUtil.band(negative, 3));
+    }
+
+    @Test
+    void closeFingerprintsShareABand() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            long a = random.nextLong();
+            long b = a;
+            for (int flip = 0; flip < SimHashUtil.BANDS - 1; flip++) {
+                b ^= 1L << random.nextInt(64);
+            }
+            boolean shared = false;
+            for (int band = 0; band < SimHashUtil.BANDS; band++) {
+                shared |= SimHashUtil.band(a, band) == SimHashUtil.band(b, band);
+            }
+            assertTrue(shared, "距离不超过 3 的指纹至少有一段相同");
+        }
+    }
+}